@@ -0,0 +1,43 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cells to geometry: per-cell hexagon reconstruction for h3 input, and dissolving a cell set into outlines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BoundaryBenchmark {
+    @Param({"1000", "100000"})
+    public int cells;
+
+    private H3Core h3core;
+    private long[] set;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        h3core = H3Core.newInstance();
+        set = Fixtures.h3Cells(h3core, 9, cells);
+    }
+
+    @Benchmark
+    public void hexagon(Blackhole bh) {
+        for (long cell : set) {
+            bh.consume(Conversion.hexagon(h3core, cell));
+        }
+    }
+
+    @Benchmark
+    public Object dissolve() {
+        return new Dissolve(h3core).dissolve(set);
+    }
+}
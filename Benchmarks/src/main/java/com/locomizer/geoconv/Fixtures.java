@@ -0,0 +1,127 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Synthetic, seeded inputs shared by the benchmarks: star-shaped polygons with holes, point clouds, and
+ * the same data serialized as GeoJSON, KML and H3 CSV.
+ */
+public class Fixtures {
+    public static final long SEED = 0x5EEDL;
+    public static final double CENTER_LAT = 51.5D;
+    public static final double CENTER_LON = -0.12D;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    /**
+     * Star-shaped polygon around the given center with a jittered radius, so that every vertex count yields a
+     * valid simple ring. A hole of a third of the radius is cut out when requested.
+     */
+    public static Polygon polygon(Random random, double lat, double lon, double radius, int vertices, boolean hole) {
+        LinearRing shell = ring(random, lat, lon, radius, vertices, 0.6D);
+        if (!hole) {
+            return FACTORY.createPolygon(shell);
+        }
+
+        LinearRing inner = ring(random, lat, lon, radius / 3.D, Math.max(8, vertices / 8), 0.9D);
+        return FACTORY.createPolygon(shell, new LinearRing[]{inner});
+    }
+
+    private static LinearRing ring(Random random, double lat, double lon, double radius, int vertices, double jitter) {
+        Coordinate[] cl = new Coordinate[vertices + 1];
+        double aspect = Math.cos(Math.toRadians(lat));
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2.D * Math.PI * i / vertices;
+            double r = radius * (jitter + (1.D - jitter) * random.nextDouble());
+            cl[i] = new Coordinate(lon + r * Math.cos(angle) / aspect, lat + r * Math.sin(angle));
+        }
+        cl[vertices] = cl[0];
+
+        return FACTORY.createLinearRing(cl);
+    }
+
+    public static Map<Geometry, Map<String, Object>> polygons(int count, double radius, int vertices) {
+        Random random = new Random(SEED);
+        Map<Geometry, Map<String, Object>> result = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            double lat = CENTER_LAT + (random.nextDouble() - 0.5D);
+            double lon = CENTER_LON + (random.nextDouble() - 0.5D);
+            result.put(polygon(random, lat, lon, radius, vertices, (i % 2) == 0), properties(i));
+        }
+        return result;
+    }
+
+    public static Map<Geometry, Map<String, Object>> points(int count) {
+        Random random = new Random(SEED);
+        Map<Geometry, Map<String, Object>> result = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            double lat = CENTER_LAT + (random.nextDouble() - 0.5D);
+            double lon = CENTER_LON + (random.nextDouble() - 0.5D);
+            result.put(FACTORY.createPoint(new Coordinate(lon, lat)), properties(i));
+        }
+        return result;
+    }
+
+    public static Map<String, Object> properties(int i) {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Main.NAME, "feature " + i);
+        props.put(Main.ID, String.valueOf(i));
+        props.put("class", "c" + (i % 7));
+        return props;
+    }
+
+    public static File geoJson(Map<Geometry, Map<String, Object>> features) throws IOException {
+        File file = File.createTempFile("bench", ".json");
+        file.deleteOnExit();
+        try (GeoJSONStreamWriter writer = new GeoJSONStreamWriter(new FileOutputStream(file), false, -1)) {
+            features.forEach(writer::write);
+        }
+        return file;
+    }
+
+    public static File kml(Map<Geometry, Map<String, Object>> features) throws IOException {
+        File file = File.createTempFile("bench", ".kml");
+        file.deleteOnExit();
+        try (KMLStreamWriter writer = new KMLStreamWriter(new FileOutputStream(file), -1)) {
+            features.forEach(writer::write);
+        }
+        return file;
+    }
+
+    /**
+     * The given number of cells from a disk around the fixture center.
+     */
+    public static long[] h3Cells(H3Core h3core, int res, int cells) {
+        int k = 0;
+        while (3 * k * (k + 1) + 1 < cells) {
+            k++;
+        }
+        List<Long> disk = h3core.kRing(h3core.geoToH3(CENTER_LAT, CENTER_LON, res), k);
+
+        long[] result = new long[cells];
+        for (int i = 0; i < cells; i++) {
+            result[i] = disk.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Headerless H3 CSV of columns _index and class.
+     */
+    public static File h3Csv(long[] cells) throws IOException {
+        File file = File.createTempFile("bench", ".csv");
+        file.deleteOnExit();
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < cells.length; i++) {
+                writer.write(Long.toHexString(cells[i]) + Main.COMMA + "c" + (i % 7) + "\n");
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,59 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.locationtech.jts.geom.Polygon;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polygon to H3 cells: single-resolution polyfill and the multi-resolution coverage used for h3 output,
+ * with tiling enabled and disabled and with the neighbour ring or exact boundary classification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolyfillBenchmark {
+    /**
+     * Polygon radius in degrees of latitude.
+     */
+    @Param({"0.05", "0.5"})
+    public double radius;
+
+    @Param({"64", "4096"})
+    public int vertices;
+
+    @Param({"true", "false"})
+    public boolean holes;
+
+    @Param({"0", "50000"})
+    public long split;
+
+    @Param({"ring", "intersects"})
+    public String mode;
+
+    private Polygon polygon;
+    private Coverage coverage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        polygon = Fixtures.polygon(new Random(Fixtures.SEED), Fixtures.CENTER_LAT, Fixtures.CENTER_LON, radius, vertices, holes);
+        coverage = new Coverage(H3Core.newInstance(), split, new Metrics(), null, mode);
+    }
+
+    @Benchmark
+    public long[] polyfill() {
+        return coverage.polyfill(polygon, 9);
+    }
+
+    @Benchmark
+    public void cover(Blackhole bh) {
+        coverage.cover(polygon, 6, 9, (hash, resolution, interior) -> bh.consume(hash));
+    }
+}
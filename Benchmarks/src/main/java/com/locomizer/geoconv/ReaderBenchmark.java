@@ -0,0 +1,95 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Input stage: streaming parse of GeoJSON, KML and H3 CSV into the feature store, including the packing of
+ * parsed coordinates into ring arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReaderBenchmark {
+    @Param({"1000", "10000"})
+    public int features;
+
+    @Param({"64", "1024"})
+    public int vertices;
+
+    private H3Core h3core;
+    private File json;
+    private File kml;
+    private File csv;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        h3core = H3Core.newInstance();
+
+        Map<Geometry, Map<String, Object>> polygons = Fixtures.polygons(features, 0.01D, vertices);
+        json = Fixtures.geoJson(polygons);
+        kml = Fixtures.kml(polygons);
+        csv = Fixtures.h3Csv(Fixtures.h3Cells(h3core, 9, features * 16));
+    }
+
+    @Benchmark
+    public FeatureStore geoJson() throws IOException {
+        FeatureStore features = new FeatureStore();
+
+        try (GeoJSONStreamReader stream = new GeoJSONStreamReader(new FileInputStream(json))) {
+            stream.read(Main.FEATURE_BATCH, batch -> batch.parallelStream().forEach(f -> Conversion.feature(features, f)));
+        }
+        return features;
+    }
+
+    @Benchmark
+    public FeatureStore kml() throws Exception {
+        FeatureStore features = new FeatureStore();
+
+        try (KMLStreamReader stream = new KMLStreamReader(new FileInputStream(kml))) {
+            stream.read(Main.FEATURE_BATCH, batch -> batch.parallelStream().forEach(pm -> Conversion.placemark(features, pm)));
+        }
+        return features;
+    }
+
+    @Benchmark
+    public FeatureStore h3Csv() throws IOException {
+        FeatureStore features = new FeatureStore();
+
+        new H3CsvReader(csv, Arrays.asList(Main.INDEX, "class"))
+                .read((hash, props) -> features.polygon(new double[][]{Conversion.boundary(h3core, hash)}, props));
+        return features;
+    }
+
+    /**
+     * Baseline of {@link #h3Csv()}: the sequential parser, still used for H3 CSV from standard input.
+     */
+    @Benchmark
+    public FeatureStore h3CsvParser() throws IOException {
+        FeatureStore features = new FeatureStore();
+
+        try (CSVParser parser = new CSVParser(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8), CSVFormat.EXCEL.withDelimiter(Main.COMMA))) {
+            parser.forEach(rec -> {
+                Map<String, Object> props = new HashMap<>();
+                props.put(Main.INDEX, rec.get(0));
+                props.put("class", rec.get(1));
+
+                features.polygon(new double[][]{Conversion.boundary(h3core, Long.parseLong(rec.get(0), 16))}, props);
+            });
+        }
+        return features;
+    }
+}
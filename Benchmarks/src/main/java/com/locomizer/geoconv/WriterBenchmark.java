@@ -0,0 +1,79 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stage: GeoJSON and KML feature writers, and the CSV and binary h3 coverage writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterBenchmark {
+    @Param({"1000", "10000"})
+    public int features;
+
+    @Param({"64", "1024"})
+    public int vertices;
+
+    @Param({"-1", "6"})
+    public int precision;
+
+    private Map<Geometry, Map<String, Object>> polygons;
+    private CellStore hashes;
+    private AttributeTable attributes;
+    private List<String> columns;
+    private File out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        polygons = Fixtures.polygons(features, 0.01D, vertices);
+
+        hashes = new CellStore();
+        attributes = new AttributeTable();
+        columns = Arrays.asList(Main.INDEX, Main.NAME, "class");
+        long[] cells = Fixtures.h3Cells(H3Core.newInstance(), 9, features * 16);
+        for (int i = 0; i < cells.length; i++) {
+            hashes.put(cells[i], attributes.intern(Fixtures.properties(i / 16)));
+        }
+
+        out = File.createTempFile("bench", ".out");
+        out.deleteOnExit();
+    }
+
+    @Benchmark
+    public void geoJson() throws IOException {
+        try (GeoJSONStreamWriter writer = new GeoJSONStreamWriter(new FileOutputStream(out), false, precision)) {
+            polygons.entrySet().parallelStream().forEach(e -> writer.write(e.getKey(), e.getValue()));
+        }
+    }
+
+    @Benchmark
+    public void kml() throws IOException {
+        try (KMLStreamWriter writer = new KMLStreamWriter(new FileOutputStream(out), precision)) {
+            polygons.entrySet().parallelStream().forEach(e -> writer.write(e.getKey(), e.getValue()));
+        }
+    }
+
+    @Benchmark
+    public void h3Csv() throws IOException {
+        Conversion.writeCsv(new FileOutputStream(out), hashes, attributes, columns);
+    }
+
+    @Benchmark
+    public void h3Binary() throws IOException {
+        BinaryCoverage.write(out, hashes, attributes, columns, 9, 9);
+    }
+}
@@ -0,0 +1,305 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static com.locomizer.geoconv.Main.*;
+
+/**
+ * Set algebra between two H3 coverages. Both are normalized to the output resolution, coarser cells expanded to
+ * their children and finer cells replaced by their parents, and collected in sorted runs that may spill to disk.
+ * Cells of one resolution sort by base cell first, so the runs are merge-joined base cell by base cell in parallel,
+ * each into a temporary file of its own, and the files are appended to the output in order.
+ * <pre>
+ * union          cells of either coverage
+ * intersection   cells of both coverages
+ * difference     cells of the left coverage that are not in the right one
+ * </pre>
+ * A cell carries the attributes of both coverages that have it, those of the left one taking precedence over
+ * attributes of the same name. A cell given several attribute combinations by one coverage, such as a parent
+ * of finer cells, keeps the combination that appears first in that coverage.
+ */
+public class Algebra {
+    public static final String UNION = "union";
+    public static final String INTERSECTION = "intersection";
+    public static final String DIFFERENCE = "difference";
+
+    private static final int BASE_CELLS = 122;
+    private static final long CELL_MODE = 1L << 59;
+    private static final int BASE_CELL_SHIFT = 45;
+
+    private final String op;
+    private final String left;
+    private final String right;
+    private final String out;
+    private final List<String> columns;
+    private final int resolution;
+    private final H3Core h3core;
+    private final Metrics metrics;
+    private final int runCells;
+    private final File dir;
+
+    /**
+     * @param left   left coverage format as given on the command line, h3(attributes) or h3b(attributes)
+     * @param right  right coverage format, likewise
+     * @param output output format as given on the command line, h3(resolution,attributes) or h3b(resolution,attributes)
+     * @throws IllegalArgumentException if the operation or the formats are not valid
+     */
+    public Algebra(String op, String left, String right, String output, H3Core h3core, Metrics metrics) {
+        this(op, left, right, output, h3core, metrics, CellRuns.DEFAULT_RUN_CELLS, null);
+    }
+
+    /**
+     * @param runCells number of distinct cells of each coverage held in memory before a sorted run is spilled
+     * @param dir      directory of the runs and output parts, or null for the default temporary directory
+     */
+    public Algebra(String op, String left, String right, String output, H3Core h3core, Metrics metrics, int runCells, File dir) {
+        this.op = op.toLowerCase();
+        if (!this.op.equals(UNION) && !this.op.equals(INTERSECTION) && !this.op.equals(DIFFERENCE)) {
+            throw new IllegalArgumentException("Unknown coverage operation " + op);
+        }
+
+        this.left = left.toLowerCase();
+        this.right = right.toLowerCase();
+        this.out = output.toLowerCase();
+        if (!Conversion.isH3(this.left) || !Conversion.isH3(this.right) || !Conversion.isH3(out)) {
+            throw new IllegalArgumentException("Coverage operations need h3 or h3b inputs and output");
+        }
+
+        columns = Conversion.columns(output);
+        int[] resolutions = Conversion.resolutions(output, columns.remove(0));
+        if (resolutions[0] != resolutions[1]) {
+            throw new IllegalArgumentException("Output of a coverage operation needs a single resolution in " + output);
+        }
+        resolution = resolutions[0];
+
+        Conversion.columns(left);
+        Conversion.columns(right);
+
+        this.h3core = h3core;
+        this.metrics = metrics;
+        this.runCells = runCells;
+        this.dir = dir;
+    }
+
+    public void run(File leftFile, File rightFile, File outFile) throws IOException {
+        AttributeTable leftRows = new AttributeTable();
+        AttributeTable rightRows = new AttributeTable();
+
+        metrics.stage("read");
+        try (CellRuns a = load(left, leftFile, leftRows);
+             CellRuns b = load(right, rightFile, rightRows)) {
+            metrics.count("cells.left", a.size());
+            metrics.count("cells.right", b.size());
+            metrics.count("runs.spilled", a.spilled() + b.spilled());
+
+            metrics.stage("join");
+            AttributeTable rows = new AttributeTable();
+            Map<Long, Integer> combined = new ConcurrentHashMap<>();
+            if (out.startsWith(H_3B)) {
+                CellStore hashes = new CellStore();
+                IntStream.range(0, BASE_CELLS).parallel()
+                        .forEach(base -> {
+                            try {
+                                join(base, a, b, (cell, l, r) -> hashes.put(cell, row(l, r, leftRows, rightRows, rows, combined)));
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+
+                metrics.stage("write");
+                BinaryCoverage.write(outFile, hashes, rows, columns, resolution, resolution);
+                return;
+            }
+
+            File[] parts = new File[BASE_CELLS];
+            try {
+                IntStream.range(0, BASE_CELLS).parallel()
+                        .forEach(base -> {
+                            try {
+                                parts[base] = part(base, a, b, leftRows, rightRows, rows, combined);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+
+                metrics.stage("write");
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), 4096 * 1024)) {
+                    for (File part : parts) {
+                        if (part != null) {
+                            Files.copy(part.toPath(), output);
+                        }
+                    }
+                }
+            } finally {
+                for (File part : parts) {
+                    if (part != null) {
+                        part.delete();
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the cells of one base cell to a temporary CSV file.
+     *
+     * @return the file, or null if the base cell has no cells
+     */
+    private File part(int base, CellRuns a, CellRuns b, AttributeTable leftRows, AttributeTable rightRows, AttributeTable rows,
+                      Map<Long, Integer> combined) throws IOException {
+        File[] file = {null};
+        CSVPrinter[] printer = {null};
+        try {
+            join(base, a, b, (cell, l, r) -> {
+                if (printer[0] == null) {
+                    file[0] = File.createTempFile("geoconv", ".csv", dir);
+                    printer[0] = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file[0]), StandardCharsets.UTF_8), 1024 * 1024),
+                            CSVFormat.EXCEL.withDelimiter(COMMA));
+                }
+                Conversion.print(printer[0], cell, rows.get(row(l, r, leftRows, rightRows, rows, combined)), columns);
+            });
+        } finally {
+            if (printer[0] != null) {
+                printer[0].close();
+            }
+        }
+        return file[0];
+    }
+
+    /**
+     * Merge-joins the cells of one base cell, passing each cell of the result with its left and right rows,
+     * -1 where a coverage does not have it.
+     */
+    private void join(int base, CellRuns a, CellRuns b, JoinConsumer consumer) throws IOException {
+        long from = CELL_MODE | ((long) resolution << 52) | ((long) base << BASE_CELL_SHIFT);
+        long to = from + (1L << BASE_CELL_SHIFT);
+
+        long written = 0L;
+        try (CellRuns.Cursor l = a.cursor(from, to);
+             CellRuns.Cursor r = b.cursor(from, to)) {
+            boolean hasLeft = l.next();
+            boolean hasRight = r.next();
+
+            while (op.equals(UNION) ? (hasLeft || hasRight) : op.equals(DIFFERENCE) ? hasLeft : (hasLeft && hasRight)) {
+                if (hasLeft && (!hasRight || (l.cell() < r.cell()))) {
+                    if (!op.equals(INTERSECTION)) {
+                        consumer.accept(l.cell(), l.row(), -1);
+                        written++;
+                    }
+                    hasLeft = l.next();
+                } else if (hasRight && (!hasLeft || (r.cell() < l.cell()))) {
+                    if (op.equals(UNION)) {
+                        consumer.accept(r.cell(), -1, r.row());
+                        written++;
+                    }
+                    hasRight = r.next();
+                } else {
+                    if (!op.equals(DIFFERENCE)) {
+                        consumer.accept(l.cell(), l.row(), r.row());
+                        written++;
+                    }
+                    hasLeft = l.next();
+                    hasRight = r.next();
+                }
+            }
+        }
+
+        metrics.count("cells.written", written);
+    }
+
+    /**
+     * Output row of a pair of left and right rows.
+     */
+    private int row(int l, int r, AttributeTable leftRows, AttributeTable rightRows, AttributeTable rows, Map<Long, Integer> combined) {
+        return combined.computeIfAbsent(((long) l << 32) | (r & 0xFFFFFFFFL), key -> {
+            Map<String, Object> props = new HashMap<>();
+            if (r >= 0) {
+                props.putAll(rightRows.get(r));
+            }
+            if (l >= 0) {
+                props.putAll(leftRows.get(l));
+            }
+            props.put(LEVEL, resolution);
+            return rows.intern(props);
+        });
+    }
+
+    /**
+     * Reads a coverage into sorted runs of cells at the output resolution.
+     */
+    private CellRuns load(String format, File file, AttributeTable attributes) throws IOException {
+        CellRuns runs = new CellRuns(runCells, dir);
+        try {
+            if (format.startsWith(H_3B)) {
+                try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+                    int[] rows = new int[reader.rowCount()];
+                    for (int r = 0; r < rows.length; r++) {
+                        rows[r] = attributes.intern(reader.attributes(r));
+                    }
+
+                    reader.forEachOrdered((cell, row) -> {
+                        try {
+                            add(runs, cell, rows[row]);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+            } else {
+                List<String> cols = Conversion.columns(format);
+                int indexColumn = cols.indexOf(INDEX);
+
+                try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 4096 * 1024),
+                        CSVFormat.EXCEL.withDelimiter(COMMA))) {
+                    for (CSVRecord rec : parser) {
+                        Map<String, Object> props = new HashMap<>();
+                        for (int i = 0; i < cols.size(); i++) {
+                            if ((i != indexColumn) && !cols.get(i).equals(UNDERSCORE)) {
+                                props.put(cols.get(i), rec.get(i));
+                            }
+                        }
+
+                        add(runs, Long.parseLong(rec.get(indexColumn), 16), attributes.intern(props));
+                    }
+                }
+            }
+
+            runs.seal();
+            return runs;
+        } catch (IOException | RuntimeException e) {
+            runs.close();
+            throw e;
+        }
+    }
+
+    private void add(CellRuns runs, long cell, int row) throws IOException {
+        int res = BinaryCoverage.resolution(cell);
+        if (res == resolution) {
+            runs.add(cell, row);
+        } else if (res > resolution) {
+            runs.add(CellIndex.parent(cell, resolution), row);
+        } else {
+            for (Long child : h3core.h3ToChildren(cell, resolution)) {
+                runs.add(child, row);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface JoinConsumer {
+        void accept(long cell, int left, int right) throws IOException;
+    }
+}
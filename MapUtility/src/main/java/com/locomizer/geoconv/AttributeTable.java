@@ -0,0 +1,32 @@
+package com.locomizer.geoconv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interned attribute rows referenced by id from a {@link CellStore}. Equal attribute maps share one row.
+ */
+public class AttributeTable {
+    private final List<Map<String, Object>> rows = new ArrayList<>();
+    private final Map<Map<String, Object>, Integer> index = new HashMap<>();
+
+    public synchronized int intern(Map<String, Object> row) {
+        Integer id = index.get(row);
+        if (id == null) {
+            id = rows.size();
+            rows.add(row);
+            index.put(row, id);
+        }
+        return id;
+    }
+
+    public synchronized Map<String, Object> get(int id) {
+        return rows.get(id);
+    }
+
+    public synchronized int size() {
+        return rows.size();
+    }
+}
@@ -0,0 +1,160 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one conversion over many input files in a single JVM. Files are converted concurrently by a fixed pool of
+ * workers sharing one H3Core, and every file reports its own status line, so a broken input fails only itself.
+ */
+public class Batch {
+    public static final String OK = "OK";
+    public static final String FAILED = "FAILED";
+
+    private static final char TAB = '\t';
+    private static final char COMMENT = '#';
+
+    private final Conversion conversion;
+    private final H3Core h3core;
+    private final int workers;
+    private final Metrics metrics;
+
+    public Batch(Conversion conversion, H3Core h3core, int workers, Metrics metrics) {
+        this.conversion = conversion;
+        this.h3core = h3core;
+        this.workers = Math.max(1, workers);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reads tab-separated input and output path pairs, one per line. Relative paths are resolved against the
+     * directory of the manifest.
+     */
+    public static List<File[]> manifest(File manifest) throws IOException {
+        File base = manifest.getAbsoluteFile().getParentFile();
+
+        List<File[]> files = new ArrayList<>();
+        try (CSVParser parser = new CSVParser(new FileReader(manifest), CSVFormat.TDF.withCommentMarker(COMMENT).withIgnoreEmptyLines())) {
+            for (CSVRecord rec : parser) {
+                if (rec.size() < 2) {
+                    throw new IOException("Manifest line " + rec.getRecordNumber() + " is not an input and output pair");
+                }
+
+                files.add(new File[]{resolve(base, rec.get(0)), resolve(base, rec.get(1))});
+            }
+        }
+        return files;
+    }
+
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+
+    /**
+     * Lists input files matching a glob in its directory, such as /data/districts/*.kml, and pairs each with an output
+     * file of the same base name in the output directory.
+     */
+    public static List<File[]> glob(String glob, File outDir, String output) throws IOException {
+        Path pattern = Paths.get(glob);
+        Path dir = (pattern.getParent() == null) ? Paths.get(".") : pattern.getParent();
+
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create output directory " + outDir);
+        }
+
+        List<File[]> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, pattern.getFileName().toString())) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    String name = path.getFileName().toString();
+                    int dot = name.lastIndexOf('.');
+
+                    files.add(new File[]{path.toFile(), new File(outDir, ((dot > 0) ? name.substring(0, dot) : name) + extension(output))});
+                }
+            }
+        }
+        files.sort((a, b) -> a[0].compareTo(b[0]));
+        return files;
+    }
+
+    public static String extension(String output) {
+        if (output.startsWith(Main.H_3B)) {
+            return ".h3b";
+        }
+        if (output.startsWith(Main.H_3)) {
+            return ".csv";
+        }
+        return "." + output;
+    }
+
+    public static boolean accessible(File inFile, File outFile) {
+        return inFile.isFile() && inFile.canRead() && (!outFile.isFile() || outFile.canWrite()) && (outFile.isFile() || !outFile.exists());
+    }
+
+    /**
+     * Converts all pairs and prints an OK or FAILED line for each of them to stdout.
+     *
+     * @return number of failed files
+     */
+    public int run(List<File[]> files) throws InterruptedException {
+        metrics.stage("batch");
+        metrics.count("files", files.size());
+
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (File[] pair : files) {
+                futures.add(pool.submit(() -> {
+                    long start = metrics.start();
+                    try {
+                        if (!accessible(pair[0], pair[1])) {
+                            throw new IOException("Input is not readable or output is not writable");
+                        }
+
+                        conversion.run(h3core, pair[0], pair[1], new Metrics());
+
+                        long nanos = metrics.stop("file", start);
+                        metrics.count("files.ok", 1L);
+                        metrics.record("file.millis", nanos / 1000000L);
+                        System.out.println(OK + TAB + (nanos / 1000000L) + TAB + pair[0] + TAB + pair[1]);
+                    } catch (Throwable e) {
+                        long nanos = metrics.stop("file", start);
+                        failed.incrementAndGet();
+                        metrics.count("files.failed", 1L);
+                        System.out.println(FAILED + TAB + (nanos / 1000000L) + TAB + pair[0] + TAB + pair[1] + TAB + String.valueOf(e).replace('\n', ' '));
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ignore) {
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return failed.get();
+    }
+}
@@ -0,0 +1,288 @@
+package com.locomizer.geoconv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.LongStream;
+
+/**
+ * Binary H3 coverage file. Little-endian layout:
+ * <pre>
+ * header     64 bytes: magic, version, min and max resolution, column, cell, row and dictionary counts,
+ *                      and offsets of the sections below
+ * cells      cell count x int64, H3 indexes sorted ascending
+ * row ids    cell count x int32, attribute row of each cell
+ * rows       row count x column count x int32, dictionary id of each attribute value or -1 for null
+ * strings    column names followed by dictionary values, each as int32 length and UTF-8 bytes
+ * </pre>
+ * Cell and row id columns are read through memory mapped chunks, so scanning a coverage allocates nothing per cell.
+ */
+public class BinaryCoverage {
+    public static final int MAGIC = 0x48334356;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+
+    private static final long CHUNK = 1L << 30;
+    private static final int BUFFER_SIZE = 4096 * 1024;
+
+    public static void write(File file, CellStore hashes, AttributeTable attributes, List<String> columns, int minRes, int maxRes) throws IOException {
+        List<String> stored = new ArrayList<>();
+        for (String col : columns) {
+            if (!col.equals(Main.INDEX) && !col.equals(Main.UNDERSCORE) && !stored.contains(col)) {
+                stored.add(col);
+            }
+        }
+
+        int rowCount = attributes.size();
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int[] rows = new int[rowCount * stored.size()];
+        for (int r = 0; r < rowCount; r++) {
+            Map<String, Object> props = attributes.get(r);
+
+            for (int c = 0; c < stored.size(); c++) {
+                Object v = props.get(stored.get(c));
+                rows[r * stored.size() + c] = (v == null) ? -1 : dictionary.computeIfAbsent(String.valueOf(v), k -> dictionary.size());
+            }
+        }
+
+        long[] cells = new long[(int) hashes.size()];
+        int[] n = {0};
+        hashes.forEach((hash, row) -> cells[n[0]++] = hash);
+        Arrays.parallelSort(cells);
+
+        long cellsOffset = HEADER_SIZE;
+        long rowIdsOffset = cellsOffset + (long) cells.length * Long.BYTES;
+        long rowsOffset = align(rowIdsOffset + (long) cells.length * Integer.BYTES);
+        long stringsOffset = rowsOffset + (long) rows.length * Integer.BYTES;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .put((byte) minRes)
+                    .put((byte) maxRes)
+                    .putShort((short) 0)
+                    .putInt(stored.size())
+                    .putLong(cells.length)
+                    .putInt(rowCount)
+                    .putInt(dictionary.size())
+                    .putLong(cellsOffset)
+                    .putLong(rowIdsOffset)
+                    .putLong(rowsOffset)
+                    .putLong(stringsOffset);
+
+            for (long cell : cells) {
+                ensure(channel, buf, Long.BYTES);
+                buf.putLong(cell);
+            }
+            for (long cell : cells) {
+                ensure(channel, buf, Integer.BYTES);
+                buf.putInt(hashes.get(cell));
+            }
+            for (long pad = rowsOffset - rowIdsOffset - (long) cells.length * Integer.BYTES; pad > 0; pad--) {
+                ensure(channel, buf, 1);
+                buf.put((byte) 0);
+            }
+            for (int id : rows) {
+                ensure(channel, buf, Integer.BYTES);
+                buf.putInt(id);
+            }
+
+            List<String> strings = new ArrayList<>(stored);
+            strings.addAll(dictionary.keySet());
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+                ensure(channel, buf, Integer.BYTES);
+                buf.putInt(bytes.length);
+                for (int off = 0; off < bytes.length; ) {
+                    ensure(channel, buf, 1);
+                    int len = Math.min(buf.remaining(), bytes.length - off);
+                    buf.put(bytes, off, len);
+                    off += len;
+                }
+            }
+
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    private static void ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + Long.BYTES - 1) & ~(Long.BYTES - 1);
+    }
+
+    public static int resolution(long hash) {
+        return (int) ((hash >>> 52) & 0xFL);
+    }
+
+    public static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final int minRes;
+        private final int maxRes;
+        private final long cellCount;
+        private final LongBuffer[] cells;
+        private final IntBuffer[] rowIds;
+        private final List<String> columns = new ArrayList<>();
+        private final List<Map<String, Object>> rows = new ArrayList<>();
+
+        public Reader(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            FileChannel channel = file.getChannel();
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+                throw new IOException("Input is not a binary H3 coverage file of version " + VERSION);
+            }
+            minRes = header.get();
+            maxRes = header.get();
+            header.getShort();
+            int columnCount = header.getInt();
+            cellCount = header.getLong();
+            int rowCount = header.getInt();
+            int dictCount = header.getInt();
+            long cellsOffset = header.getLong();
+            long rowIdsOffset = header.getLong();
+            long rowsOffset = header.getLong();
+            long stringsOffset = header.getLong();
+
+            int chunks = (int) ((cellCount * Long.BYTES + CHUNK - 1) / CHUNK);
+            cells = new LongBuffer[chunks];
+            rowIds = new IntBuffer[chunks];
+            for (int k = 0; k < chunks; k++) {
+                long first = k * (CHUNK / Long.BYTES);
+                long count = Math.min(CHUNK / Long.BYTES, cellCount - first);
+
+                cells[k] = channel.map(FileChannel.MapMode.READ_ONLY, cellsOffset + first * Long.BYTES, count * Long.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                rowIds[k] = channel.map(FileChannel.MapMode.READ_ONLY, rowIdsOffset + first * Integer.BYTES, count * Integer.BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+
+            MappedByteBuffer strings = channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, channel.size() - stringsOffset);
+            strings.order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < columnCount; c++) {
+                columns.add(string(strings));
+            }
+            String[] dictionary = new String[dictCount];
+            for (int d = 0; d < dictCount; d++) {
+                dictionary[d] = string(strings);
+            }
+
+            IntBuffer ids = channel.map(FileChannel.MapMode.READ_ONLY, rowsOffset, (long) rowCount * columnCount * Integer.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            for (int r = 0; r < rowCount; r++) {
+                Map<String, Object> row = new HashMap<>();
+                for (int c = 0; c < columnCount; c++) {
+                    int id = ids.get();
+                    row.put(columns.get(c), (id < 0) ? null : dictionary[id]);
+                }
+                rows.add(Collections.unmodifiableMap(row));
+            }
+        }
+
+        private static String string(ByteBuffer buf) {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public int minRes() {
+            return minRes;
+        }
+
+        public int maxRes() {
+            return maxRes;
+        }
+
+        public long size() {
+            return cellCount;
+        }
+
+        public List<String> columns() {
+            return columns;
+        }
+
+        public int rowCount() {
+            return rows.size();
+        }
+
+        public long cell(long i) {
+            return cells[(int) (i / (CHUNK / Long.BYTES))].get((int) (i % (CHUNK / Long.BYTES)));
+        }
+
+        public int row(long i) {
+            return rowIds[(int) (i / (CHUNK / Long.BYTES))].get((int) (i % (CHUNK / Long.BYTES)));
+        }
+
+        public Map<String, Object> attributes(int row) {
+            return rows.get(row);
+        }
+
+        public long find(long hash) {
+            long lo = 0, hi = cellCount - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                long c = cell(mid);
+                if (c < hash) {
+                    lo = mid + 1;
+                } else if (c > hash) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1L;
+        }
+
+        /**
+         * Passes all cells with their rows in parallel batches, so the consumer must be thread safe.
+         */
+        public void forEach(CellStore.CellConsumer consumer) {
+            long batch = Main.FEATURE_BATCH * 64L;
+            LongStream.range(0, (cellCount + batch - 1) / batch).parallel()
+                    .forEach(b -> {
+                        for (long i = b * batch, end = Math.min(cellCount, (b + 1) * batch); i < end; i++) {
+                            consumer.accept(cell(i), row(i));
+                        }
+                    });
+        }
+
+        /**
+         * Passes all cells with their rows in ascending cell order on the calling thread.
+         */
+        public void forEachOrdered(CellStore.CellConsumer consumer) {
+            for (long i = 0; i < cellCount; i++) {
+                consumer.accept(cell(i), row(i));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
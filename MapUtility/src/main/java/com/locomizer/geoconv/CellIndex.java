@@ -0,0 +1,186 @@
+package com.locomizer.geoconv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Read-only lookup of H3 cells to attribute rows, loaded from an h3 or h3b coverage. Cells are kept in a single
+ * open-addressing table of primitive arrays without locks, so any number of threads may look up concurrently.
+ * A coverage may hold several resolutions, so a point cell is looked up with its parents from finest to coarsest.
+ */
+public class CellIndex {
+    private static final float LOAD_FACTOR = 0.5F;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final long RES_MASK = 0xFL << 52;
+
+    private final long[] keys;
+    private final int[] rows;
+    private final int mask;
+    private final int[] resolutions;
+    private final List<Map<String, Object>> attributes;
+
+    /**
+     * @throws IllegalArgumentException if the coverage has more cells than the table can hold at its load factor
+     */
+    private CellIndex(long size, List<Map<String, Object>> attributes) {
+        if (size > (long) (MAX_CAPACITY * LOAD_FACTOR)) {
+            throw new IllegalArgumentException("Coverage of " + size + " cells is too large to index, the limit is "
+                    + (long) (MAX_CAPACITY * LOAD_FACTOR));
+        }
+
+        int capacity = Integer.highestOneBit((int) Math.max(16L, (long) (size / LOAD_FACTOR)) - 1) << 1;
+        this.keys = new long[capacity];
+        this.rows = new int[capacity];
+        this.mask = capacity - 1;
+        this.resolutions = new int[16];
+        this.attributes = attributes;
+    }
+
+    /**
+     * @param format coverage format as given on the command line, h3(columns) or h3b(columns)
+     */
+    public static CellIndex load(String format, File file) throws IOException {
+        List<String> columns = Arrays.asList(format.substring(format.indexOf('(') + 1, format.length() - 1).split(Main.COMMA_STR));
+        columns.replaceAll(String::trim);
+
+        if (format.toLowerCase().startsWith(Main.H_3B)) {
+            try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+                List<Map<String, Object>> attributes = new ArrayList<>(reader.rowCount());
+                for (int r = 0; r < reader.rowCount(); r++) {
+                    attributes.add(reader.attributes(r));
+                }
+
+                CellIndex index = new CellIndex(reader.size(), attributes);
+                for (long i = 0; i < reader.size(); i++) {
+                    index.put(reader.cell(i), reader.row(i));
+                }
+                return index.seal();
+            }
+        }
+
+        int indexColumn = columns.indexOf(Main.INDEX);
+        if (indexColumn < 0) {
+            throw new IllegalArgumentException("Attribute " + Main.INDEX + " is missing in " + format);
+        }
+
+        AttributeTable table = new AttributeTable();
+        LongList cells = new LongList();
+        List<Integer> cellRows = new ArrayList<>();
+
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 4096 * 1024),
+                CSVFormat.EXCEL.withDelimiter(Main.COMMA))) {
+            for (CSVRecord rec : parser) {
+                Map<String, Object> props = new HashMap<>();
+                for (int i = 0; i < columns.size(); i++) {
+                    if (!columns.get(i).equals(Main.UNDERSCORE) && (i != indexColumn)) {
+                        props.put(columns.get(i), rec.get(i));
+                    }
+                }
+
+                cells.add(Long.parseLong(rec.get(indexColumn), 16));
+                cellRows.add(table.intern(props));
+            }
+        }
+
+        List<Map<String, Object>> attributes = new ArrayList<>(table.size());
+        for (int r = 0; r < table.size(); r++) {
+            attributes.add(table.get(r));
+        }
+
+        CellIndex index = new CellIndex(cells.size(), attributes);
+        for (int i = 0; i < cells.size(); i++) {
+            index.put(cells.get(i), cellRows.get(i));
+        }
+        return index.seal();
+    }
+
+    private void put(long cell, int row) {
+        int slot = (int) CellStore.mix(cell) & mask;
+        while ((keys[slot] != 0L) && (keys[slot] != cell)) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = cell;
+        rows[slot] = row;
+        resolutions[BinaryCoverage.resolution(cell)] = 1;
+    }
+
+    /**
+     * Turns the resolution flags into the list of present resolutions, finest first, terminated by -1.
+     */
+    private CellIndex seal() {
+        int n = 0;
+        for (int res = 15; res >= 0; res--) {
+            if (resolutions[res] != 0) {
+                resolutions[n++] = res;
+            }
+        }
+        Arrays.fill(resolutions, n, resolutions.length, -1);
+        return this;
+    }
+
+    /**
+     * Finest resolution of the coverage, at which points are to be indexed, or -1 if it is empty.
+     */
+    public int finest() {
+        return resolutions[0];
+    }
+
+    /**
+     * Finds the slot of the given cell or of its nearest parent in the coverage.
+     *
+     * @return slot, or -1 if neither the cell nor any of its parents is covered
+     */
+    public int locate(long cell) {
+        for (int i = 0; (i < resolutions.length) && (resolutions[i] >= 0); i++) {
+            long target = parent(cell, resolutions[i]);
+
+            int slot = (int) CellStore.mix(target) & mask;
+            while (keys[slot] != 0L) {
+                if (keys[slot] == target) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return -1;
+    }
+
+    public long cell(int slot) {
+        return keys[slot];
+    }
+
+    public int row(int slot) {
+        return rows[slot];
+    }
+
+    public int rowCount() {
+        return attributes.size();
+    }
+
+    public Map<String, Object> attributes(int row) {
+        return attributes.get(row);
+    }
+
+    /**
+     * Parent of a cell at a coarser or the same resolution: the resolution field is replaced and the digits of the
+     * finer resolutions are set to 7, as H3 does.
+     */
+    public static long parent(long cell, int res) {
+        int current = BinaryCoverage.resolution(cell);
+        if (res >= current) {
+            return cell;
+        }
+
+        long digits = 0L;
+        for (int r = res + 1; r <= current; r++) {
+            digits |= 7L << ((15 - r) * 3);
+        }
+        return (cell & ~RES_MASK) | ((long) res << 52) | digits;
+    }
+}
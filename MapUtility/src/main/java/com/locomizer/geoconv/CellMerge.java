@@ -0,0 +1,340 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Merges the cells claimed by parallel cover workers into one cell store under a conflict policy. Every worker
+ * appends its claims to a buffer of its own, split by the segment of the cell store the cell belongs to, and each
+ * segment is then resolved by a single task, so neither step takes a contended lock. A cell claimed by several
+ * geometries goes to an interior claim before a ring claim and then by the policy, with input order breaking the
+ * remaining ties, so the result does not depend on thread timing.
+ * <pre>
+ * first           geometry first in input order
+ * overlap         geometry with the largest area inside the cell
+ * priority:name   geometry with the largest numeric value of attribute name, missing values last
+ * all             every geometry, the one first would choose followed by the others in input order
+ * </pre>
+ */
+public class CellMerge {
+    public static final String FIRST = "first";
+    public static final String OVERLAP = "overlap";
+    public static final String PRIORITY = "priority:";
+    public static final String ALL = "all";
+
+    private final String policy;
+    private final FeatureStore owners;
+    private final H3Core h3core;
+    private final String priority;
+    private final List<Buffer> buffers = new ArrayList<>();
+    private final Map<Long, int[]> shared = new ConcurrentHashMap<>();
+    private final Map<Integer, PreparedGeometry> prepared = new ConcurrentHashMap<>();
+    private volatile double[] priorities = null;
+
+    /**
+     * @param owners geometries in input order, claiming cells by their id in this store; more may be added while
+     *               cells are claimed, but not once they are merged
+     */
+    public CellMerge(String policy, FeatureStore owners, H3Core h3core) {
+        this.policy = policy;
+        this.owners = owners;
+        this.h3core = h3core;
+        this.priority = policy.startsWith(PRIORITY) ? policy.substring(PRIORITY.length()) : null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the policy is not one of the above
+     */
+    public static void validate(String policy) {
+        if (!policy.equals(FIRST) && !policy.equals(OVERLAP) && !policy.equals(ALL)
+                && !(policy.startsWith(PRIORITY) && (policy.length() > PRIORITY.length()))) {
+            throw new IllegalArgumentException("Unknown conflict policy " + policy);
+        }
+    }
+
+    private static double priority(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Priority attribute values of all owners, read on first use.
+     */
+    private double[] priorities() {
+        double[] values = priorities;
+        if (values == null) {
+            synchronized (this) {
+                if (priorities == null) {
+                    values = new double[owners.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = priority(owners.properties(i).get(priority));
+                    }
+                    priorities = values;
+                }
+                values = priorities;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * A new buffer for one worker, which must not be shared between threads.
+     */
+    public synchronized Buffer buffer() {
+        Buffer buffer = new Buffer();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Resolves all claims into the given store, which should be empty.
+     *
+     * @return number of cells claimed by more than one geometry
+     */
+    public long merge(CellStore hashes) {
+        return IntStream.range(0, CellStore.SEGMENTS).parallel()
+                .mapToLong(segment -> merge(segment, hashes))
+                .sum();
+    }
+
+    /**
+     * Further owners of cells under the all policy, as attribute rows in input order after the row in the store.
+     */
+    public Map<Long, int[]> shared() {
+        return shared;
+    }
+
+    private long merge(int segment, CellStore hashes) {
+        List<LongList> cells = new ArrayList<>(buffers.size());
+        List<LongList> claims = new ArrayList<>(buffers.size());
+        int n = 0;
+        for (Buffer buffer : buffers) {
+            if (buffer.cells[segment] != null) {
+                cells.add(buffer.cells[segment]);
+                claims.add(buffer.claims[segment]);
+                n += buffer.cells[segment].size();
+            }
+        }
+        if (n == 0) {
+            return 0L;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(16, n * 2) - 1) << 1;
+        int mask = capacity - 1;
+        long[] keys = new long[capacity];
+        long[] best = new long[capacity];
+        long conflicts = 0L;
+
+        for (int b = 0; b < cells.size(); b++) {
+            LongList bc = cells.get(b);
+            for (int k = 0; k < bc.size(); k++) {
+                long cell = bc.get(k) & ~CoverageCache.INTERIOR;
+
+                int slot = (int) CellStore.mix(cell) & mask;
+                while ((keys[slot] != 0L) && (keys[slot] != cell)) {
+                    slot = (slot + 1) & mask;
+                }
+
+                long claim = ((long) b << 32) | k;
+                if (keys[slot] == 0L) {
+                    keys[slot] = cell;
+                    best[slot] = claim;
+                } else {
+                    if (best[slot] >= 0L) {
+                        conflicts++;
+                        best[slot] = ~best[slot];
+                    }
+                    if (better(cell, claim, ~best[slot], cells, claims)) {
+                        best[slot] = ~claim;
+                    }
+                }
+            }
+        }
+
+        long[] sorted = new long[n];
+        int count = 0;
+        for (long key : keys) {
+            if (key != 0L) {
+                sorted[count++] = key;
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+
+        long[] winners = new long[count];
+        for (int i = 0; i < count; i++) {
+            int slot = (int) CellStore.mix(sorted[i]) & mask;
+            while (keys[slot] != sorted[i]) {
+                slot = (slot + 1) & mask;
+            }
+
+            winners[i] = best[slot];
+            hashes.put(sorted[i], row((best[slot] < 0L) ? ~best[slot] : best[slot], claims));
+        }
+
+        if (policy.equals(ALL) && (conflicts > 0L)) {
+            share(sorted, winners, count, cells, claims);
+        }
+
+        return conflicts;
+    }
+
+    /**
+     * Collects the claims of conflicting cells other than the winning one, which is the first in input order.
+     */
+    private void share(long[] keys, long[] best, int count, List<LongList> cells, List<LongList> claims) {
+        Map<Long, Long> winners = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (best[i] < 0L) {
+                winners.put(keys[i], ~best[i]);
+            }
+        }
+
+        Map<Long, List<long[]>> others = new HashMap<>();
+        for (int b = 0; b < cells.size(); b++) {
+            LongList bc = cells.get(b);
+            for (int k = 0; k < bc.size(); k++) {
+                long cell = bc.get(k) & ~CoverageCache.INTERIOR;
+                long claim = ((long) b << 32) | k;
+
+                Long winner = winners.get(cell);
+                if ((winner != null) && (winner != claim)) {
+                    others.computeIfAbsent(cell, c -> new ArrayList<>()).add(new long[]{owner(claim, claims), row(claim, claims)});
+                }
+            }
+        }
+
+        others.forEach((cell, list) -> {
+            list.sort(Comparator.comparingLong(o -> o[0]));
+            shared.put(cell, list.stream().mapToInt(o -> (int) o[1]).toArray());
+        });
+    }
+
+    private boolean better(long cell, long claim, long than, List<LongList> cells, List<LongList> claims) {
+        return better(cell, interior(claim, cells), owner(claim, claims), interior(than, cells), owner(than, claims));
+    }
+
+    private boolean better(long cell, boolean interior, int owner, boolean otherInterior, int other) {
+        if (interior != otherInterior) {
+            return interior;
+        }
+
+        if (priority != null) {
+            double[] values = priorities();
+            int c = Double.compare(values[owner], values[other]);
+            if (c != 0) {
+                return c > 0;
+            }
+        } else if (policy.equals(OVERLAP)) {
+            Geometry hexagon = Conversion.hexagon(h3core, cell);
+            int c = Double.compare(overlap(hexagon, owner), overlap(hexagon, other));
+            if (c != 0) {
+                return c > 0;
+            }
+        }
+
+        return owner < other;
+    }
+
+    /**
+     * Area of the owner inside the cell. Polygon owners are built and prepared once, on their first conflict under
+     * the overlap policy, so the hexagons they cover whole or miss skip the intersection.
+     */
+    private double overlap(Geometry hexagon, int owner) {
+        if (owners.type(owner) == FeatureStore.POINT) {
+            return 0.D;
+        }
+
+        PreparedGeometry geometry = prepared.computeIfAbsent(owner, o -> PreparedGeometryFactory.prepare(owners.geometry(o)));
+        if (geometry.containsProperly(hexagon)) {
+            return hexagon.getArea();
+        }
+        return geometry.intersects(hexagon) ? hexagon.intersection(geometry.getGeometry()).getArea() : 0.D;
+    }
+
+    private static boolean interior(long claim, List<LongList> cells) {
+        return (cells.get((int) (claim >>> 32)).get((int) claim) & CoverageCache.INTERIOR) != 0L;
+    }
+
+    private static int owner(long claim, List<LongList> claims) {
+        return (int) (claims.get((int) (claim >>> 32)).get((int) claim) >>> 32);
+    }
+
+    private static int row(long claim, List<LongList> claims) {
+        return (int) claims.get((int) (claim >>> 32)).get((int) claim);
+    }
+
+    /**
+     * Resolves all claims of one cell merged from a {@link CellSpill}, passing the winning attribute row to the
+     * consumer and, under the all policy, the rows of the other claims after it in input order.
+     *
+     * @param cells  the cell once per claim, with the interior flag of that claim
+     * @param claims owners with attribute rows, in the order of the cells
+     * @return whether the cell was claimed more than once
+     */
+    public boolean resolve(long cell, LongList cells, LongList claims, CellStore.CellConsumer consumer) {
+        int best = 0;
+        for (int i = 1; i < cells.size(); i++) {
+            if (better(cell, cells.get(i) < 0L, (int) (claims.get(i) >>> 32), cells.get(best) < 0L, (int) (claims.get(best) >>> 32))) {
+                best = i;
+            }
+        }
+        consumer.accept(cell, (int) claims.get(best));
+
+        if (policy.equals(ALL) && (cells.size() > 1)) {
+            long[] others = new long[cells.size() - 1];
+            for (int i = 0, n = 0; i < cells.size(); i++) {
+                if (i != best) {
+                    others[n++] = claims.get(i);
+                }
+            }
+
+            Arrays.sort(others);
+            for (long other : others) {
+                consumer.accept(cell, (int) other);
+            }
+        }
+        return cells.size() > 1;
+    }
+
+    /**
+     * Claims of one worker, whether held in a {@link Buffer} or spilled by a {@link CellSpill}.
+     */
+    public interface Claims {
+        void add(long cell, int owner, int row, boolean interior);
+    }
+
+    /**
+     * Claims of one worker, split by cell store segment. Each claim is the cell with the interior flag of
+     * {@link CoverageCache#INTERIOR} and the owner with the attribute row packed into one long.
+     */
+    public static class Buffer implements Claims {
+        private final LongList[] cells = new LongList[CellStore.SEGMENTS];
+        private final LongList[] claims = new LongList[CellStore.SEGMENTS];
+
+        @Override
+        public void add(long cell, int owner, int row, boolean interior) {
+            int segment = CellStore.segment(cell);
+            if (cells[segment] == null) {
+                cells[segment] = new LongList();
+                claims[segment] = new LongList();
+            }
+
+            cells[segment].add(interior ? (cell | CoverageCache.INTERIOR) : cell);
+            claims[segment].add(((long) owner << 32) | (row & 0xFFFFFFFFL));
+        }
+    }
+}
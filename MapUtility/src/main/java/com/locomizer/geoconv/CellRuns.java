@@ -0,0 +1,343 @@
+package com.locomizer.geoconv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Cells with attribute rows collected in sorted runs of bounded size, so that the collected cells may outgrow the
+ * heap. Cells are gathered in an open-addressing table, and once it fills up they are sorted and spilled to a
+ * temporary file as a run of little-endian cell and row records. Cursors merge the runs in cell order over a range
+ * of cells, so that disjoint ranges can be merged in parallel. A cell added more than once keeps its lowest row.
+ * Adding is not thread safe, cursors are.
+ */
+public class CellRuns implements Closeable {
+    public static final int DEFAULT_RUN_CELLS = 1 << 21;
+
+    private static final int RECORD = Long.BYTES + Integer.BYTES;
+    private static final int BUFFER_RECORDS = 8192;
+
+    private final int runCells;
+    private final File dir;
+    private final long[] keys;
+    private final int[] rows;
+    private final int mask;
+    private final List<File> files = new ArrayList<>();
+    private int size = 0;
+    private long total = 0L;
+    private long[] memoryCells = new long[0];
+    private int[] memoryRows = new int[0];
+
+    public CellRuns() {
+        this(DEFAULT_RUN_CELLS, null);
+    }
+
+    /**
+     * @param runCells number of distinct cells held in memory before they are spilled as a run
+     * @param dir      directory of the runs, or null for the default temporary directory
+     */
+    public CellRuns(int runCells, File dir) {
+        this.runCells = Math.max(1, runCells);
+        this.dir = dir;
+
+        int capacity = Integer.highestOneBit(Math.max(16, this.runCells * 2) - 1) << 1;
+        keys = new long[capacity];
+        rows = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public void add(long cell, int row) throws IOException {
+        int slot = (int) CellStore.mix(cell) & mask;
+        while ((keys[slot] != 0L) && (keys[slot] != cell)) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (keys[slot] == 0L) {
+            keys[slot] = cell;
+            rows[slot] = row;
+            total++;
+
+            if (++size == runCells) {
+                spill();
+            }
+        } else if (row < rows[slot]) {
+            rows[slot] = row;
+        }
+    }
+
+    /**
+     * Number of cells added, counting a cell once per run it is in.
+     */
+    public long size() {
+        return total;
+    }
+
+    /**
+     * Number of runs spilled to disk.
+     */
+    public int spilled() {
+        return files.size();
+    }
+
+    /**
+     * Sorts the cells in memory into the last run, which stays in memory. Call before creating cursors, after which
+     * no more cells may be added.
+     */
+    public void seal() {
+        long[] cells = sorted();
+        int[] cellRows = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            cellRows[i] = rows[slot(cells[i])];
+        }
+
+        memoryCells = cells;
+        memoryRows = cellRows;
+        clear();
+    }
+
+    private void spill() throws IOException {
+        long[] cells = sorted();
+
+        File file = File.createTempFile("geoconv", ".run", dir);
+        files.add(file);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (long cell : cells) {
+                if (buf.remaining() < RECORD) {
+                    write(channel, buf);
+                }
+                buf.putLong(cell).putInt(rows[slot(cell)]);
+            }
+            write(channel, buf);
+        }
+
+        clear();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private long[] sorted() {
+        long[] cells = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != 0L) {
+                cells[n++] = key;
+            }
+        }
+        Arrays.parallelSort(cells);
+        return cells;
+    }
+
+    private int slot(long cell) {
+        int slot = (int) CellStore.mix(cell) & mask;
+        while (keys[slot] != cell) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void clear() {
+        Arrays.fill(keys, 0L);
+        size = 0;
+    }
+
+    /**
+     * Cells of all runs from the given cell up to but excluding the other, in ascending order.
+     */
+    public Cursor cursor(long from, long to) throws IOException {
+        Cursor cursor = new Cursor();
+        try {
+            Source memory = new MemorySource(from, to);
+            if (memory.next()) {
+                cursor.queue.add(memory);
+            }
+
+            for (File file : files) {
+                Source source = new FileSource(file, from, to);
+                cursor.sources.add(source);
+                if (source.next()) {
+                    cursor.queue.add(source);
+                }
+            }
+            return cursor;
+        } catch (IOException e) {
+            cursor.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    /**
+     * Merged view of the runs over a range, to be closed after use.
+     */
+    public static class Cursor implements Closeable {
+        private final PriorityQueue<Source> queue = new PriorityQueue<>(
+                (a, b) -> (a.cell != b.cell) ? Long.compare(a.cell, b.cell) : Integer.compare(a.row, b.row));
+        private final List<Source> sources = new ArrayList<>();
+        private long cell;
+        private int row;
+
+        /**
+         * @return false once all cells of the range have been visited
+         */
+        public boolean next() throws IOException {
+            Source head = queue.poll();
+            if (head == null) {
+                return false;
+            }
+
+            cell = head.cell;
+            row = head.row;
+            advance(head);
+
+            while (!queue.isEmpty() && (queue.peek().cell == cell)) {
+                advance(queue.poll());
+            }
+            return true;
+        }
+
+        private void advance(Source source) throws IOException {
+            if (source.next()) {
+                queue.add(source);
+            }
+        }
+
+        public long cell() {
+            return cell;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    private abstract static class Source implements Closeable {
+        long cell;
+        int row;
+
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private class MemorySource extends Source {
+        private final long to;
+        private int i;
+
+        private MemorySource(long from, long to) {
+            int found = Arrays.binarySearch(memoryCells, from);
+            this.i = (found < 0) ? -found - 1 : found;
+            this.to = to;
+        }
+
+        @Override
+        boolean next() {
+            if ((i >= memoryCells.length) || (memoryCells[i] >= to)) {
+                return false;
+            }
+
+            cell = memoryCells[i];
+            row = memoryRows[i++];
+            return true;
+        }
+    }
+
+    private static class FileSource extends Source {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_RECORDS * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        private final long to;
+        private final long records;
+        private long position;
+
+        private FileSource(File file, long from, long to) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.records = channel.size() / RECORD;
+            this.to = to;
+
+            long lo = 0L, hi = records;
+            ByteBuffer probe = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                probe.clear();
+                read(probe, mid * RECORD);
+                if (probe.getLong(0) < from) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            position = lo;
+            buf.limit(0);
+        }
+
+        private void read(ByteBuffer target, long offset) throws IOException {
+            while (target.hasRemaining()) {
+                if (channel.read(target, offset + target.position()) < 0) {
+                    throw new IOException("Run file is truncated");
+                }
+            }
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!buf.hasRemaining()) {
+                if (position >= records) {
+                    return false;
+                }
+
+                buf.clear();
+                buf.limit((int) Math.min(BUFFER_RECORDS, records - position) * RECORD);
+                read(buf, position * RECORD);
+                buf.flip();
+                position += buf.limit() / RECORD;
+            }
+
+            cell = buf.getLong();
+            row = buf.getInt();
+            if (cell >= to) {
+                buf.limit(buf.position());
+                position = records;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
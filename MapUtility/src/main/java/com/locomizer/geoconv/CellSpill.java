@@ -0,0 +1,295 @@
+package com.locomizer.geoconv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Cell claims of cover workers held in bounded buffers that are sorted and spilled to temporary files as runs,
+ * so that a coverage may outgrow the heap. A claim is the cell with the {@link CoverageCache#INTERIOR} flag and the
+ * owner with the attribute row packed into one long, like those of {@link CellMerge.Buffer}, and is stored as
+ * two little-endian longs. Buffers are radix sorted by cell, keeping claims of one cell in the order they were
+ * made. Once covering is done the runs are merged in ascending cell order, handing over all claims of a cell at once.
+ */
+public class CellSpill implements Closeable {
+    private static final int RECORD = 2 * Long.BYTES;
+    private static final int BUFFER_RECORDS = 8192;
+
+    private final int bufferClaims;
+    private final File dir;
+    private final List<File> files = new ArrayList<>();
+    private final List<Buffer> buffers = new ArrayList<>();
+
+    /**
+     * @param claims  number of claims held in memory by all buffers together before they are spilled
+     * @param workers number of threads claiming cells, each into a buffer of its own
+     * @param dir     directory of the runs, or null for the default temporary directory
+     */
+    public CellSpill(long claims, int workers, File dir) {
+        this.bufferClaims = (int) Math.max(1L, Math.min(Integer.MAX_VALUE - 8, claims / Math.max(1, workers)));
+        this.dir = dir;
+    }
+
+    /**
+     * A new buffer for one worker, which must not be shared between threads.
+     */
+    public synchronized Buffer buffer() {
+        Buffer buffer = new Buffer();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Number of runs spilled to disk.
+     */
+    public synchronized int spilled() {
+        return files.size();
+    }
+
+    private void spill(long[] cells, long[] claims, int n) throws IOException {
+        File file = File.createTempFile("geoconv", ".run", dir);
+        synchronized (this) {
+            files.add(file);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int i = 0; i < n; i++) {
+                if (buf.remaining() < RECORD) {
+                    write(channel, buf);
+                }
+                buf.putLong(cells[i]).putLong(claims[i]);
+            }
+            write(channel, buf);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Stable least significant digit radix sort of claims by cell, ignoring the interior flag. Byte positions
+     * shared by all cells, such as the mode and mostly the resolution, are skipped.
+     */
+    static void sort(long[] cells, long[] claims, int n) {
+        long[] cellsTo = new long[n];
+        long[] claimsTo = new long[n];
+        int[] counts = new int[256];
+
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) (((cells[i] & ~CoverageCache.INTERIOR) >>> shift) & 0xFF)]++;
+            }
+            if ((n == 0) || (counts[(int) (((cells[0] & ~CoverageCache.INTERIOR) >>> shift) & 0xFF)] == n)) {
+                continue;
+            }
+
+            for (int b = 0, sum = 0; b < 256; b++) {
+                int c = counts[b];
+                counts[b] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int to = counts[(int) (((cells[i] & ~CoverageCache.INTERIOR) >>> shift) & 0xFF)]++;
+                cellsTo[to] = cells[i];
+                claimsTo[to] = claims[i];
+            }
+
+            System.arraycopy(cellsTo, 0, cells, 0, n);
+            System.arraycopy(claimsTo, 0, claims, 0, n);
+        }
+    }
+
+    /**
+     * Merges all runs and remaining buffers in ascending cell order. Call once all workers are done.
+     */
+    public void merge(ClaimsConsumer consumer) throws IOException {
+        PriorityQueue<Source> queue = new PriorityQueue<>((a, b) -> Long.compare(a.cell(), b.cell()));
+        List<Source> sources = new ArrayList<>();
+        try {
+            for (Buffer buffer : buffers) {
+                sort(buffer.cells, buffer.claims, buffer.size);
+                Source source = new MemorySource(buffer);
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+            for (File file : files) {
+                Source source = new FileSource(file);
+                sources.add(source);
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+
+            LongList cells = new LongList();
+            LongList claims = new LongList();
+            while (!queue.isEmpty()) {
+                long cell = queue.peek().cell();
+
+                cells.clear();
+                claims.clear();
+                while (!queue.isEmpty() && (queue.peek().cell() == cell)) {
+                    Source source = queue.poll();
+                    boolean more;
+                    do {
+                        cells.add(source.cellFlag);
+                        claims.add(source.claim);
+                        more = source.next();
+                    } while (more && (source.cell() == cell));
+
+                    if (more) {
+                        queue.add(source);
+                    }
+                }
+
+                consumer.accept(cell, cells, claims);
+            }
+        } finally {
+            for (Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    /**
+     * Claims of one worker, spilled as a run whenever the buffer fills up.
+     */
+    public class Buffer implements CellMerge.Claims {
+        private long[] cells = new long[Math.min(bufferClaims, 1024)];
+        private long[] claims = new long[cells.length];
+        private int size = 0;
+
+        @Override
+        public void add(long cell, int owner, int row, boolean interior) {
+            if (size == cells.length) {
+                if (size == bufferClaims) {
+                    try {
+                        sort(cells, claims, size);
+                        spill(cells, claims, size);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    size = 0;
+                } else {
+                    int capacity = (int) Math.min(bufferClaims, 2L * cells.length);
+                    cells = Arrays.copyOf(cells, capacity);
+                    claims = Arrays.copyOf(claims, capacity);
+                }
+            }
+
+            cells[size] = interior ? (cell | CoverageCache.INTERIOR) : cell;
+            claims[size++] = ((long) owner << 32) | (row & 0xFFFFFFFFL);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ClaimsConsumer {
+        /**
+         * @param cells  the cell once per claim, with the interior flag of that claim
+         * @param claims owners with attribute rows, in the order of the cells
+         */
+        void accept(long cell, LongList cells, LongList claims) throws IOException;
+    }
+
+    private abstract static class Source implements Closeable {
+        long cellFlag;
+        long claim;
+
+        long cell() {
+            return cellFlag & ~CoverageCache.INTERIOR;
+        }
+
+        /**
+         * @return false once the source is exhausted
+         */
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class MemorySource extends Source {
+        private final Buffer buffer;
+        private int i = 0;
+
+        private MemorySource(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        boolean next() {
+            if (i >= buffer.size) {
+                return false;
+            }
+
+            cellFlag = buffer.cells[i];
+            claim = buffer.claims[i++];
+            return true;
+        }
+    }
+
+    private static class FileSource extends Source {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_RECORDS * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = 0L;
+
+        private FileSource(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            buf.limit(0);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!buf.hasRemaining()) {
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    int n = channel.read(buf, position);
+                    if (n < 0) {
+                        break;
+                    }
+                    position += n;
+                }
+                buf.flip();
+
+                if (buf.remaining() < RECORD) {
+                    return false;
+                }
+            }
+
+            cellFlag = buf.getLong();
+            claim = buf.getLong();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.locomizer.geoconv;
+
+/**
+ * Open-addressing map of H3 cell id to attribute row id, backed by primitive arrays. Striped into segments
+ * so that parallel polyfill workers rarely contend on the same lock. Cell id 0 is not a valid H3 index and
+ * marks an empty slot.
+ */
+public class CellStore {
+    public static final int ABSENT = -1;
+
+    static final int SEGMENTS = 64;
+    private static final float LOAD_FACTOR = 0.6F;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public CellStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    static int segment(long cell) {
+        return (int) (mix(cell) >>> 58);
+    }
+
+    public void put(long cell, int row) {
+        long hash = mix(cell);
+        segments[(int) (hash >>> 58)].put(cell, hash, row, true);
+    }
+
+    public void putIfAbsent(long cell, int row) {
+        long hash = mix(cell);
+        segments[(int) (hash >>> 58)].put(cell, hash, row, false);
+    }
+
+    public int get(long cell) {
+        long hash = mix(cell);
+        return segments[(int) (hash >>> 58)].get(cell, hash);
+    }
+
+    /**
+     * @return row of the removed cell, or {@link #ABSENT}
+     */
+    public int remove(long cell) {
+        long hash = mix(cell);
+        return segments[(int) (hash >>> 58)].remove(cell, hash);
+    }
+
+    public long size() {
+        long size = 0L;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public long capacity() {
+        long capacity = 0L;
+        for (Segment segment : segments) {
+            capacity += segment.keys.length;
+        }
+        return capacity;
+    }
+
+    public long memoryUsage() {
+        return capacity() * (Long.BYTES + Integer.BYTES);
+    }
+
+    public void forEach(CellConsumer consumer) {
+        for (Segment segment : segments) {
+            long[] keys = segment.keys;
+            int[] rows = segment.rows;
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0L) {
+                    consumer.accept(keys[i], rows[i]);
+                }
+            }
+        }
+    }
+
+    static long mix(long cell) {
+        long h = cell;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @FunctionalInterface
+    public interface CellConsumer {
+        void accept(long cell, int row);
+    }
+
+    private static class Segment {
+        private long[] keys = new long[1024];
+        private int[] rows = new int[1024];
+        private int size = 0;
+
+        private synchronized void put(long cell, long hash, int row, boolean replace) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+
+            while (keys[slot] != 0L) {
+                if (keys[slot] == cell) {
+                    if (replace) {
+                        rows[slot] = row;
+                    }
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = cell;
+            rows[slot] = row;
+
+            if (++size > keys.length * LOAD_FACTOR) {
+                grow();
+            }
+        }
+
+        private synchronized int get(long cell, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+
+            while (keys[slot] != 0L) {
+                if (keys[slot] == cell) {
+                    return rows[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            return ABSENT;
+        }
+
+        /**
+         * Empties the slot and shifts back the following cells of its probe run that may move closer to their
+         * home slot, so that lookups need no tombstones.
+         */
+        private synchronized int remove(long cell, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+
+            while (keys[slot] != cell) {
+                if (keys[slot] == 0L) {
+                    return ABSENT;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int row = rows[slot];
+            for (int next = (slot + 1) & mask; keys[next] != 0L; next = (next + 1) & mask) {
+                int home = (int) mix(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    rows[slot] = rows[next];
+                    slot = next;
+                }
+            }
+            keys[slot] = 0L;
+            size--;
+
+            return row;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldRows = rows;
+
+            keys = new long[oldKeys.length << 1];
+            rows = new int[oldKeys.length << 1];
+            int mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                long cell = oldKeys[i];
+                if (cell != 0L) {
+                    int slot = (int) mix(cell) & mask;
+                    while (keys[slot] != 0L) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = cell;
+                    rows[slot] = oldRows[i];
+                }
+            }
+        }
+    }
+}
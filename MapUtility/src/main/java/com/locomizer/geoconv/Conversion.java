@@ -0,0 +1,812 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.util.GeoCoord;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.locationtech.jts.geom.*;
+import org.wololo.geojson.Feature;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.locomizer.geoconv.Main.*;
+
+/**
+ * A single conversion between two formats with its options, parsed once from the command line syntax and
+ * runnable any number of times, from any number of threads, with a shared H3Core.
+ */
+@SuppressWarnings({"Duplicates"})
+public class Conversion {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+    private static final long DEFAULT_CACHE_MEGABYTES = 1024L;
+    private static final int PIPELINE_BATCHES = 4;
+    private static final List<Object> END = new ArrayList<>();
+
+    private final String in;
+    private final String out;
+    private final List<String> columns;
+    private final int minLev;
+    private final int maxLev;
+    private final int uncompact;
+    private final long splitCells;
+    private final List<String> dissolve;
+    private final boolean sequence;
+    private final int precision;
+    private final boolean memory;
+    private final CoverageCache cache;
+    private final String conflict;
+    private final String mode;
+    private final long spillCells;
+    private final File spillDir;
+    private final Scheduler scheduler;
+
+    /**
+     * @param input  input format as given on the command line, such as json or 'h3(_index,name)'
+     * @param output output format as given on the command line, such as kml or 'h3(6:9,_index,_res)'
+     * @param cmd       parsed options of {@link Main#options()}
+     * @param scheduler pool running the parallel work of the conversion
+     * @throws IllegalArgumentException if the formats or options are not valid
+     */
+    public Conversion(String input, String output, CommandLine cmd, Scheduler scheduler) {
+        in = input.toLowerCase();
+        if (!in.equals(JSON) && !in.equals(KML) && !isH3(in)) {
+            throw new IllegalArgumentException("Unknown input format " + input);
+        }
+
+        out = output.toLowerCase();
+        if (!out.equals(JSON) && !out.equals(KML) && !out.equals(FGB) && !isH3(out)) {
+            throw new IllegalArgumentException("Unknown output format " + output);
+        }
+
+        if (in.equals(out) || (isH3(in) && isH3(out))) {
+            throw new IllegalArgumentException("Input and output formats must be different");
+        }
+
+        List<String> columns = null;
+        int[] resolutions = {-1, -1};
+
+        if (isH3(in)) {
+            columns = columns(input);
+        }
+
+        if (isH3(out)) {
+            columns = columns(output);
+            resolutions = resolutions(output, columns.remove(0));
+        }
+
+        this.columns = columns;
+        minLev = resolutions[0];
+        maxLev = resolutions[1];
+
+        try {
+            uncompact = Integer.parseInt(cmd.getOptionValue(OPT_UNCOMPACT, "-1"));
+            splitCells = Long.parseLong(cmd.getOptionValue(OPT_SPLIT, String.valueOf(Coverage.DEFAULT_SPLIT_CELLS)));
+            precision = Integer.parseInt(cmd.getOptionValue(OPT_PRECISION, "-1"));
+            spillCells = Long.parseLong(cmd.getOptionValue(OPT_SPILL, "0"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+
+        if (cmd.hasOption(OPT_DISSOLVE) && isH3(in)) {
+            String by = cmd.getOptionValue(OPT_DISSOLVE);
+            dissolve = ALL.equals(by.trim())
+                    ? columns.stream().filter(col -> !col.equals(INDEX) && !col.equals(LEVEL) && !col.equals(UNDERSCORE)).collect(Collectors.toList())
+                    : Arrays.stream(by.split(COMMA_STR)).map(String::trim).collect(Collectors.toList());
+        } else {
+            dissolve = null;
+        }
+
+        spillDir = Main.spillDir(cmd);
+
+        this.scheduler = scheduler;
+        sequence = cmd.hasOption(OPT_GEOJSONSEQ);
+        memory = cmd.hasOption(OPT_MEMORY);
+
+        conflict = cmd.getOptionValue(OPT_CONFLICT, CellMerge.FIRST);
+        CellMerge.validate(conflict);
+        if (conflict.equals(CellMerge.ALL) && out.startsWith(H_3B)) {
+            throw new IllegalArgumentException("Conflict policy " + CellMerge.ALL + " needs h3 output, as h3b holds one row per cell");
+        }
+
+        mode = cmd.getOptionValue(OPT_COVERAGE, Coverage.RING);
+        Coverage.validate(mode);
+
+        if (cmd.hasOption(OPT_CACHE) && isH3(out)) {
+            try {
+                long megabytes = Long.parseLong(cmd.getOptionValue(OPT_CACHE_SIZE, String.valueOf(DEFAULT_CACHE_MEGABYTES)));
+                cache = CoverageCache.open(new File(cmd.getOptionValue(OPT_CACHE)), megabytes << 20);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot open coverage cache " + cmd.getOptionValue(OPT_CACHE) + ": " + e.getMessage(), e);
+            }
+        } else {
+            cache = null;
+        }
+    }
+
+    /**
+     * Resolution range of an H3 output format, given by its first column such as 9 or 6:9, lowest first.
+     */
+    static int[] resolutions(String output, String column) {
+        int[] resolutions = {-1, -1};
+
+        Matcher m = Pattern.compile("(\\d+)").matcher(column);
+        if (m.find()) {
+            resolutions[0] = Integer.parseInt(m.group(1));
+            if (m.find()) {
+                resolutions[1] = Integer.parseInt(m.group(1));
+            }
+        } else {
+            throw new IllegalArgumentException("Output resolution is missing in " + output);
+        }
+
+        for (int resolution : resolutions) {
+            if (resolution > 15) {
+                throw new IllegalArgumentException("Resolution must be in the range of 0 to 15");
+            }
+        }
+
+        Arrays.sort(resolutions);
+
+        return (resolutions[0] < 0) ? new int[]{resolutions[1], resolutions[1]} : resolutions;
+    }
+
+    static List<String> columns(String format) {
+        List<String> columns = Arrays.stream(format.substring(format.indexOf('(') + 1, format.length() - 1).split(COMMA_STR))
+                .map(String::trim)
+                .collect(Collectors.toList());
+
+        if (columns.isEmpty() || !columns.contains(INDEX)) {
+            throw new IllegalArgumentException("Attribute " + INDEX + " is missing in " + format);
+        }
+        return columns;
+    }
+
+    public static boolean isH3(String format) {
+        return format.startsWith(H_3) || format.startsWith(H_3B);
+    }
+
+    public String input() {
+        return in;
+    }
+
+    public String output() {
+        return out;
+    }
+
+    List<String> columns() {
+        return columns;
+    }
+
+    String conflict() {
+        return conflict;
+    }
+
+    Scheduler scheduler() {
+        return scheduler;
+    }
+
+    int minRes() {
+        return minLev;
+    }
+
+    int maxRes() {
+        return maxLev;
+    }
+
+    public void run(H3Core h3core, File inFile, File outFile, Metrics metrics) throws Exception {
+        run(h3core, isH3(in) ? null : new FileInputStream(inFile), inFile, () -> new FileOutputStream(outFile), outFile, metrics);
+    }
+
+    /**
+     * Converts a stream, for any format but the binary H3 coverage, which is memory mapped and needs a file.
+     * Both streams are closed.
+     */
+    public void run(H3Core h3core, InputStream input, OutputStream output, Metrics metrics) throws Exception {
+        if (in.startsWith(H_3B) || out.startsWith(H_3B)) {
+            throw new IllegalArgumentException("Binary H3 coverage can only be read from and written to a file");
+        }
+
+        run(h3core, input, null, () -> output, null, metrics);
+    }
+
+    /**
+     * The output is opened once there is something to write, so that a failed read does not leave an empty file.
+     */
+    private void run(H3Core h3core, InputStream input, File inFile, Callable<OutputStream> output, File outFile, Metrics metrics) throws Exception {
+        scheduler.call(() -> {
+            if (isH3(out)) {
+                cover(h3core, input, output, outFile, metrics);
+            } else {
+                write(read(h3core, input, inFile, metrics), output, metrics);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Covers the features of the input while it is read. A reader thread scans batches of features into a bounded
+     * queue, and each round parses the batches queued since the last one and covers their features, most costly
+     * first, so that reading overlaps covering and the cover stage starts with the first batch. Claims are merged
+     * and written once the input is done.
+     */
+    private void cover(H3Core h3core, InputStream input, Callable<OutputStream> output, File outFile, Metrics metrics) throws Exception {
+        FeatureStore features = new FeatureStore();
+        CellStore hashes = new CellStore();
+        AttributeTable attributes = new AttributeTable();
+
+        Coverage coverage = coverage(h3core, metrics);
+        CellMerge merge = new CellMerge(conflict, features, h3core);
+        CellSpill spill = (spillCells > 0L) ? new CellSpill(spillCells, scheduler.threads(), spillDir) : null;
+        Map<Thread, CellMerge.Claims> buffers = new ConcurrentHashMap<>();
+
+        metrics.stage("read");
+
+        BlockingQueue<List<?>> queue = new ArrayBlockingQueue<>(PIPELINE_BATCHES);
+        Throwable[] failure = {null};
+        Thread reader = new Thread(() -> {
+            try {
+                scan(input, batch -> {
+                    try {
+                        queue.put(batch);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("Reading was cancelled");
+                    }
+                });
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+
+            try {
+                queue.put(END);
+            } catch (InterruptedException ignore) {
+            }
+        }, "Reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            int[][] rows = new int[0][];
+            for (boolean reading = true; reading; ) {
+                List<List<?>> batches = new ArrayList<>();
+                batches.add(Scheduler.take(queue));
+                queue.drainTo(batches);
+
+                int from = features.size();
+                for (List<?> batch : batches) {
+                    if (batch == END) {
+                        reading = false;
+                    } else {
+                        parse(features, batch, metrics);
+                    }
+                }
+
+                if (!reading) {
+                    if (failure[0] instanceof Exception) {
+                        throw (Exception) failure[0];
+                    }
+                    if (failure[0] != null) {
+                        throw (Error) failure[0];
+                    }
+                }
+                metrics.stage("cover");
+
+                if (rows.length < features.size()) {
+                    rows = Arrays.copyOf(rows, Math.max(features.size(), 2 * rows.length));
+                }
+                long[] costs = new long[features.size() - from];
+                for (int i = from; i < features.size(); i++) {
+                    rows[i] = rows(features, i, attributes);
+                    costs[i - from] = cost(coverage, features, i);
+                }
+
+                int[][] featureRows = rows;
+                scheduler.run("cover", costs, k -> {
+                    int owner = from + k;
+                    CellMerge.Claims buffer = buffers.computeIfAbsent(Thread.currentThread(), t -> (spill != null) ? spill.buffer() : merge.buffer());
+                    cover(coverage, h3core, features, owner, featureRows[owner], metrics,
+                            (hash, row) -> buffer.add(hash, owner, row, true),
+                            (hash, row) -> buffer.add(hash, owner, row, false));
+                }, metrics);
+            }
+
+            metrics.count("geometries", features.size());
+            metrics.count("coordinates", features.coordinates());
+
+            if (cache != null) {
+                metrics.count("cache.entries", cache.size());
+                metrics.count("cache.bytes", cache.bytes());
+            }
+
+            if (spill != null) {
+                metrics.count("runs.spilled", spill.spilled());
+                metrics.stage("write");
+                writeSpilled(spill, merge, output, outFile, hashes, attributes, metrics);
+            } else {
+                metrics.stage("merge");
+                metrics.count("cells.conflicts", merge.merge(hashes));
+
+                metrics.stage("write");
+                metrics.count("cells.written", hashes.size());
+
+                if (out.startsWith(H_3B)) {
+                    BinaryCoverage.write(outFile, hashes, attributes, columns, minLev, maxLev);
+                } else {
+                    writeCsv(output.call(), hashes, merge.shared(), attributes, columns);
+                }
+            }
+            metrics.count("attribute.rows", attributes.size());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            reader.interrupt();
+            reader.join();
+            if (spill != null) {
+                spill.close();
+            }
+        }
+
+        if (memory) {
+            Runtime runtime = Runtime.getRuntime();
+            System.err.println("H3 cells: " + hashes.size()
+                    + ", cell store: " + hashes.memoryUsage() + " bytes in " + hashes.capacity() + " slots"
+                    + ", attribute rows: " + attributes.size()
+                    + ", heap used: " + (runtime.totalMemory() - runtime.freeMemory()) + " of " + runtime.maxMemory() + " bytes");
+        }
+    }
+
+    /**
+     * Estimated cost of covering a feature: the cells of a polygon at the highest resolution plus its vertices.
+     */
+    private long cost(Coverage coverage, FeatureStore features, int feature) {
+        if (features.type(feature) != FeatureStore.POLYGON) {
+            return 1L;
+        }
+        return coverage.estimate(features.area(feature), features.envelope(feature).centre().y, maxLev) + features.points(feature);
+    }
+
+    private void write(FeatureStore features, Callable<OutputStream> output, Metrics metrics) throws Exception {
+        metrics.stage("write");
+
+        if (KML.equals(out)) {
+            try (KMLStreamWriter writer = new KMLStreamWriter(output.call(), precision)) {
+                IntStream.range(0, features.size()).parallel()
+                        .forEach(i -> writer.write(features.geometry(i), features.properties(i)));
+            }
+        }
+
+        if (JSON.equals(out)) {
+            try (GeoJSONStreamWriter writer = new GeoJSONStreamWriter(output.call(), sequence, precision)) {
+                IntStream.range(0, features.size()).parallel()
+                        .forEach(i -> writer.write(features.geometry(i), features.properties(i)));
+            }
+        }
+
+        if (FGB.equals(out)) {
+            try (FlatGeobufWriter writer = new FlatGeobufWriter(output.call(), precision, spillDir)) {
+                IntStream.range(0, features.size()).parallel()
+                        .forEach(i -> writer.write(features.geometry(i), features.properties(i)));
+            }
+        }
+    }
+
+    /**
+     * Merges spilled claims in cell order and streams the winning rows to the output, or to the cell store for
+     * h3b output, which is written from memory.
+     */
+    private void writeSpilled(CellSpill spill, CellMerge merge, Callable<OutputStream> output, File outFile, CellStore hashes,
+                              AttributeTable attributes, Metrics metrics) throws Exception {
+        long[] counts = {0L, 0L};
+
+        if (out.startsWith(H_3B)) {
+            spill.merge((cell, cells, claims) -> {
+                if (merge.resolve(cell, cells, claims, hashes::put)) {
+                    counts[0]++;
+                }
+            });
+            BinaryCoverage.write(outFile, hashes, attributes, columns, minLev, maxLev);
+            counts[1] = hashes.size();
+        } else {
+            try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(output.call(), StandardCharsets.UTF_8), 4096 * 1024), CSVFormat.EXCEL.withDelimiter(COMMA))) {
+                spill.merge((cell, cells, claims) -> {
+                    if (merge.resolve(cell, cells, claims, (hash, row) -> {
+                        try {
+                            print(printer, hash, attributes.get(row), columns);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })) {
+                        counts[0]++;
+                    }
+                    counts[1]++;
+                });
+            }
+        }
+
+        metrics.count("cells.conflicts", counts[0]);
+        metrics.count("cells.written", counts[1]);
+    }
+
+    /**
+     * Reads the input into its flattened polygons and points with their attributes. H3 input is read from the file
+     * if there is one, and from the stream otherwise. The stream is closed.
+     */
+    FeatureStore read(H3Core h3core, InputStream input, File inFile, Metrics metrics) throws Exception {
+        FeatureStore features = new FeatureStore();
+
+        metrics.stage("read");
+
+        if (!isH3(in)) {
+            scan(input, batch -> parse(features, batch, metrics));
+        }
+
+        if (isH3(in)) {
+            Map<Map<String, Object>, LongList> groups = new ConcurrentHashMap<>();
+
+            BiConsumer<Long, Map<String, Object>> cell = (hash, props) -> {
+                metrics.count("cells.read", 1L);
+
+                if (dissolve != null) {
+                    Map<String, Object> key = new HashMap<>();
+                    for (String col : dissolve) {
+                        key.put(col, props.get(col));
+                    }
+
+                    LongList cells = groups.computeIfAbsent(key, k -> new LongList());
+                    synchronized (cells) {
+                        if ((uncompact >= 0) && (h3core.h3GetResolution(hash) < uncompact)) {
+                            h3core.h3ToChildren(hash, uncompact).forEach(cells::add);
+                        } else {
+                            cells.add(hash);
+                        }
+                    }
+                } else if ((uncompact >= 0) && (h3core.h3GetResolution(hash) < uncompact)) {
+                    for (Long child : h3core.h3ToChildren(hash, uncompact)) {
+                        Map<String, Object> cp = new HashMap<>(props);
+                        if (cp.containsKey(INDEX)) {
+                            cp.put(INDEX, Long.toHexString(child));
+                        }
+                        if (cp.containsKey(LEVEL)) {
+                            cp.put(LEVEL, String.valueOf(uncompact));
+                        }
+
+                        features.polygon(new double[][]{boundary(h3core, child)}, cp);
+                    }
+                } else {
+                    features.polygon(new double[][]{boundary(h3core, hash)}, props);
+                }
+            };
+
+            if (in.startsWith(H_3B)) {
+                try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(inFile)) {
+                    reader.forEach((hash, row) -> {
+                        Map<String, Object> stored = reader.attributes(row);
+
+                        Map<String, Object> props = new HashMap<>();
+                        for (String col : columns) {
+                            if (col.equals(INDEX)) {
+                                props.put(col, Long.toHexString(hash));
+                            } else if (col.equals(LEVEL) && !stored.containsKey(LEVEL)) {
+                                props.put(col, String.valueOf(BinaryCoverage.resolution(hash)));
+                            } else if (!col.equals(UNDERSCORE)) {
+                                props.put(col, stored.get(col));
+                            }
+                        }
+
+                        cell.accept(hash, props);
+                    });
+                }
+            } else if (inFile != null) {
+                metrics.count("chunks.read", new H3CsvReader(inFile, columns).read(cell));
+            } else {
+                try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 4096 * 1024), CSVFormat.EXCEL.withDelimiter(COMMA))) {
+                    StreamSupport.stream(parser.spliterator(), true)
+                            .forEach(rec -> {
+                                Map<String, Object> props = new HashMap<>();
+
+                                Long hash = null;
+                                for (int i = columns.size(); i > 0; ) {
+                                    String col = columns.get(--i);
+
+                                    if (!col.equals(UNDERSCORE)) {
+                                        String c = rec.get(i);
+                                        if (col.equals(INDEX)) {
+                                            hash = Long.parseLong(c, 16);
+                                        }
+                                        props.put(col, c);
+                                    }
+                                }
+
+                                cell.accept(hash, props);
+                            });
+                }
+            }
+
+            if (dissolve != null) {
+                metrics.stage("dissolve");
+                Dissolve dissolver = new Dissolve(h3core);
+
+                groups.entrySet().parallelStream()
+                        .forEach(group -> features.add(dissolver.dissolve(group.getValue().sortedDistinct()), group.getKey()));
+            }
+        }
+
+        metrics.count("geometries", features.size());
+        metrics.count("coordinates", features.coordinates());
+        return features;
+    }
+
+    /**
+     * Reads GeoJSON Features or KML Placemarks in batches of {@link Main#FEATURE_BATCH}, not yet parsed into
+     * geometries. The stream is closed.
+     */
+    private void scan(InputStream input, Consumer<List<?>> consumer) throws Exception {
+        if (JSON.equals(in)) {
+            try (GeoJSONStreamReader stream = new GeoJSONStreamReader(input)) {
+                stream.read(FEATURE_BATCH, consumer::accept);
+            }
+        }
+
+        if (KML.equals(in)) {
+            try (KMLStreamReader stream = new KMLStreamReader(input)) {
+                stream.read(FEATURE_BATCH, consumer::accept);
+            }
+        }
+    }
+
+    /**
+     * Parses a batch of {@link #scan} in parallel and adds its features to the store in input order.
+     */
+    private static void parse(FeatureStore features, List<?> batch, Metrics metrics) {
+        ordered(features, batch.parallelStream().map(item -> {
+            FeatureStore parsed = new FeatureStore(features.attributes());
+            if (item instanceof Feature) {
+                feature(parsed, (Feature) item);
+            } else {
+                placemark(parsed, (KMLStreamReader.Placemark) item);
+            }
+            return parsed;
+        }));
+        metrics.count("features.read", batch.size());
+    }
+
+    /**
+     * Adds features parsed in parallel to the store in input order.
+     */
+    private static void ordered(FeatureStore features, Stream<FeatureStore> parsed) {
+        parsed.collect(Collectors.toList()).forEach(features::addAll);
+    }
+
+    Coverage coverage(H3Core h3core, Metrics metrics) {
+        return new Coverage(h3core, splitCells, metrics, cache, mode);
+    }
+
+    /**
+     * Interns the attribute rows a geometry writes: one per output resolution for a polygon, one for a point.
+     */
+    int[] rows(FeatureStore features, int feature, AttributeTable attributes) {
+        Map<String, Object> props = features.properties(feature);
+        if (features.type(feature) != FeatureStore.POLYGON) {
+            return new int[]{attributes.intern(props)};
+        }
+
+        int[] rows = new int[maxLev - minLev + 1];
+        for (int level = minLev; level <= maxLev; level++) {
+            Map<String, Object> np = new HashMap<>(props);
+            np.put(LEVEL, level);
+            rows[level - minLev] = attributes.intern(np);
+        }
+        return rows;
+    }
+
+    /**
+     * Covers a polygon or a point at the output resolutions with the rows of {@link #rows}. Interior cells and
+     * points are passed to the first consumer, and ring cells to the second.
+     */
+    void cover(Coverage coverage, H3Core h3core, FeatureStore features, int feature, int[] rows, Metrics metrics,
+               CellStore.CellConsumer interior, CellStore.CellConsumer boundary) {
+        if (features.type(feature) == FeatureStore.POLYGON) {
+            long[] cells = {0L};
+            long start = metrics.start();
+            coverage.cover((Polygon) features.geometry(feature), minLev, maxLev, (hash, level, inside) -> {
+                cells[0]++;
+                if (inside) {
+                    interior.accept(hash, rows[level - minLev]);
+                } else {
+                    boundary.accept(hash, rows[level - minLev]);
+                }
+            });
+            long nanos = metrics.stop("cover.polygon", start);
+
+            metrics.count("polygons", 1L);
+            metrics.record("cover.polygon.micros", nanos / 1000L);
+            metrics.record("cover.polygon.cells", cells[0]);
+            metrics.feature(nanos, cells[0], features.points(feature), features.properties(feature));
+        }
+
+        if (features.type(feature) == FeatureStore.POINT) {
+            interior.accept(h3core.geoToH3(features.y(feature), features.x(feature), maxLev), rows[0]);
+            metrics.count("points", 1L);
+        }
+    }
+
+    public static void writeCsv(OutputStream output, CellStore hashes, AttributeTable attributes, List<String> columns) throws IOException {
+        writeCsv(output, hashes, Collections.emptyMap(), attributes, columns);
+    }
+
+    /**
+     * @param shared further attribute rows of cells, each written as a line of its own after the row in the store
+     */
+    public static void writeCsv(OutputStream output, CellStore hashes, Map<Long, int[]> shared, AttributeTable attributes, List<String> columns) throws IOException {
+        try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 4096 * 1024), CSVFormat.EXCEL.withDelimiter(COMMA))) {
+            hashes.forEach((hash, row) -> {
+                try {
+                    print(printer, hash, attributes.get(row), columns);
+
+                    int[] others = shared.get(hash);
+                    if (others != null) {
+                        for (int other : others) {
+                            print(printer, hash, attributes.get(other), columns);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    static void print(CSVPrinter printer, long hash, Map<String, Object> props, List<String> columns) throws IOException {
+        for (String col : columns) {
+            if (INDEX.equals(col)) {
+                printer.print(Long.toHexString(hash));
+            } else {
+                printer.print(props.get(col));
+            }
+        }
+        printer.println();
+    }
+
+    /**
+     * Closed boundary ring of a cell as alternating longitudes and latitudes.
+     */
+    public static double[] boundary(H3Core h3core, long hash) {
+        List<GeoCoord> geo = h3core.h3ToGeoBoundary(hash);
+
+        double[] ring = new double[2 * (geo.size() + 1)];
+        for (int i = 0; i < geo.size(); i++) {
+            GeoCoord c = geo.get(i);
+            ring[2 * i] = c.lng;
+            ring[2 * i + 1] = c.lat;
+        }
+        ring[2 * geo.size()] = ring[0];
+        ring[2 * geo.size() + 1] = ring[1];
+
+        return ring;
+    }
+
+    public static Polygon hexagon(H3Core h3core, long hash) {
+        List<GeoCoord> geo = h3core.h3ToGeoBoundary(hash);
+
+        Coordinate[] ring = new Coordinate[geo.size() + 1];
+        for (int i = 0; i < geo.size(); i++) {
+            GeoCoord c = geo.get(i);
+            ring[i] = new Coordinate(c.lng, c.lat);
+        }
+        ring[geo.size()] = new Coordinate(ring[0]);
+
+        return FACTORY.createPolygon(ring);
+    }
+
+    public static void feature(FeatureStore result, Feature feature) {
+        org.wololo.geojson.Geometry geometry = feature.getGeometry();
+
+        Map<String, Object> fp = feature.getProperties();
+
+        if (geometry instanceof org.wololo.geojson.Polygon) {
+            result.polygon(rings(((org.wololo.geojson.Polygon) geometry).getCoordinates()), fp);
+        }
+
+        if (geometry instanceof org.wololo.geojson.Point) {
+            double[] c = ((org.wololo.geojson.Point) geometry).getCoordinates();
+            result.point(c[0], c[1], fp);
+        }
+
+        if (geometry instanceof org.wololo.geojson.MultiPolygon) {
+            for (double[][][] p : ((org.wololo.geojson.MultiPolygon) geometry).getCoordinates()) {
+                result.polygon(rings(p), fp);
+            }
+        }
+
+        if (geometry instanceof org.wololo.geojson.MultiPoint) {
+            for (double[] c : ((org.wololo.geojson.MultiPoint) geometry).getCoordinates()) {
+                result.point(c[0], c[1], fp);
+            }
+        }
+    }
+
+    private static double[][] rings(double[][][] positions) {
+        double[][] rings = new double[positions.length][];
+        for (int r = 0; r < positions.length; r++) {
+            rings[r] = new double[2 * positions[r].length];
+            for (int i = 0; i < positions[r].length; i++) {
+                rings[r][2 * i] = positions[r][i][0];
+                rings[r][2 * i + 1] = positions[r][i][1];
+            }
+        }
+        return rings;
+    }
+
+    public static void placemark(FeatureStore result, KMLStreamReader.Placemark pm) {
+        for (KMLStreamReader.Shape shape : pm.shapes) {
+            geometry(result, shape, pm.properties);
+        }
+    }
+
+    private static void geometry(FeatureStore result, KMLStreamReader.Shape shape, Map<String, Object> properties) {
+        switch (shape.type) {
+            case KMLStreamReader.POLYGON: {
+                double[][] rings = new double[shape.rings.size()][];
+                for (int i = 0; i < rings.length; i++) {
+                    rings[i] = coordinates(shape.rings.get(i));
+                }
+
+                result.polygon(rings, properties);
+                break;
+            }
+            case KMLStreamReader.LINEAR_RING: {
+                result.polygon(new double[][]{coordinates(shape.rings.get(0))}, properties);
+                break;
+            }
+            case KMLStreamReader.POINT: {
+                double[] cc = coordinates(shape.rings.get(0));
+                if (cc.length > 0) {
+                    result.point(cc[0], cc[1], properties);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Longitudes and latitudes of a KML coordinates string, alternating.
+     */
+    private static double[] coordinates(String coordinates) {
+        double[] lco = new double[16];
+        int n = 0;
+
+        StringTokenizer tuples = new StringTokenizer(coordinates);
+        while (tuples.hasMoreTokens()) {
+            String tuple = tuples.nextToken();
+
+            int comma = tuple.indexOf(COMMA);
+            int end = tuple.indexOf(COMMA, comma + 1);
+            if (n + 2 > lco.length) {
+                lco = Arrays.copyOf(lco, lco.length << 1);
+            }
+            lco[n++] = Double.parseDouble(tuple.substring(0, comma));
+            lco[n++] = Double.parseDouble((end < 0) ? tuple.substring(comma + 1) : tuple.substring(comma + 1, end));
+        }
+
+        return Arrays.copyOf(lco, n);
+    }
+}
@@ -0,0 +1,444 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.AreaUnit;
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import com.uber.h3core.exceptions.DistanceUndefinedException;
+import com.uber.h3core.util.GeoCoord;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * H3 coverage engine. The finest resolution is polyfilled once and extended by a one-cell ring, and coarser
+ * resolutions are derived from it with H3 compact, clamped to the coarsest requested resolution. Polygons that
+ * are estimated to cover many cells are halved along their longer side into tiles that are polyfilled by
+ * a fork-join task tree. H3 polyfill underestimates the k-ring radius of a bounding box and may miss cells near
+ * its corners, so tiles are kept close to square in meters and are filled by a k-ring sized by the hex distance
+ * to the tile corners, filtered by cell center. Adjacent tiles overlap by a hair so that cells centered on a cut
+ * are not lost to rounding.
+ * <p>
+ * The mode selects which cells of the finest resolution cover a polygon:
+ * <pre>
+ * ring         cells whose center is inside, and the cells around them as ring cells
+ * center       cells whose center is inside
+ * intersects   cells that intersect the polygon, those whose center is outside as ring cells
+ * contains     cells that lie entirely inside the polygon
+ * </pre>
+ * The ring mode looks at the neighbours of every filled cell. The other modes look only at the cells along the
+ * polygon rings, found by tracing the rings in steps shorter than a cell edge, and classify them against the
+ * prepared polygon, since any other cell is either entirely inside or entirely outside.
+ */
+public class Coverage {
+    public static final long DEFAULT_SPLIT_CELLS = 50000L;
+
+    public static final String RING = "ring";
+    public static final String CENTER = "center";
+    public static final String INTERSECTS = "intersects";
+    public static final String CONTAINS = "contains";
+
+    private static final int MAX_SPLIT_DEPTH = 24;
+    private static final double MAX_TILE_ASPECT = 2.D;
+    private static final double TILE_OVERLAP = 1.E-7D;
+    private static final int RING_CHUNK = 4096;
+    private static final double METERS_PER_DEGREE = 111320.D;
+    private static final double TRACE_STEP_EDGES = 0.25D;
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private final H3Core h3core;
+    private final long splitCells;
+    private final Metrics metrics;
+    private final CoverageCache cache;
+    private final String mode;
+
+    public Coverage(H3Core h3core) {
+        this(h3core, DEFAULT_SPLIT_CELLS);
+    }
+
+    public Coverage(H3Core h3core, long splitCells) {
+        this(h3core, splitCells, new Metrics());
+    }
+
+    /**
+     * @param splitCells polygons estimated to cover more cells than this are split into tiles that are polyfilled
+     *                   in parallel fork-join tasks; 0 disables splitting
+     * @param metrics    receives polyfill, ring and compact timers and the tile count
+     */
+    public Coverage(H3Core h3core, long splitCells, Metrics metrics) {
+        this(h3core, splitCells, metrics, null);
+    }
+
+    /**
+     * @param cache coverages of unchanged polygons are read from it instead of being polyfilled; may be null
+     */
+    public Coverage(H3Core h3core, long splitCells, Metrics metrics, CoverageCache cache) {
+        this(h3core, splitCells, metrics, cache, RING);
+    }
+
+    /**
+     * @param mode one of the modes above
+     */
+    public Coverage(H3Core h3core, long splitCells, Metrics metrics, CoverageCache cache, String mode) {
+        validate(mode);
+
+        this.h3core = h3core;
+        this.splitCells = splitCells;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.mode = mode;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the mode is not one of the above
+     */
+    public static void validate(String mode) {
+        if (!mode.equals(RING) && !mode.equals(CENTER) && !mode.equals(INTERSECTS) && !mode.equals(CONTAINS)) {
+            throw new IllegalArgumentException("Unknown coverage mode " + mode);
+        }
+    }
+
+    public long[] polyfill(Polygon polygon, int resolution) {
+        long start = metrics.start();
+        try {
+            if ((splitCells > 0L) && (estimate(polygon, resolution) > splitCells)) {
+                return new Tile(polygon, resolution, 0).invoke();
+            }
+
+            return direct(polygon, resolution);
+        } finally {
+            metrics.stop("coverage.polyfill.res" + resolution, start);
+        }
+    }
+
+    public long estimate(Polygon polygon, int resolution) {
+        return estimate(polygon.getArea(), polygon.getEnvelopeInternal().centre().y, resolution);
+    }
+
+    /**
+     * @param degrees  planar area in square degrees
+     * @param latitude latitude of the envelope center
+     */
+    public long estimate(double degrees, double latitude, int resolution) {
+        double area = degrees * METERS_PER_DEGREE * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+
+        return (long) (area / h3core.hexArea(resolution, AreaUnit.m2));
+    }
+
+    private long[] direct(Polygon polygon, int resolution) {
+        long[] polyfill = h3core.polyfill(shell(polygon), holes(polygon), resolution).stream()
+                .mapToLong(Long::longValue)
+                .toArray();
+        Arrays.sort(polyfill);
+
+        return polyfill;
+    }
+
+    public void cover(Polygon polygon, int minRes, int maxRes, CellSink sink) {
+        if (cache == null) {
+            compute(polygon, minRes, maxRes, sink);
+            return;
+        }
+
+        String key = cache.key(polygon, minRes, maxRes, mode);
+        long[] cached = cache.get(key);
+        if (cached != null) {
+            metrics.count("cache.hits", 1L);
+            for (long cell : cached) {
+                long hash = cell & ~CoverageCache.INTERIOR;
+                sink.accept(hash, BinaryCoverage.resolution(hash), (cell & CoverageCache.INTERIOR) != 0L);
+            }
+            return;
+        }
+
+        metrics.count("cache.misses", 1L);
+        LongList cells = new LongList();
+        compute(polygon, minRes, maxRes, (hash, res, interior) -> {
+            cells.add(interior ? (hash | CoverageCache.INTERIOR) : hash);
+            sink.accept(hash, res, interior);
+        });
+
+        try {
+            metrics.count("cache.evictions", cache.put(key, cells.toArray()));
+        } catch (IOException e) {
+            metrics.count("cache.errors", 1L);
+        }
+    }
+
+    private void compute(Polygon polygon, int minRes, int maxRes, CellSink sink) {
+        long[] fill = polyfill(polygon, maxRes);
+        long[] ring;
+
+        long start = metrics.start();
+        if (mode.equals(RING)) {
+            ring = ring(fill);
+            metrics.stop("coverage.ring", start);
+        } else if (mode.equals(CENTER)) {
+            ring = new long[0];
+        } else {
+            long[] boundary = boundary(polygon, maxRes);
+            metrics.count("coverage.boundary.cells", boundary.length);
+
+            PreparedGeometry prepared = PreparedGeometryFactory.prepare(polygon);
+            long[] centered = fill;
+            if (mode.equals(INTERSECTS)) {
+                ring = classify(boundary, hash -> (Arrays.binarySearch(centered, hash) < 0)
+                        && prepared.intersects(Conversion.hexagon(h3core, hash)));
+            } else {
+                long[] crossing = classify(boundary, hash -> (Arrays.binarySearch(centered, hash) >= 0)
+                        && !prepared.contains(Conversion.hexagon(h3core, hash)));
+                fill = subtract(fill, crossing);
+                ring = new long[0];
+            }
+            metrics.stop("coverage.boundary", start);
+        }
+
+        if (minRes >= maxRes) {
+            for (long hash : fill) {
+                sink.accept(hash, maxRes, true);
+            }
+            for (long hash : ring) {
+                sink.accept(hash, maxRes, false);
+            }
+            return;
+        }
+
+        start = metrics.start();
+        List<Long> all = new ArrayList<>(fill.length + ring.length);
+        for (long hash : fill) {
+            all.add(hash);
+        }
+        for (long hash : ring) {
+            all.add(hash);
+        }
+
+        for (Long hash : h3core.compact(all)) {
+            int res = h3core.h3GetResolution(hash);
+
+            if (res == maxRes) {
+                sink.accept(hash, res, Arrays.binarySearch(fill, hash) >= 0);
+            } else if (res < minRes) {
+                for (Long child : h3core.h3ToChildren(hash, minRes)) {
+                    sink.accept(child, minRes, true);
+                }
+            } else {
+                sink.accept(hash, res, true);
+            }
+        }
+        metrics.stop("coverage.compact", start);
+    }
+
+    /**
+     * Cells along the polygon rings and their neighbours, which hold every cell the rings pass through.
+     */
+    private long[] boundary(Polygon polygon, int resolution) {
+        double step = TRACE_STEP_EDGES * h3core.edgeLength(resolution, LengthUnit.m) / METERS_PER_DEGREE;
+
+        LongList traced = new LongList();
+        for (int r = 0; r <= polygon.getNumInteriorRing(); r++) {
+            Coordinate[] ring = ((r == 0) ? polygon.getExteriorRing() : polygon.getInteriorRingN(r - 1)).getCoordinates();
+
+            for (int i = 0; i + 1 < ring.length; i++) {
+                Coordinate a = ring[i];
+                Coordinate b = ring[i + 1];
+                int steps = (int) Math.ceil(a.distance(b) / step);
+
+                for (int k = 0; k <= steps; k++) {
+                    double f = (steps == 0) ? 0.D : (double) k / steps;
+                    traced.add(h3core.geoToH3(a.y + f * (b.y - a.y), a.x + f * (b.x - a.x), resolution));
+                }
+            }
+        }
+
+        LongList boundary = new LongList();
+        for (long hash : traced.sortedDistinct()) {
+            for (Long n : h3core.kRing(hash, 1)) {
+                boundary.add(n);
+            }
+        }
+        return boundary.sortedDistinct();
+    }
+
+    /**
+     * Sorted cells of the given sorted ones that pass the test, tested in parallel chunks if there are many.
+     */
+    private long[] classify(long[] cells, LongPredicate test) {
+        if ((splitCells <= 0L) || (cells.length <= RING_CHUNK)) {
+            return Arrays.stream(cells).filter(test).toArray();
+        }
+        return Arrays.stream(cells).parallel().filter(test).toArray();
+    }
+
+    /**
+     * Sorted cells of the first sorted array that are not in the second one.
+     */
+    private static long[] subtract(long[] cells, long[] minus) {
+        long[] result = new long[cells.length];
+        int n = 0;
+        for (int i = 0, j = 0; i < cells.length; i++) {
+            while ((j < minus.length) && (minus[j] < cells[i])) {
+                j++;
+            }
+            if ((j == minus.length) || (minus[j] != cells[i])) {
+                result[n++] = cells[i];
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private long[] located(Polygon polygon, int resolution) {
+        Envelope env = polygon.getEnvelopeInternal();
+        Coordinate c = env.centre();
+        long center = h3core.geoToH3(c.y, c.x, resolution);
+
+        int radius = 0;
+        try {
+            for (Coordinate corner : new Coordinate[]{
+                    new Coordinate(env.getMinX(), env.getMinY()),
+                    new Coordinate(env.getMinX(), env.getMaxY()),
+                    new Coordinate(env.getMaxX(), env.getMinY()),
+                    new Coordinate(env.getMaxX(), env.getMaxY())}) {
+                radius = Math.max(radius, h3core.h3Distance(center, h3core.geoToH3(corner.y, corner.x, resolution)));
+            }
+        } catch (DistanceUndefinedException e) {
+            return direct(polygon, resolution);
+        }
+
+        IndexedPointInAreaLocator locator = new IndexedPointInAreaLocator(polygon);
+        LongList fill = new LongList();
+        for (Long hash : h3core.kRing(center, radius + 1)) {
+            GeoCoord g = h3core.h3ToGeo(hash);
+            if (locator.locate(new Coordinate(g.lng, g.lat)) == Location.INTERIOR) {
+                fill.add(hash);
+            }
+        }
+
+        return fill.sortedDistinct();
+    }
+
+    private long[] ring(long[] fill) {
+        if ((splitCells <= 0L) || (fill.length <= splitCells)) {
+            return ring(fill, 0, fill.length).sortedDistinct();
+        }
+
+        LongList ring = new LongList();
+        IntStream.range(0, (fill.length + RING_CHUNK - 1) / RING_CHUNK).parallel()
+                .mapToObj(chunk -> ring(fill, chunk * RING_CHUNK, Math.min(fill.length, (chunk + 1) * RING_CHUNK)))
+                .forEachOrdered(part -> {
+                    for (int i = 0; i < part.size(); i++) {
+                        ring.add(part.get(i));
+                    }
+                });
+
+        return ring.sortedDistinct();
+    }
+
+    private LongList ring(long[] fill, int from, int to) {
+        LongList ring = new LongList();
+
+        for (int i = from; i < to; i++) {
+            for (Long n : h3core.kRing(fill[i], 1)) {
+                if (Arrays.binarySearch(fill, n) < 0) {
+                    ring.add(n);
+                }
+            }
+        }
+
+        return ring;
+    }
+
+    public static List<GeoCoord> shell(Polygon polygon) {
+        return geoCoords(polygon.getExteriorRing().getCoordinates());
+    }
+
+    public static List<List<GeoCoord>> holes(Polygon polygon) {
+        List<List<GeoCoord>> holes = new ArrayList<>();
+        for (int i = polygon.getNumInteriorRing(); i > 0; ) {
+            holes.add(geoCoords(polygon.getInteriorRingN(--i).getCoordinates()));
+        }
+        return holes;
+    }
+
+    private static List<GeoCoord> geoCoords(Coordinate[] coordinates) {
+        List<GeoCoord> gc = new ArrayList<>(coordinates.length);
+        for (Coordinate c : coordinates) {
+            gc.add(new GeoCoord(c.y, c.x));
+        }
+        return gc;
+    }
+
+    private class Tile extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Polygon polygon;
+        private final int resolution;
+        private final int depth;
+
+        private Tile(Polygon polygon, int resolution, int depth) {
+            this.polygon = polygon;
+            this.resolution = resolution;
+            this.depth = depth;
+        }
+
+        @Override
+        protected long[] compute() {
+            Envelope env = polygon.getEnvelopeInternal();
+            double width = env.getWidth() * Math.cos(Math.toRadians(env.centre().y));
+            double height = env.getHeight();
+            boolean elongated = Math.max(width, height) > MAX_TILE_ASPECT * Math.min(width, height);
+
+            if ((depth >= MAX_SPLIT_DEPTH) || (!elongated && (estimate(polygon, resolution) <= splitCells))) {
+                metrics.count("coverage.tiles", 1L);
+                return located(polygon, resolution);
+            }
+
+            Coordinate c = env.centre();
+            Envelope[] halves = (width > height)
+                    ? new Envelope[]{
+                    new Envelope(env.getMinX(), c.x, env.getMinY(), env.getMaxY()),
+                    new Envelope(c.x, env.getMaxX(), env.getMinY(), env.getMaxY())}
+                    : new Envelope[]{
+                    new Envelope(env.getMinX(), env.getMaxX(), env.getMinY(), c.y),
+                    new Envelope(env.getMinX(), env.getMaxX(), c.y, env.getMaxY())};
+
+            List<Tile> tiles = new ArrayList<>();
+            try {
+                for (Envelope half : halves) {
+                    half.expandBy(TILE_OVERLAP);
+                    Geometry part = polygon.intersection(FACTORY.toGeometry(half));
+
+                    for (int n = part.getNumGeometries(); n > 0; ) {
+                        Geometry g = part.getGeometryN(--n);
+                        if ((g instanceof Polygon) && !g.isEmpty()) {
+                            tiles.add(new Tile((Polygon) g, resolution, depth + 1));
+                        }
+                    }
+                }
+            } catch (TopologyException e) {
+                return located(polygon, resolution);
+            }
+
+            LongList merged = new LongList();
+            for (Tile tile : invokeAll(tiles)) {
+                for (long hash : tile.join()) {
+                    merged.add(hash);
+                }
+            }
+
+            return merged.sortedDistinct();
+        }
+    }
+
+    @FunctionalInterface
+    public interface CellSink {
+        void accept(long hash, int resolution, boolean interior);
+    }
+}
@@ -0,0 +1,201 @@
+package com.locomizer.geoconv;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed on-disk cache of polygon coverages. An entry is keyed by a SHA-256 of the normalized polygon
+ * coordinates, the resolution range and the coverage mode, so a polygon re-exported with other attributes, another vertex order or
+ * another ring orientation hits the same entry. Entries hold the covered cells with the interior flag in the
+ * reserved top bit of the H3 index, and are evicted least recently used first once the cache grows over its size.
+ * Recency survives restarts as the file modification time.
+ */
+public class CoverageCache {
+    public static final long INTERIOR = 1L << 63;
+
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".cells";
+    private static final String TEMP = ".tmp";
+    private static final Map<Path, CoverageCache> OPEN = new ConcurrentHashMap<>();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private long bytes = 0L;
+
+    private CoverageCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(dir);
+
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir, 2)) {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, file.toFile().lastModified());
+        }
+        files.sort(Comparator.comparing(modified::get));
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(SUFFIX)) {
+                long size = Files.size(file);
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                bytes += size;
+            } else if (name.endsWith(TEMP)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Opens the cache in the given directory, shared by all conversions of this JVM that use it.
+     */
+    public static CoverageCache open(File dir, long maxBytes) throws IOException {
+        Path path = dir.getAbsoluteFile().toPath().normalize();
+
+        synchronized (OPEN) {
+            CoverageCache cache = OPEN.get(path);
+            if (cache == null) {
+                cache = new CoverageCache(path, maxBytes);
+                OPEN.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    public String key(Polygon polygon, int minRes, int maxRes, String mode) {
+        Polygon normalized = (Polygon) polygon.norm();
+        byte[] modeBytes = mode.getBytes(StandardCharsets.UTF_8);
+
+        int points = normalized.getNumPoints();
+        ByteBuffer buf = ByteBuffer.allocate(5 * Integer.BYTES + modeBytes.length + (normalized.getNumInteriorRing() + 1) * Integer.BYTES + points * 2 * Double.BYTES);
+        buf.putInt(VERSION).putInt(minRes).putInt(maxRes).putInt(modeBytes.length).put(modeBytes).putInt(normalized.getNumInteriorRing());
+
+        ring(buf, normalized.getExteriorRing());
+        for (int i = 0; i < normalized.getNumInteriorRing(); i++) {
+            ring(buf, normalized.getInteriorRingN(i));
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(buf.array());
+
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void ring(ByteBuffer buf, LineString ring) {
+        buf.putInt(ring.getNumPoints());
+        for (Coordinate c : ring.getCoordinates()) {
+            buf.putDouble(c.x).putDouble(c.y);
+        }
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * @return cached cells with the {@link #INTERIOR} flag, or null on a miss
+     */
+    public long[] get(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path path = path(key);
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            path.toFile().setLastModified(System.currentTimeMillis());
+
+            LongBuffer lb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            long[] cells = new long[lb.remaining()];
+            lb.get(cells);
+            return cells;
+        } catch (IOException e) {
+            synchronized (this) {
+                Long size = entries.remove(key);
+                if (size != null) {
+                    this.bytes -= size;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Stores an entry and evicts least recently used ones over the size limit.
+     *
+     * @return number of evicted entries
+     */
+    public int put(String key, long[] cells) throws IOException {
+        synchronized (this) {
+            if (entries.containsKey(key)) {
+                return 0;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(cells.length * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asLongBuffer().put(cells);
+
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), key, TEMP);
+        Files.write(temp, buf.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (entries.put(key, (long) buf.capacity()) == null) {
+                bytes += buf.capacity();
+            }
+
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while ((bytes > maxBytes) && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                bytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+
+        for (String e : evicted) {
+            Files.deleteIfExists(path(e));
+        }
+        return evicted.size();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
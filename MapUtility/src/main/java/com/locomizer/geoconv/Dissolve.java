@@ -0,0 +1,70 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.util.GeoCoord;
+import org.locationtech.jts.geom.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges a set of H3 cells into outline polygons. H3 set-to-multipolygon only cancels edges of cells of the same
+ * resolution, so a mixed-resolution (compact) set is expanded to its finest resolution first.
+ */
+public class Dissolve {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private final H3Core h3core;
+
+    public Dissolve(H3Core h3core) {
+        this.h3core = h3core;
+    }
+
+    public Geometry dissolve(long[] cells) {
+        int finest = 0;
+        boolean mixed = false;
+        for (int i = 0; i < cells.length; i++) {
+            int res = h3core.h3GetResolution(cells[i]);
+            if ((i > 0) && (res != finest)) {
+                mixed = true;
+            }
+            finest = Math.max(finest, res);
+        }
+
+        List<Long> set = new ArrayList<>(cells.length);
+        for (long cell : cells) {
+            if (mixed && (h3core.h3GetResolution(cell) < finest)) {
+                set.addAll(h3core.h3ToChildren(cell, finest));
+            } else {
+                set.add(cell);
+            }
+        }
+
+        List<Polygon> polygons = new ArrayList<>();
+        for (List<List<GeoCoord>> loops : h3core.h3SetToMultiPolygon(set, true)) {
+            LinearRing shell = ring(loops.get(0));
+
+            LinearRing[] holes = new LinearRing[loops.size() - 1];
+            for (int i = 1; i < loops.size(); i++) {
+                holes[i - 1] = ring(loops.get(i));
+            }
+
+            polygons.add(FACTORY.createPolygon(shell, holes));
+        }
+
+        if (polygons.size() == 1) {
+            return polygons.get(0);
+        }
+        return FACTORY.createMultiPolygon(polygons.toArray(new Polygon[0]));
+    }
+
+    private static LinearRing ring(List<GeoCoord> loop) {
+        List<Coordinate> cl = new ArrayList<>(loop.size() + 1);
+        loop.forEach(c -> cl.add(new Coordinate(c.lng, c.lat)));
+        if (!cl.get(0).equals2D(cl.get(cl.size() - 1))) {
+            cl.add(cl.get(0));
+        }
+
+        return FACTORY.createLinearRing(cl.toArray(new Coordinate[0]));
+    }
+}
@@ -0,0 +1,325 @@
+package com.locomizer.geoconv;
+
+import org.locationtech.jts.geom.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Flattened polygons and points of an input with their attributes, in packed form. Every ring is one array of
+ * alternating x and y values, a point is such an array of two values, and attributes are interned in an
+ * {@link AttributeTable}, so that features with equal attributes share one row. A feature is identified by its
+ * position in input order, and equal geometries stay separate features. JTS geometries are only built on request.
+ * Adding is synchronized, reading is safe once all features are added.
+ */
+public class FeatureStore {
+    public static final byte POINT = 1;
+    public static final byte POLYGON = 2;
+    public static final byte MULTI_POLYGON = 3;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final AttributeTable attributes;
+    private double[][] rings = new double[INITIAL_CAPACITY][];
+    private final BitSet shells = new BitSet();
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private int[] rows = new int[INITIAL_CAPACITY];
+    private int[] firsts = new int[INITIAL_CAPACITY + 1];
+    private int size = 0;
+    private int ringCount = 0;
+    private long coordinates = 0L;
+
+    public FeatureStore() {
+        this(new AttributeTable());
+    }
+
+    /**
+     * @param attributes attribute table to intern into, which may be shared with other stores
+     */
+    public FeatureStore(AttributeTable attributes) {
+        this.attributes = attributes;
+    }
+
+    public AttributeTable attributes() {
+        return attributes;
+    }
+
+    /**
+     * @return id of the feature
+     */
+    public int point(double x, double y, Map<String, Object> properties) {
+        return add(POINT, new double[][]{{x, y}}, null, attributes.intern(properties));
+    }
+
+    /**
+     * @param polygonRings shell followed by holes, each as alternating x and y values of a closed ring
+     * @return id of the feature
+     * @throws IllegalArgumentException if a ring is not closed or has 1 to 3 points
+     */
+    public int polygon(double[][] polygonRings, Map<String, Object> properties) {
+        for (double[] ring : polygonRings) {
+            validate(ring);
+        }
+        return add(POLYGON, polygonRings, null, attributes.intern(properties));
+    }
+
+    /**
+     * Adds a point, polygon or multipolygon, the latter as one feature.
+     *
+     * @return id of the feature, or -1 for other geometries
+     */
+    public int add(Geometry geometry, Map<String, Object> properties) {
+        if (geometry instanceof Point) {
+            Coordinate c = geometry.getCoordinate();
+            return (c == null) ? -1 : point(c.x, c.y, properties);
+        }
+
+        if (geometry instanceof Polygon) {
+            return add(POLYGON, rings((Polygon) geometry), null, attributes.intern(properties));
+        }
+
+        if (geometry instanceof MultiPolygon) {
+            int count = 0;
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                count += ((Polygon) geometry.getGeometryN(n)).getNumInteriorRing() + 1;
+            }
+
+            double[][] parts = new double[count][];
+            boolean[] starts = new boolean[count];
+            int r = 0;
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                double[][] polygon = rings((Polygon) geometry.getGeometryN(n));
+                if (polygon.length > 0) {
+                    starts[r] = true;
+                }
+                System.arraycopy(polygon, 0, parts, r, polygon.length);
+                r += polygon.length;
+            }
+            return add(MULTI_POLYGON, parts, starts, attributes.intern(properties));
+        }
+
+        return -1;
+    }
+
+    /**
+     * Appends all features of another store in their order.
+     */
+    public synchronized void addAll(FeatureStore other) {
+        for (int id = 0; id < other.size; id++) {
+            int from = other.firsts[id];
+            int to = other.firsts[id + 1];
+
+            boolean[] starts = new boolean[to - from];
+            for (int r = from; r < to; r++) {
+                starts[r - from] = other.shells.get(r);
+            }
+
+            int row = (other.attributes == attributes) ? other.rows[id] : attributes.intern(other.properties(id));
+            add(other.types[id], Arrays.copyOfRange(other.rings, from, to), starts, row);
+        }
+    }
+
+    /**
+     * @param starts rings starting a polygon of a multipolygon, or null for the first ring only
+     */
+    private synchronized int add(byte type, double[][] featureRings, boolean[] starts, int row) {
+        if (size + 1 == firsts.length) {
+            int capacity = types.length << 1;
+            types = Arrays.copyOf(types, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            firsts = Arrays.copyOf(firsts, capacity + 1);
+        }
+        if (ringCount + featureRings.length > rings.length) {
+            rings = Arrays.copyOf(rings, Math.max(rings.length << 1, ringCount + featureRings.length));
+        }
+
+        for (int r = 0; r < featureRings.length; r++) {
+            rings[ringCount + r] = featureRings[r];
+            shells.set(ringCount + r, (starts == null) ? (r == 0) : starts[r]);
+            coordinates += featureRings[r].length / 2;
+        }
+        ringCount += featureRings.length;
+
+        int id = size++;
+        types[id] = type;
+        rows[id] = row;
+        firsts[size] = ringCount;
+        return id;
+    }
+
+    private static double[][] rings(Polygon polygon) {
+        if (polygon.isEmpty()) {
+            return new double[0][];
+        }
+
+        double[][] result = new double[polygon.getNumInteriorRing() + 1][];
+        result[0] = packed(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            result[i + 1] = packed(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        return result;
+    }
+
+    private static double[] packed(CoordinateSequence sequence) {
+        double[] ring = new double[2 * sequence.size()];
+        for (int i = 0; i < sequence.size(); i++) {
+            ring[2 * i] = sequence.getX(i);
+            ring[2 * i + 1] = sequence.getY(i);
+        }
+        return ring;
+    }
+
+    private static void validate(double[] ring) {
+        int points = ring.length / 2;
+        if ((points > 0) && (points < 4)) {
+            throw new IllegalArgumentException("Invalid number of points in LinearRing (found " + points + " - must be 0 or >= 4)");
+        }
+        if ((points > 0) && ((ring[0] != ring[ring.length - 2]) || (ring[1] != ring[ring.length - 1]))) {
+            throw new IllegalArgumentException("Points of LinearRing do not form a closed linestring");
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of coordinates held by all features.
+     */
+    public long coordinates() {
+        return coordinates;
+    }
+
+    public byte type(int id) {
+        return types[id];
+    }
+
+    public Map<String, Object> properties(int id) {
+        return attributes.get(rows[id]);
+    }
+
+    /**
+     * Number of points of the feature, ring closing points included.
+     */
+    public int points(int id) {
+        int points = 0;
+        for (int r = firsts[id]; r < firsts[id + 1]; r++) {
+            points += rings[r].length / 2;
+        }
+        return points;
+    }
+
+    /**
+     * Planar area of a polygon or multipolygon in square degrees, holes subtracted.
+     */
+    public double area(int id) {
+        double area = 0.D;
+        for (int r = firsts[id]; r < firsts[id + 1]; r++) {
+            double[] ring = rings[r];
+
+            double sum = 0.D;
+            for (int i = 0; i + 3 < ring.length; i += 2) {
+                sum += ring[i] * ring[i + 3] - ring[i + 2] * ring[i + 1];
+            }
+            area += (shells.get(r) ? 1.D : -1.D) * Math.abs(sum) / 2.D;
+        }
+        return (types[id] == POINT) ? 0.D : area;
+    }
+
+    public double x(int id) {
+        return rings[firsts[id]][0];
+    }
+
+    public double y(int id) {
+        return rings[firsts[id]][1];
+    }
+
+    public Envelope envelope(int id) {
+        Envelope env = new Envelope();
+        for (int r = firsts[id]; r < firsts[id + 1]; r++) {
+            if (shells.get(r) || (types[id] == POINT)) {
+                double[] ring = rings[r];
+                for (int i = 0; i < ring.length; i += 2) {
+                    env.expandToInclude(ring[i], ring[i + 1]);
+                }
+            }
+        }
+        return env;
+    }
+
+    /**
+     * A new JTS geometry of the feature.
+     */
+    public Geometry geometry(int id) {
+        int from = firsts[id];
+        int to = firsts[id + 1];
+
+        if (types[id] == POINT) {
+            return FACTORY.createPoint(new Coordinate(rings[from][0], rings[from][1]));
+        }
+        if (types[id] == POLYGON) {
+            return polygon(from, to);
+        }
+
+        Polygon[] polygons = new Polygon[shells.get(from, to).cardinality()];
+        int start = from;
+        for (int p = 0; p < polygons.length; p++) {
+            int end = shells.nextSetBit(start + 1);
+            end = ((end < 0) || (end > to)) ? to : end;
+            polygons[p] = polygon(start, end);
+            start = end;
+        }
+        return FACTORY.createMultiPolygon(polygons);
+    }
+
+    private Polygon polygon(int from, int to) {
+        if (from == to) {
+            return FACTORY.createPolygon();
+        }
+
+        LinearRing[] holes = new LinearRing[to - from - 1];
+        for (int r = from + 1; r < to; r++) {
+            holes[r - from - 1] = ring(rings[r]);
+        }
+        return FACTORY.createPolygon(ring(rings[from]), holes);
+    }
+
+    private static LinearRing ring(double[] ring) {
+        Coordinate[] cl = new Coordinate[ring.length / 2];
+        for (int i = 0; i < cl.length; i++) {
+            cl[i] = new Coordinate(ring[2 * i], ring[2 * i + 1]);
+        }
+        return FACTORY.createLinearRing(cl);
+    }
+
+    /**
+     * Hash of the geometry and attributes of a feature, consistent with {@link #same}.
+     */
+    public int hash(int id) {
+        int hash = types[id];
+        for (int r = firsts[id]; r < firsts[id + 1]; r++) {
+            hash = 31 * hash + Arrays.hashCode(rings[r]);
+        }
+        return 31 * hash + properties(id).hashCode();
+    }
+
+    /**
+     * Whether a feature has the same geometry and attributes as a feature of another store.
+     */
+    public boolean same(int id, FeatureStore other, int otherId) {
+        int from = firsts[id];
+        int otherFrom = other.firsts[otherId];
+        if ((types[id] != other.types[otherId]) || (firsts[id + 1] - from != other.firsts[otherId + 1] - otherFrom)) {
+            return false;
+        }
+
+        for (int r = 0; r < firsts[id + 1] - from; r++) {
+            if ((shells.get(from + r) != other.shells.get(otherFrom + r)) || !Arrays.equals(rings[from + r], other.rings[otherFrom + r])) {
+                return false;
+            }
+        }
+        return properties(id).equals(other.properties(otherId));
+    }
+}
@@ -0,0 +1,139 @@
+package com.locomizer.geoconv;
+
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of streaming output writers. Any number of producer threads may call {@link #write(Geometry, Map)};
+ * features pass through a bounded queue to a single writer thread that serializes them in arrival order.
+ */
+public abstract class FeatureWriter implements Closeable {
+    public static final int QUEUE_SIZE = 4096;
+    public static final int MAX_PRECISION = 15;
+
+    private static final Object[] EOF = new Object[0];
+
+    private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+    private volatile Throwable failure = null;
+    private boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    protected FeatureWriter() {
+        thread = new Thread(() -> {
+            try {
+                begin();
+
+                for (Object[] item = queue.take(); item != EOF; item = queue.take()) {
+                    feature((Geometry) item[0], (Map<String, Object>) item[1]);
+                }
+
+                end();
+            } catch (Throwable e) {
+                failure = e;
+                queue.clear();
+            }
+        }, getClass().getSimpleName());
+        thread.setDaemon(true);
+    }
+
+    protected void start() {
+        thread.start();
+    }
+
+    public void write(Geometry geometry, Map<String, Object> properties) {
+        enqueue(new Object[]{geometry, properties});
+    }
+
+    private void enqueue(Object[] item) {
+        try {
+            while (!queue.offer(item, 100L, TimeUnit.MILLISECONDS)) {
+                if (failure != null) {
+                    throw new RuntimeException("Output writer has failed", failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Appends a coordinate value rounded to the given number of decimal places, with trailing zeros dropped.
+     * A negative precision keeps the full double representation.
+     */
+    protected static void number(StringBuilder sb, double value, int precision) {
+        if ((precision < 0) || Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append(value);
+            return;
+        }
+
+        long scale = 1L;
+        for (int i = Math.min(precision, MAX_PRECISION); i > 0; i--) {
+            scale *= 10L;
+        }
+
+        long scaled = Math.round(Math.abs(value) * scale);
+        if ((value < 0.D) && (scaled != 0L)) {
+            sb.append('-');
+        }
+        sb.append(scaled / scale);
+
+        long fraction = scaled % scale;
+        if (fraction != 0L) {
+            sb.append('.');
+
+            int digits = 0;
+            for (long f = fraction; f > 0L; f /= 10L) {
+                digits++;
+            }
+            for (int i = Math.min(precision, MAX_PRECISION) - digits; i > 0; i--) {
+                sb.append('0');
+            }
+
+            while (fraction % 10L == 0L) {
+                fraction /= 10L;
+            }
+            sb.append(fraction);
+        }
+    }
+
+    protected abstract void begin() throws IOException;
+
+    protected abstract void feature(Geometry geometry, Map<String, Object> properties) throws IOException;
+
+    protected abstract void end() throws IOException;
+
+    protected abstract void release() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (failure == null) {
+                enqueue(EOF);
+            }
+            thread.join();
+        } catch (RuntimeException ignore) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            release();
+        }
+
+        if (failure != null) {
+            throw new IOException("Output writer has failed", failure);
+        }
+    }
+}
@@ -0,0 +1,782 @@
+package com.locomizer.geoconv;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Streaming FlatGeobuf writer with a packed Hilbert R-tree index, so that readers can fetch the features of
+ * a bounding box without parsing the whole file. The index precedes the features and the features must follow
+ * it in Hilbert order, so each feature is encoded into a temporary file as it arrives, and only its envelope and
+ * the place of its bytes are kept. Once all have arrived, they are sorted by the Hilbert value of their envelope
+ * center, and their bytes are copied to the output in that order after the header and the index. Attribute
+ * columns are typed by their values: booleans, integers and decimals keep their type, nested objects become
+ * Json, and columns with values of mixed types become String. Features encoded before a column became mixed
+ * are encoded again with the final types before the copy.
+ */
+public class FlatGeobufWriter extends FeatureWriter {
+    public static final byte[] MAGIC = {'f', 'g', 'b', 3, 'f', 'g', 'b', 0};
+    public static final int NODE_SIZE = 16;
+    public static final int NODE_BYTES = 40;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final byte GEOMETRY_UNKNOWN = 0;
+    private static final byte GEOMETRY_POINT = 1;
+    private static final byte GEOMETRY_POLYGON = 3;
+    private static final byte GEOMETRY_MULTIPOINT = 4;
+    private static final byte GEOMETRY_MULTIPOLYGON = 6;
+
+    private static final byte COLUMN_BOOL = 2;
+    private static final byte COLUMN_LONG = 7;
+    private static final byte COLUMN_DOUBLE = 10;
+    private static final byte COLUMN_STRING = 11;
+    private static final byte COLUMN_JSON = 12;
+
+    private final OutputStream output;
+    private final int precision;
+    private final File dir;
+
+    private final LinkedHashMap<String, Byte> columns = new LinkedHashMap<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Set<Byte> geometryTypes = new HashSet<>();
+    private boolean retype = false;
+
+    private File spill;
+    private DataOutputStream records;
+    private int count = 0;
+    private double[] envelopes = new double[4 * INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY + 1];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+
+    /**
+     * @param dir directory of the temporary files, or null for the default temporary directory
+     */
+    public FlatGeobufWriter(OutputStream output, int precision, File dir) throws IOException {
+        this.output = new BufferedOutputStream(output, 4096 * 1024);
+        this.precision = precision;
+        this.dir = dir;
+
+        start();
+    }
+
+    @Override
+    protected void begin() throws IOException {
+        spill = File.createTempFile("geoconv", ".fgb", dir);
+        records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill), 4096 * 1024));
+    }
+
+    /**
+     * Appends a record of the feature to the temporary file: its encoded bytes with each value in the type of its
+     * own, the position of the properties vector in them, and the type of every value with its text for booleans
+     * and numbers, from which the properties are encoded again if their column turns out to be of another type.
+     */
+    @Override
+    protected void feature(Geometry geometry, Map<String, Object> props) throws IOException {
+        if (!(geometry instanceof Point) && !(geometry instanceof Polygon) && !(geometry instanceof MultiPoint) && !(geometry instanceof MultiPolygon)) {
+            throw new IOException("Unsupported FlatGeobuf geometry " + geometry.getGeometryType());
+        }
+
+        int n = count;
+        if (n == lengths.length) {
+            envelopes = Arrays.copyOf(envelopes, envelopes.length << 1);
+            offsets = Arrays.copyOf(offsets, (lengths.length << 1) + 1);
+            lengths = Arrays.copyOf(lengths, lengths.length << 1);
+        }
+
+        Envelope env = geometry.getEnvelopeInternal();
+        envelopes[4 * n] = round(env.getMinX());
+        envelopes[4 * n + 1] = round(env.getMinY());
+        envelopes[4 * n + 2] = round(env.getMaxX());
+        envelopes[4 * n + 3] = round(env.getMaxY());
+        geometryTypes.add(type(geometry));
+
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        ByteArrayOutputStream typed = new ByteArrayOutputStream();
+        DataOutputStream types = new DataOutputStream(typed);
+        ByteBuffer scalar = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        int valueCount = 0;
+        for (Map.Entry<String, Object> e : props.entrySet()) {
+            Object value = e.getValue();
+            if (value == null) {
+                continue;
+            }
+
+            byte type = type(value);
+            int id = column(e.getKey(), type);
+            valueCount++;
+
+            types.writeShort(id);
+            types.writeByte(type);
+
+            scalar.clear();
+            scalar.putShort((short) id);
+            values.write(scalar.array(), 0, 2);
+
+            scalar.clear();
+            if (type == COLUMN_BOOL) {
+                values.write(((Boolean) value) ? 1 : 0);
+            } else if (type == COLUMN_LONG) {
+                scalar.putLong(((Number) value).longValue());
+                values.write(scalar.array(), 0, 8);
+            } else if (type == COLUMN_DOUBLE) {
+                scalar.putDouble(((Number) value).doubleValue());
+                values.write(scalar.array(), 0, 8);
+            } else {
+                byte[] bytes = string(value).getBytes(StandardCharsets.UTF_8);
+                scalar.putInt(bytes.length);
+                values.write(scalar.array(), 0, 4);
+                values.write(bytes, 0, bytes.length);
+            }
+
+            if ((type == COLUMN_BOOL) || (type == COLUMN_LONG) || (type == COLUMN_DOUBLE)) {
+                types.writeUTF(String.valueOf(value));
+            }
+        }
+
+        Table feature = new Table();
+        feature.reference(0, b -> b.table(geometry(geometry)));
+        byte[] encoded = values.toByteArray();
+        int[] propertiesAt = {0};
+        feature.reference(1, b -> propertiesAt[0] = b.bytes(encoded));
+        byte[] bytes = new Buffer().sizePrefixed(feature);
+
+        records.write(bytes);
+        records.writeInt(propertiesAt[0]);
+        records.writeInt(valueCount);
+        typed.writeTo(records);
+
+        lengths[n] = bytes.length;
+        offsets[n + 1] = offsets[n] + bytes.length + 8 + typed.size();
+        count++;
+    }
+
+    /**
+     * Merges the type of a value into the type of its column, noting if features need to be encoded again.
+     *
+     * @return id of the column
+     */
+    private int column(String name, byte type) {
+        Byte before = columns.get(name);
+        if (before == null) {
+            columns.put(name, type);
+            ids.put(name, ids.size());
+            return ids.get(name);
+        }
+
+        byte merged = before.equals(type) ? type
+                : ((before == COLUMN_LONG) || (before == COLUMN_DOUBLE)) && ((type == COLUMN_LONG) || (type == COLUMN_DOUBLE)) ? COLUMN_DOUBLE
+                : COLUMN_STRING;
+        if ((merged != before) || (merged != type)) {
+            retype = true;
+        }
+
+        columns.put(name, merged);
+        return ids.get(name);
+    }
+
+    @Override
+    protected void end() throws IOException {
+        records.close();
+        records = null;
+
+        double[] extent = extent(count);
+        int[] order = hilbertOrder(count, extent);
+
+        File features = spill;
+        File retyped = null;
+        try {
+            if (retype) {
+                retyped = File.createTempFile("geoconv", ".fgb", dir);
+                retype(retyped);
+                features = retyped;
+            }
+
+            output.write(MAGIC);
+
+            byte[] header = header(count, extent, new ArrayList<>(columns.keySet()));
+            output.write(header);
+
+            if (count > 0) {
+                long[] positions = new long[count];
+                long position = 0L;
+                for (int i = 0; i < count; i++) {
+                    positions[i] = position;
+                    position += lengths[order[i]];
+                }
+
+                index(count, order, positions);
+            }
+
+            try (RandomAccessFile file = new RandomAccessFile(features, "r")) {
+                byte[] bytes = new byte[4096];
+                for (int i = 0; i < count; i++) {
+                    int f = order[i];
+                    if (bytes.length < lengths[f]) {
+                        bytes = new byte[Math.max(lengths[f], bytes.length << 1)];
+                    }
+
+                    file.seek(offsets[f]);
+                    file.readFully(bytes, 0, lengths[f]);
+                    output.write(bytes, 0, lengths[f]);
+                }
+            }
+            output.flush();
+        } finally {
+            if (retyped != null) {
+                retyped.delete();
+            }
+        }
+    }
+
+    /**
+     * Encodes the properties of all features again with the final column types, reading the records in order and
+     * writing only the feature bytes to the given file, whose places replace those in the temporary file. Values
+     * already of the type of their column keep their bytes. The properties vector is the last object of a feature,
+     * so the bytes before it stay as they are.
+     */
+    private void retype(File file) throws IOException {
+        byte[] finalTypes = new byte[columns.size()];
+        for (Map.Entry<String, Byte> e : columns.entrySet()) {
+            finalTypes[ids.get(e.getKey())] = e.getValue();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), 4096 * 1024));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 4096 * 1024))) {
+            ByteArrayOutputStream values = new ByteArrayOutputStream();
+            ByteBuffer scalar = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+            long position = 0L;
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[lengths[i]];
+                in.readFully(bytes);
+                int propertiesAt = in.readInt();
+                int valueCount = in.readInt();
+
+                ByteBuffer source = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                source.position(propertiesAt + 4);
+                values.reset();
+
+                for (int v = 0; v < valueCount; v++) {
+                    int id = in.readShort();
+                    byte type = in.readByte();
+                    String text = ((type == COLUMN_BOOL) || (type == COLUMN_LONG) || (type == COLUMN_DOUBLE)) ? in.readUTF() : null;
+
+                    source.getShort();
+                    int from = source.position();
+                    source.position(from + ((type == COLUMN_BOOL) ? 1 : ((type == COLUMN_LONG) || (type == COLUMN_DOUBLE)) ? 8 : 4 + source.getInt(from)));
+
+                    scalar.clear();
+                    scalar.putShort((short) id);
+                    values.write(scalar.array(), 0, 2);
+
+                    byte target = finalTypes[id];
+                    scalar.clear();
+                    if ((target == type) || (text == null)) {
+                        values.write(bytes, from, source.position() - from);
+                    } else if (target == COLUMN_DOUBLE) {
+                        scalar.putDouble(source.getLong(from));
+                        values.write(scalar.array(), 0, 8);
+                    } else {
+                        byte[] string = text.getBytes(StandardCharsets.UTF_8);
+                        scalar.putInt(string.length);
+                        values.write(scalar.array(), 0, 4);
+                        values.write(string, 0, string.length);
+                    }
+                }
+
+                int length = (propertiesAt + 4 + values.size() + 3) / 4 * 4;
+                ByteBuffer feature = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+                feature.put(bytes, 0, propertiesAt);
+                feature.putInt(values.size());
+                feature.put(values.toByteArray());
+                feature.putInt(0, length - 4);
+
+                offsets[i] = position;
+                lengths[i] = length;
+                out.write(feature.array());
+                position += length;
+            }
+        }
+    }
+
+    @Override
+    protected void release() throws IOException {
+        try {
+            if (records != null) {
+                records.close();
+            }
+            output.close();
+        } finally {
+            if (spill != null) {
+                spill.delete();
+            }
+        }
+    }
+
+    private double[] extent(int count) {
+        double[] extent = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < count; i++) {
+            extent[0] = Math.min(extent[0], envelopes[4 * i]);
+            extent[1] = Math.min(extent[1], envelopes[4 * i + 1]);
+            extent[2] = Math.max(extent[2], envelopes[4 * i + 2]);
+            extent[3] = Math.max(extent[3], envelopes[4 * i + 3]);
+        }
+        return extent;
+    }
+
+    /**
+     * Feature indexes sorted by the Hilbert value of their envelope centers in descending order, as the reference
+     * implementation does.
+     */
+    private int[] hilbertOrder(int count, double[] extent) {
+        double width = extent[2] - extent[0];
+        double height = extent[3] - extent[1];
+
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            long x = (width == 0.D) ? 0L : (long) (HILBERT_MAX * ((envelopes[4 * i] + envelopes[4 * i + 2]) / 2.D - extent[0]) / width);
+            long y = (height == 0.D) ? 0L : (long) (HILBERT_MAX * ((envelopes[4 * i + 1] + envelopes[4 * i + 3]) / 2.D - extent[1]) / height);
+            keys[i] = ((hilbert((int) x, (int) y) & 0xFFFFFFFFL) << 31) | (Integer.MAX_VALUE - i);
+        }
+        Arrays.parallelSort(keys);
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = Integer.MAX_VALUE - (int) (keys[count - 1 - i] & Integer.MAX_VALUE);
+        }
+        return order;
+    }
+
+    static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    private static byte type(Object value) {
+        if (value instanceof Boolean) {
+            return COLUMN_BOOL;
+        }
+        if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte)
+                || ((value instanceof BigInteger) && (((BigInteger) value).bitLength() < 64))) {
+            return COLUMN_LONG;
+        }
+        if ((value instanceof Double) || (value instanceof Float) || (value instanceof BigDecimal)) {
+            return COLUMN_DOUBLE;
+        }
+        if ((value instanceof Map) || (value instanceof List)) {
+            return COLUMN_JSON;
+        }
+        return COLUMN_STRING;
+    }
+
+    private byte[] header(int count, double[] extent, List<String> names) {
+        Table header = new Table();
+        if (count > 0) {
+            header.reference(1, b -> b.doubles(extent, extent.length));
+        }
+        header.scalar(2, 1, (geometryTypes.size() == 1) ? geometryTypes.iterator().next() : GEOMETRY_UNKNOWN);
+        header.reference(7, b -> b.tables(names.stream().map(name -> {
+            Table column = new Table();
+            column.reference(0, c -> c.string(name));
+            column.scalar(1, 1, columns.get(name));
+            return column;
+        }).collect(Collectors.toList())));
+        header.scalar(8, 8, count);
+        header.scalar(9, 2, (count > 0) ? NODE_SIZE : 0);
+
+        Table crs = new Table();
+        crs.reference(0, b -> b.string("EPSG"));
+        crs.scalar(1, 4, 4326);
+        header.reference(10, b -> b.table(crs));
+
+        return new Buffer().sizePrefixed(header);
+    }
+
+    /**
+     * Writes the packed R-tree, root first and leaves last. Leaves hold the byte offsets of their features and
+     * inner nodes the index of their first child.
+     */
+    private void index(int count, int[] order, long[] offsets) throws IOException {
+        List<int[]> levels = new ArrayList<>();
+        int n = count;
+        int nodes = n;
+        levels.add(new int[]{0, n});
+        do {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            nodes += n;
+            levels.add(new int[]{0, n});
+        } while (n != 1);
+
+        int end = nodes;
+        for (int[] level : levels) {
+            level[0] = end - level[1];
+            level[1] = end;
+            end = level[0];
+        }
+
+        double[] boxes = new double[4 * nodes];
+        long[] refs = new long[nodes];
+
+        int leaf = levels.get(0)[0];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(envelopes, 4 * order[i], boxes, 4 * (leaf + i), 4);
+            refs[leaf + i] = offsets[i];
+        }
+
+        for (int l = 0; l < levels.size() - 1; l++) {
+            int pos = levels.get(l)[0];
+            int parent = levels.get(l + 1)[0];
+
+            while (pos < levels.get(l)[1]) {
+                refs[parent] = pos;
+                boxes[4 * parent] = Double.POSITIVE_INFINITY;
+                boxes[4 * parent + 1] = Double.POSITIVE_INFINITY;
+                boxes[4 * parent + 2] = Double.NEGATIVE_INFINITY;
+                boxes[4 * parent + 3] = Double.NEGATIVE_INFINITY;
+
+                for (int j = 0; (j < NODE_SIZE) && (pos < levels.get(l)[1]); j++, pos++) {
+                    boxes[4 * parent] = Math.min(boxes[4 * parent], boxes[4 * pos]);
+                    boxes[4 * parent + 1] = Math.min(boxes[4 * parent + 1], boxes[4 * pos + 1]);
+                    boxes[4 * parent + 2] = Math.max(boxes[4 * parent + 2], boxes[4 * pos + 2]);
+                    boxes[4 * parent + 3] = Math.max(boxes[4 * parent + 3], boxes[4 * pos + 3]);
+                }
+                parent++;
+            }
+        }
+
+        ByteBuffer node = ByteBuffer.allocate(NODE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < nodes; i++) {
+            node.clear();
+            node.putDouble(boxes[4 * i]).putDouble(boxes[4 * i + 1]).putDouble(boxes[4 * i + 2]).putDouble(boxes[4 * i + 3]).putLong(refs[i]);
+            output.write(node.array());
+        }
+    }
+
+    private static String string(Object value) {
+        if ((value instanceof Map) || (value instanceof List)) {
+            try {
+                return MAPPER.writeValueAsString(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return String.valueOf(value);
+    }
+
+    private static byte type(Geometry geometry) {
+        if (geometry instanceof Point) {
+            return GEOMETRY_POINT;
+        }
+        if (geometry instanceof Polygon) {
+            return GEOMETRY_POLYGON;
+        }
+        if (geometry instanceof MultiPoint) {
+            return GEOMETRY_MULTIPOINT;
+        }
+        return GEOMETRY_MULTIPOLYGON;
+    }
+
+    private Table geometry(Geometry geometry) {
+        Table table = new Table();
+        table.scalar(6, 1, type(geometry));
+
+        if (geometry instanceof MultiPolygon) {
+            List<Table> parts = new ArrayList<>();
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                parts.add(geometry(geometry.getGeometryN(i)));
+            }
+            table.reference(7, b -> b.tables(parts));
+            return table;
+        }
+
+        List<CoordinateSequence> rings = new ArrayList<>();
+        if (geometry instanceof Polygon) {
+            Polygon p = (Polygon) geometry;
+            rings.add(p.getExteriorRing().getCoordinateSequence());
+            for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                rings.add(p.getInteriorRingN(i).getCoordinateSequence());
+            }
+        } else {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                rings.add(((Point) geometry.getGeometryN(i)).getCoordinateSequence());
+            }
+        }
+
+        int points = 0;
+        int[] ends = new int[rings.size()];
+        for (int r = 0; r < rings.size(); r++) {
+            points += rings.get(r).size();
+            ends[r] = points;
+        }
+
+        double[] xy = new double[2 * points];
+        int n = 0;
+        for (CoordinateSequence cs : rings) {
+            for (int i = 0; i < cs.size(); i++) {
+                xy[n++] = round(cs.getX(i));
+                xy[n++] = round(cs.getY(i));
+            }
+        }
+
+        if ((geometry instanceof Polygon) && (ends.length > 1)) {
+            table.reference(0, b -> b.ints(ends));
+        }
+        table.reference(1, b -> b.doubles(xy, xy.length));
+        return table;
+    }
+
+    private double round(double value) {
+        if (precision < 0) {
+            return value;
+        }
+
+        double scale = Math.pow(10.D, Math.min(precision, MAX_PRECISION));
+        return Math.round(value * scale) / scale;
+    }
+
+    @FunctionalInterface
+    private interface Child {
+        int write(Buffer buffer);
+    }
+
+    /**
+     * Fields of a FlatBuffers table: inline scalars and references to strings, vectors or tables written after it.
+     */
+    private static class Table {
+        private final List<long[]> scalars = new ArrayList<>();
+        private final Map<Integer, Child> references = new TreeMap<>();
+
+        void scalar(int id, int size, long value) {
+            scalars.add(new long[]{id, size, value});
+        }
+
+        void reference(int id, Child child) {
+            references.put(id, child);
+        }
+    }
+
+    /**
+     * Minimal FlatBuffers encoder writing front to back: every table is preceded by its vtable and followed by the
+     * objects it references, so that all offsets point forward as the format requires. Buffers are size prefixed and
+     * aligned as read without the prefix.
+     */
+    private static class Buffer {
+        private static final int PREFIX = 4;
+
+        private ByteBuffer buf = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] sizePrefixed(Table table) {
+            buf.putInt(0);
+            buf.putInt(0);
+            int root = table(table);
+            buf.putInt(PREFIX, root - PREFIX);
+            align(4);
+            buf.putInt(0, buf.position() - 4);
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+
+        int table(Table table) {
+            List<long[]> fields = new ArrayList<>(table.scalars);
+            for (Integer id : table.references.keySet()) {
+                fields.add(new long[]{id, 4, 0L});
+            }
+            fields.sort((a, b) -> Long.compare(b[1], a[1]));
+
+            int slots = 0;
+            int alignment = 4;
+            for (long[] f : fields) {
+                slots = Math.max(slots, (int) f[0] + 1);
+                alignment = Math.max(alignment, (int) f[1]);
+            }
+
+            int[] offsets = new int[slots];
+            int size = 4;
+            for (long[] f : fields) {
+                size = (size + (int) f[1] - 1) / (int) f[1] * (int) f[1];
+                offsets[(int) f[0]] = size;
+                size += (int) f[1];
+            }
+
+            align(2);
+            int vtable = buf.position();
+            ensure(4 + 2 * slots);
+            buf.putShort((short) (4 + 2 * slots));
+            buf.putShort((short) size);
+            for (int offset : offsets) {
+                buf.putShort((short) offset);
+            }
+
+            align(alignment);
+            int start = buf.position();
+            ensure(size);
+            for (int i = 0; i < size; i++) {
+                buf.put((byte) 0);
+            }
+            buf.putInt(start, start - vtable);
+
+            for (long[] f : table.scalars) {
+                int at = start + offsets[(int) f[0]];
+                switch ((int) f[1]) {
+                    case 1:
+                        buf.put(at, (byte) f[2]);
+                        break;
+                    case 2:
+                        buf.putShort(at, (short) f[2]);
+                        break;
+                    case 4:
+                        buf.putInt(at, (int) f[2]);
+                        break;
+                    default:
+                        buf.putLong(at, f[2]);
+                }
+            }
+
+            for (Map.Entry<Integer, Child> e : table.references.entrySet()) {
+                int at = start + offsets[e.getKey()];
+                int target = e.getValue().write(this);
+                buf.putInt(at, target - at);
+            }
+
+            return start;
+        }
+
+        int string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            align(4);
+            int start = buf.position();
+            ensure(4 + bytes.length + 1);
+            buf.putInt(bytes.length).put(bytes).put((byte) 0);
+            return start;
+        }
+
+        int bytes(byte[] values) {
+            align(4);
+            int start = buf.position();
+            ensure(4 + values.length);
+            buf.putInt(values.length).put(values);
+            return start;
+        }
+
+        int ints(int[] values) {
+            align(4);
+            int start = buf.position();
+            ensure(4 + 4 * values.length);
+            buf.putInt(values.length);
+            for (int v : values) {
+                buf.putInt(v);
+            }
+            return start;
+        }
+
+        int doubles(double[] values, int length) {
+            align(4);
+            if ((buf.position() - PREFIX + 4) % 8 != 0) {
+                ensure(4);
+                buf.putInt(0);
+            }
+
+            int start = buf.position();
+            ensure(4 + 8 * length);
+            buf.putInt(length);
+            for (int i = 0; i < length; i++) {
+                buf.putDouble(values[i]);
+            }
+            return start;
+        }
+
+        int tables(List<Table> tables) {
+            align(4);
+            int start = buf.position();
+            ensure(4 + 4 * tables.size());
+            buf.putInt(tables.size());
+            for (int i = 0; i < tables.size(); i++) {
+                buf.putInt(0);
+            }
+
+            for (int i = 0; i < tables.size(); i++) {
+                int at = start + 4 + 4 * i;
+                int target = table(tables.get(i));
+                buf.putInt(at, target - at);
+            }
+            return start;
+        }
+
+        private void align(int alignment) {
+            ensure(alignment);
+            while ((buf.position() - PREFIX) % alignment != 0) {
+                buf.put((byte) 0);
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (buf.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() << 1, buf.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+                buf.flip();
+                grown.put(buf);
+                buf = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.locomizer.geoconv;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.wololo.geojson.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Token-level GeoJSON reader. Accepts a single Feature, a FeatureCollection, or a sequence of root objects
+ * (newline-delimited or RFC 8142 GeoJSONSeq), and hands features over in batches without building the whole tree.
+ */
+public class GeoJSONStreamReader implements Closeable {
+    public static final String TYPE = "type";
+    public static final String FEATURE = "Feature";
+    public static final String FEATURES = "features";
+    public static final String GEOMETRY = "geometry";
+    public static final String PROPERTIES = "properties";
+    public static final String ID = "id";
+
+    private static final char RECORD_SEPARATOR = '\u001e';
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonParser parser;
+
+    public GeoJSONStreamReader(InputStream input) throws IOException {
+        Reader reader = new FilterReader(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 4096 * 1024)) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                return (c == RECORD_SEPARATOR) ? ' ' : c;
+            }
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                int n = super.read(cbuf, off, len);
+                for (int i = off; i < off + n; i++) {
+                    if (cbuf[i] == RECORD_SEPARATOR) {
+                        cbuf[i] = ' ';
+                    }
+                }
+                return n;
+            }
+        };
+
+        parser = new JsonFactory(mapper).createParser(reader);
+    }
+
+    public void read(int batchSize, Consumer<List<Feature>> consumer) throws IOException {
+        List<Feature> batch = new ArrayList<>(batchSize);
+        Consumer<Feature> collector = feature -> {
+            batch.add(feature);
+            if (batch.size() >= batchSize) {
+                consumer.accept(new ArrayList<>(batch));
+                batch.clear();
+            }
+        };
+
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            if (token != JsonToken.START_OBJECT) {
+                throw new RuntimeException("Input JSON root element was neither Feature nor FeatureCollection");
+            }
+
+            ObjectNode root = mapper.createObjectNode();
+            boolean collection = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+
+                if (FEATURES.equals(name) && (token == JsonToken.START_ARRAY)) {
+                    collection = true;
+
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        Feature feature = feature(mapper.readTree(parser));
+                        if (feature != null) {
+                            collector.accept(feature);
+                        }
+                    }
+                } else {
+                    root.set(name, mapper.readTree(parser));
+                }
+            }
+
+            if (!collection) {
+                if (!FEATURE.equals(root.path(TYPE).asText())) {
+                    throw new RuntimeException("Input JSON root element was neither Feature nor FeatureCollection");
+                }
+
+                Feature feature = feature(root);
+                if (feature != null) {
+                    collector.accept(feature);
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Feature feature(JsonNode node) throws IOException {
+        JsonNode g = node.get(GEOMETRY);
+        if ((g == null) || g.isNull()) {
+            return null;
+        }
+
+        Geometry geometry = mapper.treeToValue(g, geometryClass(g.path(TYPE).asText()));
+
+        JsonNode p = node.get(PROPERTIES);
+        Map<String, Object> properties = ((p == null) || p.isNull()) ? new HashMap<>() : mapper.convertValue(p, Map.class);
+
+        JsonNode id = node.get(ID);
+        return new Feature(((id == null) || id.isNull()) ? null : mapper.treeToValue(id, Object.class), geometry, properties);
+    }
+
+    private static Class<? extends Geometry> geometryClass(String type) {
+        switch (type) {
+            case "Point":
+                return Point.class;
+            case "MultiPoint":
+                return MultiPoint.class;
+            case "LineString":
+                return LineString.class;
+            case "MultiLineString":
+                return MultiLineString.class;
+            case "Polygon":
+                return Polygon.class;
+            case "MultiPolygon":
+                return MultiPolygon.class;
+            case "GeometryCollection":
+                return GeometryCollection.class;
+            default:
+                throw new IllegalArgumentException("Unknown GeoJSON geometry type " + type);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,137 @@
+package com.locomizer.geoconv;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.locationtech.jts.geom.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Streaming GeoJSON writer. Writes either a single FeatureCollection or newline-delimited Features (GeoJSONSeq),
+ * optionally rounding coordinates to a fixed number of decimal places.
+ */
+public class GeoJSONStreamWriter extends FeatureWriter {
+    private final OutputStream output;
+    private final JsonGenerator generator;
+    private final boolean sequence;
+    private final int precision;
+    private final StringBuilder sb = new StringBuilder();
+
+    public GeoJSONStreamWriter(OutputStream output, boolean sequence, int precision) throws IOException {
+        this.output = new BufferedOutputStream(output, 4096 * 1024);
+        this.generator = new ObjectMapper().getFactory().createGenerator(this.output);
+        this.sequence = sequence;
+        this.precision = precision;
+
+        if (sequence) {
+            generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+        }
+
+        start();
+    }
+
+    @Override
+    protected void begin() throws IOException {
+        if (!sequence) {
+            generator.writeStartObject();
+            generator.writeStringField(GeoJSONStreamReader.TYPE, "FeatureCollection");
+            generator.writeArrayFieldStart(GeoJSONStreamReader.FEATURES);
+        }
+    }
+
+    @Override
+    protected void feature(Geometry geometry, Map<String, Object> properties) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField(GeoJSONStreamReader.TYPE, GeoJSONStreamReader.FEATURE);
+        generator.writeFieldName(GeoJSONStreamReader.GEOMETRY);
+        geometry(geometry);
+        generator.writeFieldName(GeoJSONStreamReader.PROPERTIES);
+        generator.writeObject(properties);
+        generator.writeEndObject();
+    }
+
+    private void geometry(Geometry geometry) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField(GeoJSONStreamReader.TYPE, geometry.getGeometryType());
+
+        if (geometry instanceof GeometryCollection && !(geometry instanceof MultiPoint)
+                && !(geometry instanceof MultiLineString) && !(geometry instanceof MultiPolygon)) {
+            generator.writeArrayFieldStart("geometries");
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                geometry(geometry.getGeometryN(n));
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeFieldName("coordinates");
+            coordinates(geometry);
+        }
+
+        generator.writeEndObject();
+    }
+
+    private void coordinates(Geometry geometry) throws IOException {
+        if (geometry instanceof Point) {
+            coordinate(geometry.getCoordinate());
+        } else if (geometry instanceof LineString) {
+            coordinates(((LineString) geometry).getCoordinateSequence());
+        } else if (geometry instanceof Polygon) {
+            Polygon p = (Polygon) geometry;
+
+            generator.writeStartArray();
+            coordinates(p.getExteriorRing().getCoordinateSequence());
+            for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                coordinates(p.getInteriorRingN(i).getCoordinateSequence());
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeStartArray();
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                coordinates(geometry.getGeometryN(n));
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private void coordinates(CoordinateSequence cs) throws IOException {
+        generator.writeStartArray();
+        for (int i = 0; i < cs.size(); i++) {
+            coordinate(cs.getCoordinate(i));
+        }
+        generator.writeEndArray();
+    }
+
+    private void coordinate(Coordinate c) throws IOException {
+        generator.writeStartArray();
+        sb.setLength(0);
+        number(sb, c.x, precision);
+        generator.writeNumber(sb.toString());
+        sb.setLength(0);
+        number(sb, c.y, precision);
+        generator.writeNumber(sb.toString());
+        generator.writeEndArray();
+    }
+
+    @Override
+    protected void end() throws IOException {
+        if (!sequence) {
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } else {
+            generator.writeRaw('\n');
+        }
+        generator.flush();
+    }
+
+    @Override
+    protected void release() throws IOException {
+        try {
+            generator.close();
+        } finally {
+            output.close();
+        }
+    }
+}
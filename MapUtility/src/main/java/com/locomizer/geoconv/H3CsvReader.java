@@ -0,0 +1,219 @@
+package com.locomizer.geoconv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel reader of H3 CSV files. The file is cut into chunks that are memory mapped and parsed concurrently.
+ * A cut is moved forward to the next line break outside quotes, found from the parity of the quotes before it,
+ * which is counted for all chunks in parallel first, so quoted values may hold line breaks as with the Excel
+ * format of the sequential parser. Indexes are decoded from the bytes without an intermediate String.
+ */
+public class H3CsvReader {
+    public static final int CHUNK = 8 << 20;
+
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final File file;
+    private final String[] columns;
+    private final int indexColumn;
+    private final int chunk;
+
+    /**
+     * @param columns input columns, where _ skips one and _index is required
+     */
+    public H3CsvReader(File file, List<String> columns) {
+        this(file, columns, CHUNK);
+    }
+
+    H3CsvReader(File file, List<String> columns, int chunk) {
+        this.file = file;
+        this.chunk = chunk;
+        this.columns = columns.toArray(new String[0]);
+        this.indexColumn = columns.indexOf(Main.INDEX);
+
+        if (indexColumn < 0) {
+            throw new IllegalArgumentException("Attribute " + Main.INDEX + " is missing in " + columns);
+        }
+    }
+
+    /**
+     * Passes the index and the attributes of every record to the consumer, from several threads at once.
+     *
+     * @return number of chunks read
+     */
+    public int read(BiConsumer<Long, Map<String, Object>> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] bounds = bounds(channel);
+
+            IntStream.range(0, bounds.length - 1).parallel()
+                    .forEach(i -> {
+                        try {
+                            parse(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]), bounds[i], consumer);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+
+            return bounds.length - 1;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Record boundaries at or after every multiple of the chunk size, starting with 0 and ending with the file size.
+     */
+    private long[] bounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int cuts = (int) ((size + chunk - 1) / chunk);
+
+        long[] quotes = new long[cuts];
+        IntStream.range(0, cuts).parallel()
+                .forEach(i -> {
+                    try {
+                        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, (long) i * chunk, Math.min(chunk, size - (long) i * chunk));
+                        long n = 0L;
+                        for (int p = 0, limit = buf.limit(); p < limit; p++) {
+                            if (buf.get(p) == QUOTE) {
+                                n++;
+                            }
+                        }
+                        quotes[i] = n;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+
+        boolean[] quoted = new boolean[cuts];
+        for (int i = 1; i < cuts; i++) {
+            quoted[i] = quoted[i - 1] ^ ((quotes[i - 1] & 1L) != 0L);
+        }
+
+        long[] bounds = new long[cuts + 1];
+        IntStream.range(1, cuts).parallel()
+                .forEach(i -> {
+                    try {
+                        bounds[i] = next(channel, (long) i * chunk, quoted[i], size);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        bounds[cuts] = size;
+
+        return Arrays.stream(bounds).distinct().toArray();
+    }
+
+    private long next(FileChannel channel, long from, boolean quoted, long size) throws IOException {
+        for (long pos = from; pos < size; pos += chunk) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunk, size - pos));
+            for (int p = 0, limit = buf.limit(); p < limit; p++) {
+                byte b = buf.get(p);
+                if (b == QUOTE) {
+                    quoted = !quoted;
+                } else if ((b == LF) && !quoted) {
+                    return pos + p + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    private void parse(MappedByteBuffer buf, long offset, BiConsumer<Long, Map<String, Object>> consumer) throws IOException {
+        byte[] field = new byte[256];
+        int length = 0;
+        int column = 0;
+        boolean quoted = false;
+        boolean empty = true;
+        long hash = 0L;
+        Map<String, Object> props = new HashMap<>();
+
+        for (int p = 0, limit = buf.limit(); p <= limit; p++) {
+            byte b = (p < limit) ? buf.get(p) : LF;
+
+            if (quoted) {
+                if (b != QUOTE) {
+                    field = append(field, length++, b);
+                } else if ((p + 1 < limit) && (buf.get(p + 1) == QUOTE)) {
+                    field = append(field, length++, QUOTE);
+                    p++;
+                } else {
+                    quoted = false;
+                }
+                continue;
+            }
+
+            if (b == QUOTE) {
+                quoted = true;
+                empty = false;
+            } else if ((b == Main.COMMA) || (b == LF)) {
+                if ((b == LF) && empty && (column == 0)) {
+                    continue;
+                }
+
+                if (column < columns.length) {
+                    if (column == indexColumn) {
+                        hash = hex(field, length, offset + p);
+                    }
+                    if (!columns[column].equals(Main.UNDERSCORE)) {
+                        props.put(columns[column], new String(field, 0, length, StandardCharsets.UTF_8));
+                    }
+                }
+                column++;
+                length = 0;
+
+                if (b == LF) {
+                    if (column < columns.length) {
+                        throw new IOException("Record before byte " + (offset + p) + " has " + column + " of " + columns.length + " fields");
+                    }
+
+                    consumer.accept(hash, props);
+                    props = new HashMap<>();
+                    column = 0;
+                    empty = true;
+                }
+            } else if ((b != CR) || ((p + 1 < limit) && (buf.get(p + 1) != LF))) {
+                field = append(field, length++, b);
+                empty = false;
+            }
+        }
+
+        if (quoted) {
+            throw new IOException("Quoted value is not closed before byte " + (offset + buf.limit()));
+        }
+    }
+
+    private static byte[] append(byte[] field, int length, byte b) {
+        if (length == field.length) {
+            field = Arrays.copyOf(field, length << 1);
+        }
+        field[length] = b;
+        return field;
+    }
+
+    private static long hex(byte[] field, int length, long position) {
+        if ((length == 0) || (length > 16)) {
+            throw new NumberFormatException("Invalid H3 index " + new String(field, 0, length, StandardCharsets.UTF_8) + " before byte " + position);
+        }
+
+        long hash = 0L;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(field[i], 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Invalid H3 index " + new String(field, 0, length, StandardCharsets.UTF_8) + " before byte " + position);
+            }
+            hash = (hash << 4) | digit;
+        }
+        return hash;
+    }
+}
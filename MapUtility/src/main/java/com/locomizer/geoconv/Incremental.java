@@ -0,0 +1,369 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import com.uber.h3core.LengthUnit;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.locomizer.geoconv.Main.*;
+
+/**
+ * Patches the H3 output of a previous run instead of covering the whole input again. The previous and the current
+ * input are diffed by polygon and point with their attributes, so a feature whose geometry or attributes changed,
+ * or whose input order relative to the unchanged features changed, is removed and added again. The cells covered
+ * by removed or added geometries are affected: their claims by the added geometries and by the unchanged geometries
+ * near them are resolved by the conflict policy of the conversion, in input order of the current input, and replace
+ * the affected cells of the previous output. All other cells are claimed by the same unchanged geometries as
+ * before, so the patched output equals the output of a full run over the current input.
+ */
+public class Incremental {
+    public static final String ADDED = "+";
+    public static final String REMOVED = "-";
+
+    private static final String OP = "_op";
+    private static final int MARGIN_CELLS = 4;
+    private static final double METERS_PER_DEGREE = 111320.D;
+    private static final double MAX_LATITUDE = 85.D;
+
+    private final Conversion conversion;
+    private final H3Core h3core;
+    private final Metrics metrics;
+
+    public Incremental(Conversion conversion, H3Core h3core, Metrics metrics) {
+        if (!Conversion.isH3(conversion.output())) {
+            throw new IllegalArgumentException("Incremental conversion needs an H3 output");
+        }
+
+        this.conversion = conversion;
+        this.h3core = h3core;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param deltaFile receives the changed cells as the output columns preceded by _op, which is + for a cell
+     *                  added or given new attributes and - for a cell removed or losing its old attributes; may be null
+     */
+    public void run(File previousIn, File previousOut, File inFile, File outFile, File deltaFile) throws Exception {
+        conversion.scheduler().call(() -> {
+            patch(previousIn, previousOut, inFile, outFile, deltaFile);
+            return null;
+        });
+    }
+
+    private void patch(File previousIn, File previousOut, File inFile, File outFile, File deltaFile) throws Exception {
+        String out = conversion.output();
+        List<String> columns = conversion.columns();
+
+        metrics.stage("read");
+        FeatureStore previous = read(previousIn);
+        FeatureStore current = read(inFile);
+
+        Map<Integer, List<Integer>> index = new HashMap<>();
+        for (int i = 0; i < previous.size(); i++) {
+            index.computeIfAbsent(previous.hash(i), k -> new ArrayList<>()).add(i);
+        }
+
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> added = new ArrayList<>();
+        List<Integer> unchanged = new ArrayList<>();
+
+        boolean[] kept = new boolean[previous.size()];
+        int last = -1;
+        for (int i = 0; i < current.size(); i++) {
+            int match = -1;
+            for (int candidate : index.getOrDefault(current.hash(i), Collections.emptyList())) {
+                if (!kept[candidate] && (candidate > last) && previous.same(candidate, current, i)) {
+                    match = candidate;
+                    break;
+                }
+            }
+
+            if (match >= 0) {
+                kept[match] = true;
+                last = match;
+                unchanged.add(i);
+            } else {
+                added.add(i);
+            }
+        }
+        for (int i = 0; i < previous.size(); i++) {
+            if (!kept[i]) {
+                removed.add(i);
+            }
+        }
+
+        metrics.count("geometries.removed", removed.size());
+        metrics.count("geometries.added", added.size());
+        metrics.count("geometries.unchanged", unchanged.size());
+
+        metrics.stage("base");
+        CellStore hashes = new CellStore();
+        Map<Long, int[]> shared = new HashMap<>();
+        AttributeTable attributes = new AttributeTable();
+        load(previousOut, hashes, shared, attributes);
+        metrics.count("cells.base", hashes.size());
+
+        metrics.stage("cover");
+        Coverage coverage = conversion.coverage(h3core, metrics);
+        CellMerge merge = new CellMerge(conversion.conflict(), current, h3core);
+        Map<Thread, CellMerge.Claims> buffers = new ConcurrentHashMap<>();
+
+        LongList affected = new LongList();
+        removed.parallelStream()
+                .forEach(feature -> {
+                    LongList cells = new LongList();
+                    CellStore.CellConsumer collect = (cell, row) -> cells.add(cell);
+                    conversion.cover(coverage, h3core, previous, feature, conversion.rows(previous, feature, new AttributeTable()),
+                            new Metrics(), collect, collect);
+                    addAll(affected, cells);
+                });
+
+        added.parallelStream()
+                .forEach(feature -> {
+                    LongList cells = new LongList();
+                    CellMerge.Claims buffer = buffers.computeIfAbsent(Thread.currentThread(), t -> merge.buffer());
+                    conversion.cover(coverage, h3core, current, feature, conversion.rows(current, feature, attributes), metrics,
+                            (cell, row) -> {
+                                cells.add(cell);
+                                buffer.add(cell, feature, row, true);
+                            },
+                            (cell, row) -> {
+                                cells.add(cell);
+                                buffer.add(cell, feature, row, false);
+                            });
+                    addAll(affected, cells);
+                });
+
+        long[] invalid = affected.sortedDistinct();
+        metrics.count("cells.invalidated", invalid.length);
+
+        STRtree near = new STRtree();
+        double margin = Math.max(margin(previous, removed), margin(current, added));
+        for (int i : removed) {
+            Envelope env = previous.envelope(i);
+            env.expandBy(margin);
+            near.insert(env, i);
+        }
+        for (int i : added) {
+            Envelope env = current.envelope(i);
+            env.expandBy(margin);
+            near.insert(env, i);
+        }
+        near.build();
+
+        unchanged.parallelStream()
+                .filter(i -> {
+                    Envelope env = current.envelope(i);
+                    env.expandBy(margin);
+                    return !near.query(env).isEmpty();
+                })
+                .forEach(feature -> {
+                    metrics.count("geometries.recovered", 1L);
+                    CellMerge.Claims buffer = buffers.computeIfAbsent(Thread.currentThread(), t -> merge.buffer());
+                    conversion.cover(coverage, h3core, current, feature, conversion.rows(current, feature, attributes), metrics,
+                            (cell, row) -> {
+                                if (Arrays.binarySearch(invalid, cell) >= 0) {
+                                    buffer.add(cell, feature, row, true);
+                                }
+                            },
+                            (cell, row) -> {
+                                if (Arrays.binarySearch(invalid, cell) >= 0) {
+                                    buffer.add(cell, feature, row, false);
+                                }
+                            });
+                });
+
+        metrics.stage("merge");
+        Map<Long, int[]> original = new HashMap<>();
+        for (long cell : invalid) {
+            int[] rows = rows(cell, hashes, shared);
+            if (rows != null) {
+                original.put(cell, rows);
+            }
+            hashes.remove(cell);
+            shared.remove(cell);
+        }
+
+        CellStore patch = new CellStore();
+        metrics.count("cells.conflicts", merge.merge(patch));
+        patch.forEach(hashes::put);
+        shared.putAll(merge.shared());
+
+        metrics.stage("write");
+        metrics.count("cells.written", hashes.size());
+        metrics.count("attribute.rows", attributes.size());
+
+        if (out.startsWith(H_3B)) {
+            BinaryCoverage.write(outFile, hashes, attributes, columns, conversion.minRes(), conversion.maxRes());
+        } else {
+            Conversion.writeCsv(new FileOutputStream(outFile), hashes, shared, attributes, columns);
+        }
+
+        if (deltaFile != null) {
+            delta(deltaFile, invalid, original, hashes, shared, attributes, columns);
+        }
+    }
+
+    private static void addAll(LongList to, LongList cells) {
+        synchronized (to) {
+            for (int i = 0; i < cells.size(); i++) {
+                to.add(cells.get(i));
+            }
+        }
+    }
+
+    /**
+     * Attribute rows of a cell in output order, the row in the store followed by those shared under the all policy,
+     * or null if the cell is not covered.
+     */
+    private static int[] rows(long cell, CellStore hashes, Map<Long, int[]> shared) {
+        int row = hashes.get(cell);
+        if (row == CellStore.ABSENT) {
+            return null;
+        }
+
+        int[] others = shared.getOrDefault(cell, new int[0]);
+        int[] rows = new int[others.length + 1];
+        rows[0] = row;
+        System.arraycopy(others, 0, rows, 1, others.length);
+        return rows;
+    }
+
+    private FeatureStore read(File file) throws Exception {
+        return conversion.read(h3core, Conversion.isH3(conversion.input()) ? null : new FileInputStream(file), file, new Metrics());
+    }
+
+    /**
+     * Distance in degrees by which cells of a removed geometry may reach beyond its envelope, and cells of another
+     * geometry beyond its own, so that geometries further apart can not share a cell.
+     */
+    private double margin(FeatureStore features, List<Integer> ids) {
+        double lat = 0.D;
+        for (int i : ids) {
+            Envelope env = features.envelope(i);
+            lat = Math.max(lat, Math.max(Math.abs(env.getMinY()), Math.abs(env.getMaxY())));
+        }
+
+        double meters = MARGIN_CELLS * h3core.edgeLength(conversion.maxRes(), LengthUnit.m);
+        return meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(Math.min(lat, MAX_LATITUDE))));
+    }
+
+    /**
+     * Loads a previous output of this conversion into a cell store, with rows holding its stored columns. Further
+     * lines of a cell, written under the all policy, go to the shared rows in their order. An h3b output has none,
+     * as the conversion rejects the all policy for it.
+     */
+    private void load(File file, CellStore hashes, Map<Long, int[]> shared, AttributeTable attributes) throws IOException {
+        if (conversion.output().startsWith(H_3B)) {
+            try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+                int[] rows = new int[reader.rowCount()];
+                for (int r = 0; r < rows.length; r++) {
+                    rows[r] = attributes.intern(reader.attributes(r));
+                }
+
+                reader.forEach((cell, row) -> hashes.put(cell, rows[row]));
+            }
+            return;
+        }
+
+        List<String> columns = conversion.columns();
+        int indexColumn = columns.indexOf(INDEX);
+        if (indexColumn < 0) {
+            throw new IllegalArgumentException("Attribute " + INDEX + " is required to patch a previous output");
+        }
+
+        try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 4096 * 1024),
+                CSVFormat.EXCEL.withDelimiter(COMMA))) {
+            for (CSVRecord rec : parser) {
+                Map<String, Object> props = new HashMap<>();
+                for (int i = 0; i < columns.size(); i++) {
+                    if ((i != indexColumn) && !columns.get(i).equals(UNDERSCORE)) {
+                        props.put(columns.get(i), rec.get(i));
+                    }
+                }
+
+                long cell = Long.parseLong(rec.get(indexColumn), 16);
+                int row = attributes.intern(props);
+                if (hashes.get(cell) == CellStore.ABSENT) {
+                    hashes.put(cell, row);
+                } else {
+                    int[] others = shared.getOrDefault(cell, new int[0]);
+                    int[] rows = Arrays.copyOf(others, others.length + 1);
+                    rows[others.length] = row;
+                    shared.put(cell, rows);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the lines of every affected cell that changed: all lines of the previous output as removed, and all
+     * lines of the patched output as added.
+     */
+    private void delta(File file, long[] cells, Map<Long, int[]> original, CellStore hashes, Map<Long, int[]> shared,
+                       AttributeTable attributes, List<String> columns) throws IOException {
+        long plus = 0L, minus = 0L;
+
+        try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 4096 * 1024),
+                CSVFormat.EXCEL.withDelimiter(COMMA))) {
+            printer.print(OP);
+            for (String col : columns) {
+                printer.print(col);
+            }
+            printer.println();
+
+            for (long cell : cells) {
+                List<List<String>> before = values(cell, original.get(cell), attributes, columns);
+                List<List<String>> after = values(cell, rows(cell, hashes, shared), attributes, columns);
+                if (before.equals(after)) {
+                    continue;
+                }
+
+                for (List<String> line : before) {
+                    printer.print(REMOVED);
+                    printer.printRecord(line);
+                    minus++;
+                }
+                for (List<String> line : after) {
+                    printer.print(ADDED);
+                    printer.printRecord(line);
+                    plus++;
+                }
+            }
+        }
+
+        metrics.count("delta.added", plus);
+        metrics.count("delta.removed", minus);
+    }
+
+    private static List<List<String>> values(long cell, int[] rows, AttributeTable attributes, List<String> columns) {
+        if (rows == null) {
+            return Collections.emptyList();
+        }
+
+        List<List<String>> lines = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            lines.add(values(cell, row, attributes, columns));
+        }
+        return lines;
+    }
+
+    private static List<String> values(long cell, int row, AttributeTable attributes, List<String> columns) {
+        Map<String, Object> props = attributes.get(row);
+        List<String> values = new ArrayList<>(columns.size());
+        for (String col : columns) {
+            Object v = INDEX.equals(col) ? Long.toHexString(cell) : props.get(col);
+            values.add((v == null) ? "" : String.valueOf(v));
+        }
+        return values;
+    }
+}
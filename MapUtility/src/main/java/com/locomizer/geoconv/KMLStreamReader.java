@@ -0,0 +1,265 @@
+package com.locomizer.geoconv;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * StAX pull-parser for KML. Emits every Placemark as soon as its end tag is reached, regardless of how deeply
+ * it is nested in Document and Folder elements. Coordinates are kept as raw text so that they can be decoded
+ * by the parallel stage. Geometries other than polygons, linear rings and points, such as line strings, tracks
+ * and models, are skipped, also inside MultiGeometry.
+ */
+public class KMLStreamReader implements Closeable {
+    public static final String PLACEMARK = "Placemark";
+    public static final String EXTENDED_DATA = "ExtendedData";
+    public static final String DATA = "Data";
+    public static final String VALUE = "value";
+    public static final String POLYGON = "Polygon";
+    public static final String LINEAR_RING = "LinearRing";
+    public static final String POINT = "Point";
+    public static final String MULTI_GEOMETRY = "MultiGeometry";
+    public static final String OUTER_BOUNDARY = "outerBoundaryIs";
+    public static final String INNER_BOUNDARY = "innerBoundaryIs";
+    public static final String COORDINATES = "coordinates";
+
+    private final InputStream input;
+    private final XMLStreamReader reader;
+
+    public KMLStreamReader(InputStream input) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+
+        this.input = new BufferedInputStream(input, 4096 * 1024);
+        this.reader = factory.createXMLStreamReader(this.input);
+    }
+
+    public void read(int batchSize, Consumer<List<Placemark>> consumer) throws XMLStreamException {
+        List<Placemark> batch = new ArrayList<>(batchSize);
+
+        while (reader.hasNext()) {
+            if ((reader.next() == XMLStreamConstants.START_ELEMENT) && PLACEMARK.equals(reader.getLocalName())) {
+                batch.add(placemark());
+
+                if (batch.size() >= batchSize) {
+                    consumer.accept(new ArrayList<>(batch));
+                    batch.clear();
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    private Placemark placemark() throws XMLStreamException {
+        Placemark pm = new Placemark();
+
+        Map<String, Object> fields = new HashMap<>();
+        String id = reader.getAttributeValue(null, Main.ID);
+        if (id != null) {
+            fields.put(Main.ID, id);
+        }
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+
+            switch (name) {
+                case Main.NAME:
+                case Main.ADDRESS:
+                case Main.DESCRIPTION:
+                case Main.PHONE_NUMBER: {
+                    fields.put(name, text());
+                    break;
+                }
+                case EXTENDED_DATA: {
+                    extendedData(pm.properties);
+                    break;
+                }
+                case POLYGON:
+                case LINEAR_RING:
+                case POINT:
+                case MULTI_GEOMETRY: {
+                    geometry(pm.shapes);
+                    break;
+                }
+                default: {
+                    skip();
+                }
+            }
+        }
+
+        pm.properties.putAll(fields);
+
+        return pm;
+    }
+
+    private void extendedData(Map<String, Object> properties) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (DATA.equals(reader.getLocalName())) {
+                String name = reader.getAttributeValue(null, Main.NAME);
+                String value = null;
+
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (VALUE.equals(reader.getLocalName())) {
+                        value = text();
+                    } else {
+                        skip();
+                    }
+                }
+
+                properties.put(name, value);
+            } else {
+                skip();
+            }
+        }
+    }
+
+    private void geometry(List<Shape> shapes) throws XMLStreamException {
+        String name = reader.getLocalName();
+
+        switch (name) {
+            case POLYGON: {
+                Shape shape = new Shape(POLYGON);
+
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    String boundary = reader.getLocalName();
+
+                    if (OUTER_BOUNDARY.equals(boundary) || INNER_BOUNDARY.equals(boundary)) {
+                        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                            if (LINEAR_RING.equals(reader.getLocalName())) {
+                                String coords = coordinates();
+                                if (OUTER_BOUNDARY.equals(boundary)) {
+                                    shape.rings.add(0, coords);
+                                } else {
+                                    shape.rings.add(coords);
+                                }
+                            } else {
+                                skip();
+                            }
+                        }
+                    } else {
+                        skip();
+                    }
+                }
+
+                if (!shape.rings.isEmpty()) {
+                    shapes.add(shape);
+                }
+                break;
+            }
+            case LINEAR_RING:
+            case POINT: {
+                Shape shape = new Shape(name);
+
+                String coords = coordinates();
+                if (coords != null) {
+                    shape.rings.add(coords);
+                    shapes.add(shape);
+                }
+                break;
+            }
+            case MULTI_GEOMETRY: {
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    geometry(shapes);
+                }
+                break;
+            }
+            default: {
+                skip();
+            }
+        }
+    }
+
+    private String coordinates() throws XMLStreamException {
+        String coords = null;
+
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (COORDINATES.equals(reader.getLocalName())) {
+                coords = text();
+            } else {
+                skip();
+            }
+        }
+
+        return coords;
+    }
+
+    private String text() throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+
+        for (int depth = 1; depth > 0; ) {
+            switch (reader.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE: {
+                    sb.append(reader.getText());
+                    break;
+                }
+                case XMLStreamConstants.START_ELEMENT: {
+                    depth++;
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    depth--;
+                    break;
+                }
+            }
+        }
+
+        return sb.toString().trim();
+    }
+
+    private void skip() throws XMLStreamException {
+        for (int depth = 1; depth > 0; ) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    depth++;
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    depth--;
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            input.close();
+        }
+    }
+
+    public static class Placemark {
+        public final Map<String, Object> properties = new HashMap<>();
+        public final List<Shape> shapes = new ArrayList<>();
+    }
+
+    public static class Shape {
+        public final String type;
+        public final List<String> rings = new ArrayList<>();
+
+        public Shape(String type) {
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.locomizer.geoconv;
+
+import org.locationtech.jts.geom.*;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Streaming KML writer. Every feature becomes a Placemark of a single Document, with name, address, id,
+ * description and phoneNumber mapped to their KML counterparts and all other attributes written as ExtendedData.
+ */
+public class KMLStreamWriter extends FeatureWriter {
+    public static final String NAMESPACE = "http://www.opengis.net/kml/2.2";
+
+    private final OutputStream output;
+    private final XMLStreamWriter writer;
+    private final int precision;
+    private final StringBuilder sb = new StringBuilder();
+
+    public KMLStreamWriter(OutputStream output, int precision) throws IOException {
+        this.output = new BufferedOutputStream(output, 4096 * 1024);
+        this.precision = precision;
+
+        try {
+            this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(this.output, StandardCharsets.UTF_8.name());
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+
+        start();
+    }
+
+    @Override
+    protected void begin() throws IOException {
+        try {
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("kml");
+            writer.writeDefaultNamespace(NAMESPACE);
+            writer.writeStartElement("Document");
+            writer.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    protected void feature(Geometry geometry, Map<String, Object> properties) throws IOException {
+        try {
+            writer.writeStartElement(KMLStreamReader.PLACEMARK);
+
+            Object id = properties.get(Main.ID);
+            if (id != null) {
+                writer.writeAttribute(Main.ID, String.valueOf(id));
+            }
+
+            for (String field : new String[]{Main.NAME, Main.ADDRESS, Main.PHONE_NUMBER, Main.DESCRIPTION}) {
+                Object v = properties.get(field);
+                if (v != null) {
+                    writer.writeStartElement(field);
+                    writer.writeCharacters(String.valueOf(v));
+                    writer.writeEndElement();
+                }
+            }
+
+            boolean extended = false;
+            for (Map.Entry<String, Object> e : properties.entrySet()) {
+                switch (e.getKey()) {
+                    case Main.NAME:
+                    case Main.ADDRESS:
+                    case Main.ID:
+                    case Main.DESCRIPTION:
+                    case Main.PHONE_NUMBER: {
+                        break;
+                    }
+                    default: {
+                        if (!extended) {
+                            writer.writeStartElement(KMLStreamReader.EXTENDED_DATA);
+                            extended = true;
+                        }
+
+                        writer.writeStartElement(KMLStreamReader.DATA);
+                        writer.writeAttribute(Main.NAME, e.getKey());
+                        writer.writeStartElement(KMLStreamReader.VALUE);
+                        writer.writeCharacters(String.valueOf(e.getValue()));
+                        writer.writeEndElement();
+                        writer.writeEndElement();
+                    }
+                }
+            }
+            if (extended) {
+                writer.writeEndElement();
+            }
+
+            geometry(geometry);
+
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void geometry(Geometry geometry) throws XMLStreamException {
+        if (geometry instanceof Polygon) {
+            Polygon p = (Polygon) geometry;
+
+            writer.writeStartElement(KMLStreamReader.POLYGON);
+            writer.writeStartElement(KMLStreamReader.OUTER_BOUNDARY);
+            ring(p.getExteriorRing());
+            writer.writeEndElement();
+            for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                writer.writeStartElement(KMLStreamReader.INNER_BOUNDARY);
+                ring(p.getInteriorRingN(i));
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        } else if (geometry instanceof Point) {
+            writer.writeStartElement(KMLStreamReader.POINT);
+            coordinates(geometry.getCoordinates());
+            writer.writeEndElement();
+        } else if (geometry instanceof GeometryCollection) {
+            writer.writeStartElement(KMLStreamReader.MULTI_GEOMETRY);
+            for (int n = 0; n < geometry.getNumGeometries(); n++) {
+                geometry(geometry.getGeometryN(n));
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    private void ring(LineString ring) throws XMLStreamException {
+        writer.writeStartElement(KMLStreamReader.LINEAR_RING);
+        coordinates(ring.getCoordinates());
+        writer.writeEndElement();
+    }
+
+    private void coordinates(Coordinate[] coordinates) throws XMLStreamException {
+        sb.setLength(0);
+        for (int i = 0; i < coordinates.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            number(sb, coordinates[i].x, precision);
+            sb.append(Main.COMMA);
+            number(sb, coordinates[i].y, precision);
+        }
+
+        writer.writeStartElement(KMLStreamReader.COORDINATES);
+        writer.writeCharacters(sb.toString());
+        writer.writeEndElement();
+    }
+
+    @Override
+    protected void end() throws IOException {
+        try {
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    protected void release() throws IOException {
+        try {
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.locomizer.geoconv;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive longs.
+ */
+public class LongList {
+    private long[] values;
+    private int size = 0;
+
+    public LongList() {
+        this(16);
+    }
+
+    public LongList(int capacity) {
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    public void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size << 1);
+        }
+        values[size++] = value;
+    }
+
+    public long get(int i) {
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public long[] sortedDistinct() {
+        long[] sorted = toArray();
+        Arrays.sort(sorted);
+
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if ((i == 0) || (sorted[i] != sorted[n - 1])) {
+                sorted[n++] = sorted[i];
+            }
+        }
+
+        return (n == sorted.length) ? sorted : Arrays.copyOf(sorted, n);
+    }
+}
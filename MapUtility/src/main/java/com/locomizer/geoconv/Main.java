@@ -1,38 +1,27 @@
 package com.locomizer.geoconv;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.uber.h3core.H3Core;
-import com.uber.h3core.util.GeoCoord;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVPrinter;
-import org.locationtech.jts.geom.*;
-import org.wololo.geojson.Feature;
-import org.wololo.geojson.FeatureCollection;
-import org.wololo.geojson.GeoJSON;
-import org.wololo.geojson.GeoJSONFactory;
-import org.wololo.jts2geojson.GeoJSONReader;
-import org.wololo.jts2geojson.GeoJSONWriter;
-
-import java.io.BufferedWriter;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.StringReader;
-import java.nio.file.Files;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 
 @SuppressWarnings({"Duplicates"})
 public class Main {
     public static final String JSON = "json";
     public static final String KML = "kml";
+    public static final String FGB = "fgb";
     public static final String H_3 = "h3(";
+    public static final String H_3B = "h3b(";
 
     public static final String INDEX = "_index";
     public static final String LEVEL = "_res";
@@ -43,425 +32,449 @@ public class Main {
     public static final String PHONE_NUMBER = "phoneNumber";
 
     public static final String UNDERSCORE = "_";
+    public static final String ALL = "*";
 
     public static final Character COMMA = ',';
     public static final String COMMA_STR = COMMA.toString();
 
-    private static final GeometryFactory FACTORY = new GeometryFactory();
+    public static final int FEATURE_BATCH = 1024;
+
+    public static final String OPT_MEMORY = "memory";
+    public static final String OPT_UNCOMPACT = "uncompact";
+    public static final String OPT_SPLIT = "split";
+    public static final String OPT_DISSOLVE = "dissolve";
+    public static final String OPT_GEOJSONSEQ = "geojsonseq";
+    public static final String OPT_PRECISION = "precision";
+    public static final String OPT_STATS = "stats";
+    public static final String OPT_PROGRESS = "progress";
+    public static final String OPT_BATCH = "batch";
+    public static final String OPT_WORKERS = "workers";
+    public static final String OPT_SERVE = "serve";
+    public static final String OPT_TAG = "tag";
+    public static final String OPT_CACHE = "cache";
+    public static final String OPT_CACHE_SIZE = "cache-size";
+    public static final String OPT_PREVIOUS_INPUT = "previous-input";
+    public static final String OPT_PREVIOUS_OUTPUT = "previous-output";
+    public static final String OPT_DELTA = "delta";
+    public static final String OPT_CONFLICT = "conflict";
+    public static final String OPT_COVERAGE = "coverage";
+    public static final String OPT_ALGEBRA = "algebra";
+    public static final String OPT_ROLLUP = "rollup";
+    public static final String OPT_SPILL = "spill";
+    public static final String OPT_SPILL_DIR = "spill-dir";
+    public static final String OPT_THREADS = "threads";
+
+    private static final long CANCEL_MILLIS = 10000L;
+
+    public static Options options() {
+        Options options = new Options();
+        options.addOption(null, OPT_MEMORY, false, "Print memory usage report of H3 output to stderr");
+        options.addOption(null, OPT_UNCOMPACT, true, "Expand coarser H3 input cells to children of this resolution");
+        options.addOption(null, OPT_SPLIT, true, "Split polygons estimated to cover more cells than this into parallel tiles");
+        options.addOption(null, OPT_DISSOLVE, true, "Merge H3 input cells into outlines grouped by these attributes");
+        options.addOption(null, OPT_GEOJSONSEQ, false, "Write GeoJSON output as newline-delimited Features");
+        options.addOption(null, OPT_PRECISION, true, "Round output coordinates to this number of decimal places");
+        options.addOption(null, OPT_STATS, true, "Write run statistics as JSON to this file, or - for stderr");
+        options.addOption(null, OPT_PROGRESS, true, "Print a progress line to stderr every this many seconds");
+        options.addOption(null, OPT_BATCH, false, "Convert all files of a manifest or a glob");
+        options.addOption(null, OPT_WORKERS, true, "Number of files or requests converted concurrently");
+        options.addOption(null, OPT_SERVE, true, "Serve conversions over HTTP on this local port");
+        options.addOption(null, OPT_TAG, false, "Tag a CSV of points with the attributes of coverage cells");
+        options.addOption(null, OPT_CACHE, true, "Reuse polygon coverages stored in this directory");
+        options.addOption(null, OPT_CACHE_SIZE, true, "Maximum size of the coverage cache in megabytes");
+        options.addOption(null, OPT_PREVIOUS_INPUT, true, "Input file of a previous run to diff the input against");
+        options.addOption(null, OPT_PREVIOUS_OUTPUT, true, "H3 output file of a previous run to patch");
+        options.addOption(null, OPT_DELTA, true, "Write cells added and removed by the patch to this CSV file");
+        options.addOption(null, OPT_CONFLICT, true, "Policy choosing the owner of a cell covered by several geometries");
+        options.addOption(null, OPT_COVERAGE, true, "Mode selecting the cells that cover a polygon");
+        options.addOption(null, OPT_ALGEBRA, true, "Union, intersection or difference of two H3 coverages");
+        options.addOption(null, OPT_ROLLUP, true, "Roll these numeric attributes of an H3 coverage up to coarser resolutions");
+        options.addOption(null, OPT_SPILL, true, "Spill H3 cells to sorted runs on disk once more than this are held in memory");
+        options.addOption(null, OPT_SPILL_DIR, true, "Directory of the runs spilled to disk");
+        options.addOption(null, OPT_THREADS, true, "Number of threads running the parallel work of conversions");
+        return options;
+    }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 4) {
-            printHelpAndExit();
-        }
-
-        String in = null, out = null;
-        int[] resolutions = {-1, -1};
+        CommandLine cmd = null;
         try {
-            in = args[0].toLowerCase();
-            if (!in.equals(JSON) && !in.equals(KML) && !in.startsWith(H_3)) {
-                printHelpAndExit();
-            }
-
-            out = args[1].toLowerCase();
-            if (!out.equals(JSON) && !out.equals(KML) && !out.startsWith(H_3)) {
-                printHelpAndExit();
-            }
-        } catch (Exception e) {
+            cmd = new DefaultParser().parse(options(), args);
+        } catch (ParseException e) {
             printHelpAndExit();
         }
 
-        if (in.equals(out) || (in.startsWith(H_3) && out.startsWith(H_3))) {
+        args = cmd.getArgs();
+        int workers = Runtime.getRuntime().availableProcessors();
 
+        int threads = workers;
+        try {
+            threads = Integer.parseInt(cmd.getOptionValue(OPT_THREADS, String.valueOf(threads)));
+        } catch (NumberFormatException e) {
             printHelpAndExit();
         }
 
-        List<String> columns = null;
+        Scheduler scheduler = new Scheduler(threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> scheduler.cancel(CANCEL_MILLIS), "Cancel"));
 
-        if (in.startsWith(H_3)) {
-            columns = Arrays.stream(args[0].substring(3, args[0].length() - 1).split(COMMA_STR))
-                    .map(String::trim)
-                    .collect(Collectors.toList());
-
-            if (columns.isEmpty() || !columns.contains(INDEX)) {
+        if (cmd.hasOption(OPT_SERVE)) {
+            Server server = null;
+            try {
+                if (args.length != 0) {
+                    printHelpAndExit();
+                }
+                workers = Integer.parseInt(cmd.getOptionValue(OPT_WORKERS, String.valueOf(workers)));
+                server = new Server(H3Core.newInstance(), Integer.parseInt(cmd.getOptionValue(OPT_SERVE)), workers, scheduler);
+            } catch (NumberFormatException e) {
                 printHelpAndExit();
             }
-        }
 
-        if (out.startsWith(H_3)) {
-            columns = Arrays.stream(args[1].substring(3, args[1].length() - 1).split(COMMA_STR))
-                    .map(String::trim)
-                    .collect(Collectors.toList());
+            server.start();
+            System.err.println("Serving conversions at http://" + server.address().getHostString() + ":" + server.address().getPort() + Server.CONVERT);
+            return;
+        }
 
-            if (columns.isEmpty() || !columns.contains(INDEX)) {
+        if (cmd.hasOption(OPT_TAG)) {
+            if ((args.length != 5) || !Conversion.isH3(args[0].toLowerCase())) {
                 printHelpAndExit();
             }
 
-            try {
-                Pattern resPattern = Pattern.compile("(\\d+)");
-
-                Matcher m = resPattern.matcher(columns.get(0));
-                if (m.find()) {
-                    resolutions[0] = Integer.parseInt(m.group(1));
-                    if (m.find()) {
-                        resolutions[1] = Integer.parseInt(m.group(1));
-                    }
-                } else {
-                    printHelpAndExit();
-                }
-            } catch (Exception e) {
+            File indexFile = new File(args[2]);
+            File pointsFile = new File(args[3]);
+            File outFile = new File(args[4]);
+            if (!Batch.accessible(indexFile, outFile) || !Batch.accessible(pointsFile, outFile)) {
                 printHelpAndExit();
             }
 
-            for (int resolution : resolutions) {
-                if (resolution > 15) {
-                    printHelpAndExit();
-                }
-            }
+            Metrics metrics = new Metrics();
+            Closeable progress = cmd.hasOption(OPT_PROGRESS)
+                    ? metrics.report(Long.parseLong(cmd.getOptionValue(OPT_PROGRESS)))
+                    : null;
 
-            Arrays.sort(resolutions);
+            metrics.stage("index");
+            Tagger tagger = null;
+            try {
+                CellIndex index = CellIndex.load(args[0], indexFile);
+                tagger = new Tagger(index, H3Core.newInstance(), args[0], args[1], scheduler, metrics);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                printHelpAndExit();
+            }
 
-            columns.remove(0);
-        }
+            metrics.stage("tag");
+            tagger.tag(new FileInputStream(pointsFile), new FileOutputStream(outFile));
 
-        File inFile = new File(args[2]);
-        File outFile = new File(args[3]);
-        if (!inFile.isFile() || !inFile.canRead() || (outFile.isFile() && !outFile.canWrite()) || (!outFile.isFile() && outFile.exists())) {
-            printHelpAndExit();
+            finish(cmd, metrics, progress);
+            return;
         }
 
-
-        String input = new String(Files.readAllBytes(inFile.toPath()));
-        Map<Geometry, Map<String, Object>> geometries = new ConcurrentHashMap<>();
-
-
-        if (JSON.equals(in)) {
-            GeoJSON json = GeoJSONFactory.create(input);
-            GeoJSONReader reader = new GeoJSONReader();
-
-            if (json instanceof Feature) {
-                Feature feature = (Feature) json;
-
-                feature(geometries, reader, feature);
-            } else if (json instanceof FeatureCollection) {
-                FeatureCollection collection = (FeatureCollection) json;
-
-                Arrays.stream(collection.getFeatures()).parallel()
-                        .forEach(feature -> feature(geometries, reader, feature));
-            } else {
-                throw new RuntimeException("Input JSON root element was neither Feature nor FeatureCollection");
+        if (cmd.hasOption(OPT_ALGEBRA)) {
+            if (args.length != 6) {
+                printHelpAndExit();
             }
-        }
 
-        if (KML.equals(in)) {
-            de.micromata.opengis.kml.v_2_2_0.Kml kml = de.micromata.opengis.kml.v_2_2_0.Kml.unmarshal(input);
-
-            de.micromata.opengis.kml.v_2_2_0.Feature feature = kml.getFeature();
+            File leftFile = new File(args[3]);
+            File rightFile = new File(args[4]);
+            File outFile = new File(args[5]);
+            if (!Batch.accessible(leftFile, outFile) || !Batch.accessible(rightFile, outFile)) {
+                printHelpAndExit();
+            }
 
-            if (feature instanceof de.micromata.opengis.kml.v_2_2_0.Placemark) {
-                de.micromata.opengis.kml.v_2_2_0.Placemark p = (de.micromata.opengis.kml.v_2_2_0.Placemark) feature;
+            Metrics metrics = new Metrics();
+            Closeable progress = cmd.hasOption(OPT_PROGRESS)
+                    ? metrics.report(Long.parseLong(cmd.getOptionValue(OPT_PROGRESS)))
+                    : null;
 
-                placemark(geometries, p);
-            } else {
-                List<de.micromata.opengis.kml.v_2_2_0.Container> containers = new ArrayList<>();
-                container(containers, feature);
-
-                containers.parallelStream()
-                        .forEach(container -> {
-                            if (container instanceof de.micromata.opengis.kml.v_2_2_0.Document) {
-                                de.micromata.opengis.kml.v_2_2_0.Document d = (de.micromata.opengis.kml.v_2_2_0.Document) container;
-
-                                for (de.micromata.opengis.kml.v_2_2_0.Feature f : d.getFeature()) {
-                                    if (f instanceof de.micromata.opengis.kml.v_2_2_0.Placemark) {
-                                        de.micromata.opengis.kml.v_2_2_0.Placemark p = (de.micromata.opengis.kml.v_2_2_0.Placemark) f;
-
-                                        placemark(geometries, p);
-                                    }
-                                }
-                            }
-
-                            if (container instanceof de.micromata.opengis.kml.v_2_2_0.Folder) {
-                                de.micromata.opengis.kml.v_2_2_0.Folder fo = (de.micromata.opengis.kml.v_2_2_0.Folder) container;
-
-                                for (de.micromata.opengis.kml.v_2_2_0.Feature f : fo.getFeature()) {
-                                    if (f instanceof de.micromata.opengis.kml.v_2_2_0.Placemark) {
-                                        de.micromata.opengis.kml.v_2_2_0.Placemark p = (de.micromata.opengis.kml.v_2_2_0.Placemark) f;
-
-                                        placemark(geometries, p);
-                                    }
-                                }
-                                containers.add(fo);
-                            }
-                        });
+            Algebra algebra = null;
+            try {
+                algebra = new Algebra(cmd.getOptionValue(OPT_ALGEBRA), args[0], args[1], args[2], H3Core.newInstance(), metrics,
+                        CellRuns.DEFAULT_RUN_CELLS, spillDir(cmd));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                printHelpAndExit();
             }
-        }
-
-        if (in.startsWith(H_3)) {
-            H3Core h3core = H3Core.newInstance();
 
-            try (CSVParser parser = new CSVParser(new StringReader(input), CSVFormat.EXCEL.withDelimiter(COMMA))) {
-                List<String> _columns = columns;
+            Algebra op = algebra;
+            scheduler.call(() -> {
+                op.run(leftFile, rightFile, outFile);
+                return null;
+            });
 
-                StreamSupport.stream(parser.spliterator(), true)
-                        .forEach(rec -> {
-                            Map<String, Object> props = new HashMap<>();
+            finish(cmd, metrics, progress);
+            return;
+        }
 
-                            Long hash = null;
-                            for (int i = _columns.size(); i > 0; ) {
-                                String col = _columns.get(--i);
+        if (cmd.hasOption(OPT_ROLLUP)) {
+            if (args.length != 4) {
+                printHelpAndExit();
+            }
 
-                                if (!col.equals(UNDERSCORE)) {
-                                    String c = rec.get(i);
-                                    if (col.equals(INDEX)) {
-                                        hash = Long.parseLong(c, 16);
-                                    }
-                                    props.put(col, c);
-                                }
-                            }
+            File inFile = new File(args[2]);
+            File outFile = new File(args[3]);
+            if (!Batch.accessible(inFile, outFile)) {
+                printHelpAndExit();
+            }
 
-                            List<GeoCoord> geo = h3core.h3ToGeoBoundary(hash);
-                            geo.add(geo.get(0));
+            Metrics metrics = new Metrics();
+            Closeable progress = cmd.hasOption(OPT_PROGRESS)
+                    ? metrics.report(Long.parseLong(cmd.getOptionValue(OPT_PROGRESS)))
+                    : null;
 
-                            List<Coordinate> cl = new ArrayList<>();
-                            geo.forEach(c -> cl.add(new Coordinate(c.lng, c.lat)));
+            Rollup rollup = null;
+            try {
+                rollup = new Rollup(args[0], args[1], Arrays.asList(cmd.getOptionValue(OPT_ROLLUP).split(",")), metrics, spillDir(cmd));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                printHelpAndExit();
+            }
 
-                            Polygon polygon = FACTORY.createPolygon(cl.toArray(new Coordinate[0]));
+            Rollup aggregation = rollup;
+            scheduler.call(() -> {
+                aggregation.run(inFile, outFile);
+                return null;
+            });
 
-                            geometries.put(polygon, props);
-                        });
-            }
+            finish(cmd, metrics, progress);
+            return;
         }
 
-        if (out.startsWith(H_3)) {
-            H3Core h3core = H3Core.newInstance();
+        boolean batch = cmd.hasOption(OPT_BATCH);
+        if (batch ? ((args.length < 3) || (args.length > 4)) : (args.length != 4)) {
+            printHelpAndExit();
+        }
 
-            Map<Long, Map<String, Object>> hashes = new ConcurrentHashMap<>();
+        Conversion conversion = null;
+        try {
+            conversion = new Conversion(args[0], args[1], cmd, scheduler);
+        } catch (IllegalArgumentException e) {
+            printHelpAndExit();
+        }
 
-            int curLev, maxLev;
-            if (resolutions[0] < 0) {
-                curLev = maxLev = resolutions[1];
-            } else {
-                curLev = resolutions[0];
-                maxLev = resolutions[1];
+        List<File[]> files = null;
+        if (batch) {
+            try {
+                files = (args.length == 3)
+                        ? Batch.manifest(new File(args[2]))
+                        : Batch.glob(args[2], new File(args[3]), conversion.output());
+                workers = Integer.parseInt(cmd.getOptionValue(OPT_WORKERS, String.valueOf(workers)));
+            } catch (IOException | NumberFormatException e) {
+                System.err.println(e.getMessage());
+                printHelpAndExit();
             }
-
-            Map<Geometry, Map<String, Object>> gmtrs = geometries;
-
-            for (; curLev <= maxLev; curLev++) {
-                final int _level = curLev;
-
-                gmtrs = gmtrs.entrySet().parallelStream()
-                        .map(res -> {
-                            Geometry geometry = res.getKey();
-                            Map<String, Object> props = res.getValue();
-                            Map<String, Object> np = new HashMap<>(props);
-                            np.put(LEVEL, _level);
-
-                            if (geometry instanceof Polygon) {
-                                Polygon p = (Polygon) geometry;
-
-                                List<GeoCoord> gco = new ArrayList<>();
-                                LinearRing shell = (LinearRing) p.getExteriorRing();
-                                for (Coordinate c : shell.getCoordinates()) {
-                                    gco.add(new GeoCoord(c.y, c.x));
-                                }
-
-                                List<LinearRing> holes = new ArrayList<>();
-
-                                List<List<GeoCoord>> gci = new ArrayList<>();
-                                for (int i = p.getNumInteriorRing(); i > 0; ) {
-                                    List<GeoCoord> gcii = new ArrayList<>();
-                                    LinearRing hole = (LinearRing) p.getInteriorRingN(--i);
-
-                                    for (Coordinate c : hole.getCoordinates()) {
-                                        gcii.add(new GeoCoord(c.y, c.x));
-                                    }
-                                    gci.add(gcii);
-
-                                    if (_level != maxLev) {
-                                        holes.add(hole);
-                                    }
-                                }
-
-                                Set<Long> polyfill = new HashSet<>(h3core.polyfill(gco, gci, _level));
-                                for (Long hash : polyfill) {
-                                    if (_level == maxLev) {
-                                        List<Long> neigh = h3core.kRing(hash, 1);
-                                        hashes.put(hash, np);
-                                        neigh.forEach(n -> hashes.putIfAbsent(n, np));
-                                    } else {
-                                        if (polyfill.containsAll(h3core.kRing(hash, 1))) {
-                                            List<GeoCoord> geo = h3core.h3ToGeoBoundary(hash);
-                                            geo.add(geo.get(0));
-
-                                            List<Coordinate> cl = new ArrayList<>();
-                                            geo.forEach(c -> cl.add(new Coordinate(c.lng, c.lat)));
-
-                                            Collections.reverse(cl);
-                                            LinearRing hole = FACTORY.createLinearRing(cl.toArray(new Coordinate[0]));
-                                            holes.add(hole);
-
-                                            hashes.put(hash, np);
-                                        }
-                                    }
-                                }
-
-                                if (_level != maxLev) {
-                                    geometry = FACTORY.createPolygon(shell, holes.toArray(new LinearRing[0]));
-                                }
-                            }
-
-                            if (_level == maxLev) {
-                                if (geometry instanceof Point) {
-                                    Coordinate c = geometry.getCoordinate();
-
-                                    Long pointfill = h3core.geoToH3(c.y, c.x, _level);
-                                    hashes.put(pointfill, props);
-                                }
-                            }
-
-                            return new AbstractMap.SimpleEntry<>(geometry, props);
-                        })
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        } else {
+            File inFile = new File(args[2]);
+            File outFile = new File(args[3]);
+            if (!Batch.accessible(inFile, outFile)) {
+                printHelpAndExit();
             }
 
-            try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new FileWriter(outFile), 4096 * 1024), CSVFormat.EXCEL.withDelimiter(COMMA))) {
-                for (Map.Entry<Long, Map<String, Object>> h : hashes.entrySet()) {
-                    for (String col : columns) {
-                        if (INDEX.equals(col)) {
-                            printer.print(Long.toHexString(h.getKey()));
-                        } else {
-                            printer.print(h.getValue().get(col));
-                        }
-                    }
-                    printer.println();
+            if (cmd.hasOption(OPT_PREVIOUS_INPUT) || cmd.hasOption(OPT_PREVIOUS_OUTPUT)) {
+                if (!cmd.hasOption(OPT_PREVIOUS_INPUT) || !cmd.hasOption(OPT_PREVIOUS_OUTPUT) || !Conversion.isH3(conversion.output())
+                        || !new File(cmd.getOptionValue(OPT_PREVIOUS_INPUT)).canRead() || !new File(cmd.getOptionValue(OPT_PREVIOUS_OUTPUT)).canRead()) {
+                    printHelpAndExit();
                 }
             }
         }
 
-        if (KML.equals(out)) {
-            de.micromata.opengis.kml.v_2_2_0.Kml kml = new de.micromata.opengis.kml.v_2_2_0.Kml();
-            List<de.micromata.opengis.kml.v_2_2_0.Feature> kmlCollection = kml.createAndSetDocument().getFeature();
-
-            Queue<de.micromata.opengis.kml.v_2_2_0.Placemark> pms = new ConcurrentLinkedQueue<>();
-            geometries.entrySet().parallelStream()
-                    .forEach(res -> {
-                        de.micromata.opengis.kml.v_2_2_0.Placemark pm = new de.micromata.opengis.kml.v_2_2_0.Placemark();
-                        pms.add(pm);
-
-                        de.micromata.opengis.kml.v_2_2_0.ExtendedData ed = pm.createAndSetExtendedData();
-
-                        res.getValue().forEach((k, v) -> {
-                            switch (k) {
-                                case NAME: {
-                                    pm.setName(String.valueOf(v));
-                                    break;
-                                }
-                                case ADDRESS: {
-                                    pm.setAddress(String.valueOf(v));
-                                    break;
-                                }
-                                case ID: {
-                                    pm.setId(String.valueOf(v));
-                                    break;
-                                }
-                                case DESCRIPTION: {
-                                    pm.setDescription(String.valueOf(v));
-                                    break;
-                                }
-                                case PHONE_NUMBER: {
-                                    pm.setPhoneNumber(String.valueOf(v));
-                                    break;
-                                }
-                                default:
-                                    ed.createAndAddData(String.valueOf(v)).setName(k);
-                            }
-                        });
-
-                        Geometry geo = res.getKey();
-                        if (geo instanceof Polygon) {
-                            de.micromata.opengis.kml.v_2_2_0.Polygon pg = pm.createAndSetPolygon();
-
-                            List<de.micromata.opengis.kml.v_2_2_0.Coordinate> lc = pg
-                                    .createAndSetOuterBoundaryIs()
-                                    .createAndSetLinearRing()
-                                    .createAndSetCoordinates();
-
-                            for (Coordinate c : ((Polygon) geo).getExteriorRing().getCoordinates()) {
-                                lc.add(new de.micromata.opengis.kml.v_2_2_0.Coordinate(c.getX(), c.getY()));
-                            }
-
-                            for (int i = ((Polygon) geo).getNumInteriorRing(); i > 0; i--) {
-                                List<de.micromata.opengis.kml.v_2_2_0.Coordinate> lci = pg
-                                        .createAndAddInnerBoundaryIs()
-                                        .createAndSetLinearRing()
-                                        .createAndSetCoordinates();
-
-                                for (Coordinate c : ((Polygon) geo).getInteriorRingN(i - 1).getCoordinates()) {
-                                    lci.add(new de.micromata.opengis.kml.v_2_2_0.Coordinate(c.getX(), c.getY()));
-                                }
-                            }
-                        }
-                        if (geo instanceof Point) {
-                            de.micromata.opengis.kml.v_2_2_0.Point pt = pm.createAndSetPoint();
-
-                            List<de.micromata.opengis.kml.v_2_2_0.Coordinate> lc = pt.createAndSetCoordinates();
-
-                            Coordinate c = geo.getCoordinate();
-                            lc.add(new de.micromata.opengis.kml.v_2_2_0.Coordinate(c.getX(), c.getY()));
-                        }
-                    });
-
-            kmlCollection.addAll(pms);
-
-            kml.marshal(outFile);
+        Metrics metrics = new Metrics();
+        Closeable progress = cmd.hasOption(OPT_PROGRESS)
+                ? metrics.report(Long.parseLong(cmd.getOptionValue(OPT_PROGRESS)))
+                : null;
+
+        int failed = 0;
+        if (batch) {
+            failed = new Batch(conversion, H3Core.newInstance(), workers, metrics).run(files);
+        } else if (cmd.hasOption(OPT_PREVIOUS_INPUT)) {
+            new Incremental(conversion, H3Core.newInstance(), metrics).run(new File(cmd.getOptionValue(OPT_PREVIOUS_INPUT)),
+                    new File(cmd.getOptionValue(OPT_PREVIOUS_OUTPUT)), new File(args[2]), new File(args[3]),
+                    cmd.hasOption(OPT_DELTA) ? new File(cmd.getOptionValue(OPT_DELTA)) : null);
+        } else {
+            conversion.run(H3Core.newInstance(), new File(args[2]), new File(args[3]), metrics);
         }
 
-        if (JSON.equals(out)) {
-            GeoJSONWriter writer = new GeoJSONWriter();
+        finish(cmd, metrics, progress);
 
-            Queue<Feature> fl = new ConcurrentLinkedQueue<>();
-
-            geometries.entrySet().parallelStream()
-                    .forEach(e -> fl.add(new Feature(writer.write(e.getKey()), e.getValue())));
+        if (failed > 0) {
+            System.err.println(failed + " of " + files.size() + " files failed");
+            System.exit(1);
+        }
+    }
 
-            FeatureCollection fc = writer.write(new ArrayList<>(fl));
+    /**
+     * @return the directory of --spill-dir, or null for the default temporary directory
+     * @throws IllegalArgumentException if the directory does not exist
+     */
+    static File spillDir(CommandLine cmd) {
+        File dir = cmd.hasOption(OPT_SPILL_DIR) ? new File(cmd.getOptionValue(OPT_SPILL_DIR)) : null;
+        if ((dir != null) && !dir.isDirectory()) {
+            throw new IllegalArgumentException("Spill directory " + dir + " does not exist");
+        }
+        return dir;
+    }
 
-            ObjectMapper om = new ObjectMapper();
+    private static void finish(CommandLine cmd, Metrics metrics, Closeable progress) throws IOException {
+        metrics.finish();
+        if (progress != null) {
+            progress.close();
+        }
 
-            om.writeValue(outFile, fc);
+        if (cmd.hasOption(OPT_STATS)) {
+            String stats = cmd.getOptionValue(OPT_STATS);
+            if (stats.equals("-")) {
+                metrics.write(System.err);
+            } else {
+                try (FileOutputStream fos = new FileOutputStream(stats)) {
+                    metrics.write(fos);
+                }
+            }
         }
     }
 
     private static void printHelpAndExit() {
         System.err.println("Call syntax:\n" +
-                "   java -jar locomizer-geoconv.jar input output /path/to/input/file /path/to/output/file\n" +
+                "   java -jar locomizer-geoconv.jar [options] input output /path/to/input/file /path/to/output/file\n" +
+                "   java -jar locomizer-geoconv.jar --batch [options] input output /path/to/manifest\n" +
+                "   java -jar locomizer-geoconv.jar --batch [options] input output '/path/to/input/*.glob' /path/to/output/dir\n" +
+                "   java -jar locomizer-geoconv.jar --serve port [--workers count] [--threads count]\n" +
+                "   java -jar locomizer-geoconv.jar --tag [options] coverage 'points(lat,lon)' /path/to/coverage /path/to/points /path/to/output\n" +
+                "   java -jar locomizer-geoconv.jar --algebra operation [options] left right output /path/to/left /path/to/right /path/to/output\n" +
+                "   java -jar locomizer-geoconv.jar --rollup attributes [options] input output /path/to/input /path/to/output\n" +
+                "Options:\n" +
+                "   --memory to print H3 cell store size, attribute row count and heap usage to stderr\n" +
+                "   --uncompact resolution to expand coarser cells of a compact H3 input to their children\n" +
+                "   --split cells to polyfill polygons estimated to cover more cells than that as parallel tiles\n" +
+                "     (default is 50000, 0 disables splitting)\n" +
+                "   --dissolve attributes to merge H3 input cells into outline (Multi)Polygons, one per distinct combination\n" +
+                "     of the comma-separated attributes, or of all attributes except _index and _res if * is given\n" +
+                "   --geojsonseq to write GeoJSON output as newline-delimited Features instead of a FeatureCollection\n" +
+                "   --precision digits to round output coordinates to that number of decimal places\n" +
+                "   --stats file to write run statistics as JSON to that file, or to stderr if - is given: stage times,\n" +
+                "     polyfill, ring and compact timers, counters, per-polygon time and cell histograms, peak heap,\n" +
+                "     and the slowest polygons with their attributes\n" +
+                "   --progress seconds to print elapsed time, current stage, counters and heap usage to stderr that often\n" +
+                "   --batch to convert many files in one run, see Batch notes\n" +
+                "   --workers count of files or requests converted concurrently (default is the number of processors)\n" +
+                "   --threads count of threads running the parallel work of all conversions of the run together, such as\n" +
+                "     parsing, polyfill and writing (default is the number of processors), see General notes\n" +
+                "   --serve port to serve conversions over HTTP on the loopback interface, see Server notes\n" +
+                "   --tag to append coverage attributes to a CSV of points, see Tagging notes\n" +
+                "   --algebra operation to combine two H3 coverages, see Algebra notes\n" +
+                "   --rollup attributes to aggregate the comma-separated numeric attributes of an H3 coverage to parent cells,\n" +
+                "     see Rollup notes\n" +
+                "   --cache directory to store polygon coverages in and reuse them for unchanged polygons, see H3 notes\n" +
+                "   --cache-size megabytes the coverage cache may grow to before least recently used entries are evicted\n" +
+                "     (default is 1024)\n" +
+                "   --previous-input file and --previous-output file of an earlier run to patch its H3 output, see Incremental notes\n" +
+                "   --delta file to write the cells changed by the patch to\n" +
+                "   --conflict policy choosing the attributes of a cell covered by several geometries, see H3 notes\n" +
+                "   --coverage mode selecting the cells that cover a polygon, see H3 notes\n" +
+                "   --spill cells to keep at most that many covered cells in memory and spill the rest to disk, see H3 notes\n" +
+                "   --spill-dir directory of the temporary files of --spill, fgb output, coverage operations and roll-ups\n" +
+                "     (default is the temporary directory)\n" +
                 "Inputs:\n" +
                 "   * json for GeoJSON\n" +
                 "   * kml for KML\n" +
                 "   * h3(attributes) for a properly quoted and escaped CSV of H3 indexes with attributes\n" +
+                "   * h3b(attributes) for a binary H3 coverage file\n" +
                 "Outputs:\n" +
                 "   * json\n" +
                 "   * kml\n" +
+                "   * fgb for FlatGeobuf with a spatial index\n" +
                 "   * h3(resolution,attributes)\n" +
                 "   * h3(res_from:res_to,attributes)\n" +
+                "   * h3b(resolution,attributes) or h3b(res_from:res_to,attributes) for a binary H3 coverage file\n" +
                 "General notes:\n" +
                 "   * output file will be overwritten without a prompt\n" +
                 "   * input and output formats must be different\n" +
                 "   * all geometries are extracted from their grouping wrappers such as features or folders\n" +
                 "     and flattened to polygons (preserving any holes) and points\n" +
+                "   * geometries are covered most costly first, by estimated cells and vertices, while the input is still\n" +
+                "     being read; --progress shows the estimated cost covered so far as cover.cost.done of cover.cost\n" +
+                "   * Ctrl+C cancels the running work and waits for it to delete its temporary files\n" +
                 "GeoJSON notes:\n" +
+                "   * input may be a Feature, a FeatureCollection, or a newline-delimited sequence of Features (GeoJSONSeq)\n" +
                 "   * supported geometry types are Polygon, Point, MultiPolygon and MultiPoint\n" +
+                "   * dissolved H3 outlines are written as Polygon or MultiPolygon\n" +
                 "KML notes:\n" +
-                "   * supported geometry types are Polygon, Point, and LinearRing inside a Placemark\n" +
+                "   * supported geometry types are Polygon, Point, LinearRing, and MultiGeometry of them inside a Placemark\n" +
+                "   * Placemarks are read in document order from any depth of nested Documents and Folders\n" +
                 "   * supported attributes are name, address, id, description, phoneNumber,\n" +
                 "     while all other will be treated as extended data\n" +
+                "FlatGeobuf notes:\n" +
+                "   * features are written in Hilbert order of their envelopes after a packed R-tree index, so that readers\n" +
+                "     can fetch the features of a bounding box with a few range requests\n" +
+                "   * attribute columns are typed Bool, Long, Double or Json by their values, and String if types are mixed\n" +
+                "   * features are buffered in a temporary file until the index is written, in --spill-dir if given\n" +
                 "H3 notes:\n" +
                 "   * attributes is a comma-separated list of arbitrary but unique attribute names\n" +
                 "   * the only mandatory attribute is _index which is treated as a hexadecimal string\n" +
                 "   * to output resolution of a given index, use attribute _res\n" +
                 "   * use _ (a single underscore) to skip a column\n" +
                 "   * resolution is an integer in the range of 0 to 15\n" +
-                "   * if two resolutions are specified, compact-ish coverage will be generated from lowest to highest\n" +
+                "   * h3b files hold sorted 64-bit indexes and a dictionary-encoded attribute table, and are memory mapped\n" +
+                "     on read; their attributes are selected by name, and _res is derived from the index if not stored\n" +
+                "   * if two resolutions are specified, compact-ish coverage will be generated from lowest to highest:\n" +
+                "     the highest resolution is filled once and then compacted, with cells coarser than lowest expanded back to it\n" +
+                "   * --coverage selects the cells of the highest resolution that cover a polygon: ring (default) for cells\n" +
+                "     whose center is inside and a one-cell ring around them, center for cells whose center is inside,\n" +
+                "     intersects for cells that intersect the polygon, or contains for cells entirely inside it; the last\n" +
+                "     two test only the cells along the polygon rings against the exact polygon\n" +
+                "   * a cell covered by several geometries goes to one whose interior covers it before one whose ring does,\n" +
+                "     and then by --conflict: first (default) for the first geometry in input order, overlap for the largest\n" +
+                "     area inside the cell, priority:attribute for the largest numeric value of that attribute, or all to write\n" +
+                "     a line for every geometry (h3 only); remaining ties go to input order, so output is reproducible\n" +
+                "   * cached coverages are keyed by the polygon coordinates and resolutions, regardless of vertex order,\n" +
+                "     ring orientation or attributes; hits and misses are reported by --stats\n" +
+                "   * with --spill, covered cells are sorted and written to temporary runs whenever the limit is reached,\n" +
+                "     and merged at the end with conflicts resolved as above, so the output is sorted by cell and may be\n" +
+                "     larger than the heap; h3b output and attribute rows are still built in memory\n" +
+                "Batch notes:\n" +
+                "   * a manifest holds one tab-separated pair of input and output paths per line, # starts a comment\n" +
+                "   * a glob selects input files of one directory, such as '/data/districts/*.kml', and each output is\n" +
+                "     named after its input with the extension of the output format (.json, .kml, .fgb, .csv or .h3b)\n" +
+                "   * every file prints an OK or FAILED line with elapsed milliseconds, paths and error to stdout,\n" +
+                "     and a failed file does not stop the others\n" +
+                "   * --stats and --progress report files converted and failed, and per-file times\n" +
+                "Server notes:\n" +
+                "   * POST /convert?in=format&out=format[&option=value...] converts the request body into the response,\n" +
+                "     with URL-encoded formats and options of the command line syntax and flags given without a value,\n" +
+                "     e.g. curl --data-binary @district.json 'localhost:8080/convert?in=json&out=h3(9,_index,name)'\n" +
+                "   * h3b is not supported, invalid requests get status 400 and failed conversions 500\n" +
+                "   * GET /stats returns request counts and latency histograms as JSON\n" +
+                "Incremental notes:\n" +
+                "   * polygons and points of the previous and the current input are diffed with their attributes, so a feature\n" +
+                "     whose geometry or attributes changed is removed and added again\n" +
+                "   * cells of removed geometries are dropped from the previous output and re-covered by unchanged geometries\n" +
+                "     near them, then added geometries are covered; only the changed geometries and their neighbours are polyfilled\n" +
+                "   * the previous output must have been written with the same output format and conflict policy, and h3\n" +
+                "     must include _index; the all policy needs h3, as h3b holds one row per cell\n" +
+                "   * the delta file has the output columns preceded by _op, which is + for an added and - for a removed cell,\n" +
+                "     with a cell whose attributes changed listed as both\n" +
+                "Tagging notes:\n" +
+                "   * coverage is an h3(attributes) or h3b(attributes) input, whose attributes other than _ are appended\n" +
+                "     to each point in that order, with _index and _res giving the matched cell and its resolution\n" +
+                "   * points is a CSV with a header row, where lat and lon name the latitude and longitude columns;\n" +
+                "     records must not span lines\n" +
+                "   * each point is looked up at the finest resolution of the coverage and then at coarser ones,\n" +
+                "     and points outside the coverage get empty attributes\n" +
+                "   * --threads sets the number of threads tagging blocks of points\n" +
+                "Algebra notes:\n" +
+                "   * operation is union, intersection or difference (cells of left that are not in right)\n" +
+                "   * left and right are h3(attributes) or h3b(attributes) inputs, and output is h3(resolution,attributes)\n" +
+                "     or h3b(resolution,attributes) with a single resolution\n" +
+                "   * both coverages are brought to the output resolution first: coarser cells are expanded to their children\n" +
+                "     and finer cells are replaced by their parents\n" +
+                "   * a cell carries the attributes of both coverages that have it, left ones first if names are equal,\n" +
+                "     so name the columns of h3 inputs apart to keep both\n" +
+                "   * coverages are sorted in runs spilled to temporary files and merged per base cell in parallel,\n" +
+                "     so they may be larger than the heap; h3b output is built in memory\n" +
+                "Rollup notes:\n" +
+                "   * input is h3(attributes) or h3b(attributes), and output is h3(resolutions,attributes) or\n" +
+                "     h3b(resolutions,attributes), with a row for every parent cell at every resolution of the range\n" +
+                "   * output attributes are _index, _res, _count for the number of input cells under the parent, and\n" +
+                "     name_count, name_sum, name_min, name_max and name_mean for each rolled-up attribute name\n" +
+                "   * values that are empty or not numbers are left out; min, max and mean are empty if no value is left\n" +
+                "   * input cells count towards parents at their own and coarser resolutions only\n" +
+                "   * rows are written by base cell, then by resolution from coarse to fine, then by cell\n" +
                 "Example 1:\n" +
                 "  Assume us need to cover an GeoJSON map of a country with h3 indices level 6\n" +
                 "  and then save resulting coverage as a KML file. This is a two-step process\n" +
@@ -474,160 +487,4 @@ public class Main {
 
         System.exit(1);
     }
-
-    private static void feature(Map<Geometry, Map<String, Object>> result, GeoJSONReader reader, Feature
-            feature) {
-        Geometry geometry = reader.read(feature.getGeometry());
-
-        Map<String, Object> fp = feature.getProperties();
-
-        if ((geometry instanceof Polygon) || (geometry instanceof Point)) {
-            result.put(geometry, fp);
-        }
-
-        if (geometry instanceof MultiPolygon) {
-            for (int n = geometry.getNumGeometries(); n > 0; ) {
-                Polygon p = (Polygon) geometry.getGeometryN(--n);
-                result.put(p, fp);
-            }
-        }
-
-        if (geometry instanceof MultiPoint) {
-            for (int n = geometry.getNumGeometries(); n > 0; ) {
-                Point p = (Point) geometry.getGeometryN(--n);
-                result.put(p, fp);
-            }
-        }
-    }
-
-    private static void container
-            (List<de.micromata.opengis.kml.v_2_2_0.Container> containers, de.micromata.opengis.kml.v_2_2_0.Feature
-                    feature) {
-        if (feature instanceof de.micromata.opengis.kml.v_2_2_0.Document) {
-            de.micromata.opengis.kml.v_2_2_0.Document d = (de.micromata.opengis.kml.v_2_2_0.Document) feature;
-
-            for (de.micromata.opengis.kml.v_2_2_0.Feature f : d.getFeature()) {
-                if (f instanceof de.micromata.opengis.kml.v_2_2_0.Container) {
-                    container(containers, f);
-                }
-            }
-            containers.add(d);
-        }
-
-        if (feature instanceof de.micromata.opengis.kml.v_2_2_0.Folder) {
-            de.micromata.opengis.kml.v_2_2_0.Folder fo = (de.micromata.opengis.kml.v_2_2_0.Folder) feature;
-
-            for (de.micromata.opengis.kml.v_2_2_0.Feature f : fo.getFeature()) {
-                if (f instanceof de.micromata.opengis.kml.v_2_2_0.Container) {
-                    container(containers, f);
-                }
-            }
-            containers.add(fo);
-        }
-    }
-
-    private static void placemark
-            (Map<Geometry, Map<String, Object>> result, de.micromata.opengis.kml.v_2_2_0.Placemark pm) {
-        Map<String, Object> properties = new HashMap<>();
-        de.micromata.opengis.kml.v_2_2_0.ExtendedData ed = pm.getExtendedData();
-        if (ed != null) {
-            List<de.micromata.opengis.kml.v_2_2_0.Data> d = ed.getData();
-            if (d != null) {
-                for (de.micromata.opengis.kml.v_2_2_0.Data dd : d) {
-                    properties.put(dd.getName(), dd.getValue());
-                }
-            }
-        }
-        String v = pm.getName();
-        if (v != null) {
-            properties.put(NAME, v);
-        }
-        v = pm.getAddress();
-        if (v != null) {
-            properties.put(ADDRESS, v);
-        }
-        v = pm.getId();
-        if (v != null) {
-            properties.put(ID, v);
-        }
-        v = pm.getDescription();
-        if (v != null) {
-            properties.put(DESCRIPTION, v);
-        }
-        v = pm.getPhoneNumber();
-        if (v != null) {
-            properties.put(PHONE_NUMBER, v);
-        }
-
-        de.micromata.opengis.kml.v_2_2_0.Geometry g = pm.getGeometry();
-        if (g != null) {
-            if (g instanceof de.micromata.opengis.kml.v_2_2_0.MultiGeometry) {
-                de.micromata.opengis.kml.v_2_2_0.MultiGeometry mg = (de.micromata.opengis.kml.v_2_2_0.MultiGeometry) g;
-
-                for (de.micromata.opengis.kml.v_2_2_0.Geometry gg : mg.getGeometry()) {
-                    geometry(result, gg, properties);
-                }
-            } else {
-                geometry(result, g, properties);
-            }
-        }
-    }
-
-    private static void geometry
-            (Map<Geometry, Map<String, Object>> result, de.micromata.opengis.kml.v_2_2_0.Geometry
-                    geometry, Map<String, Object> properties) {
-        if ((geometry instanceof de.micromata.opengis.kml.v_2_2_0.Polygon)) {
-            de.micromata.opengis.kml.v_2_2_0.Polygon p = (de.micromata.opengis.kml.v_2_2_0.Polygon) geometry;
-
-            List<de.micromata.opengis.kml.v_2_2_0.Coordinate> lc = p
-                    .getOuterBoundaryIs()
-                    .getLinearRing()
-                    .getCoordinates();
-
-            List<Coordinate> lco = new ArrayList<>();
-            for (de.micromata.opengis.kml.v_2_2_0.Coordinate c : lc) {
-                lco.add(new Coordinate(c.getLongitude(), c.getLatitude()));
-            }
-            LinearRing lro = FACTORY.createLinearRing(lco.toArray(new Coordinate[0]));
-
-            List<LinearRing> lri = new ArrayList<>();
-            List<de.micromata.opengis.kml.v_2_2_0.Boundary> lb = p.getInnerBoundaryIs();
-            for (de.micromata.opengis.kml.v_2_2_0.Boundary b : lb) {
-                lco = new ArrayList<>();
-                lc = b.getLinearRing().getCoordinates();
-                for (de.micromata.opengis.kml.v_2_2_0.Coordinate c : lc) {
-                    lco.add(new Coordinate(c.getLongitude(), c.getLatitude()));
-                }
-                lri.add(FACTORY.createLinearRing(lco.toArray(new Coordinate[0])));
-            }
-
-            Polygon res = FACTORY.createPolygon(lro, lri.toArray(new LinearRing[0]));
-            result.put(res, properties);
-        }
-
-        if ((geometry instanceof de.micromata.opengis.kml.v_2_2_0.LinearRing)) {
-            List<de.micromata.opengis.kml.v_2_2_0.Coordinate> lc = ((de.micromata.opengis.kml.v_2_2_0.LinearRing) geometry)
-                    .getCoordinates();
-
-            List<Coordinate> lco = new ArrayList<>();
-            for (de.micromata.opengis.kml.v_2_2_0.Coordinate c : lc) {
-                lco.add(new Coordinate(c.getLongitude(), c.getLatitude()));
-            }
-            LinearRing lro = FACTORY.createLinearRing(lco.toArray(new Coordinate[0]));
-
-            Polygon res = FACTORY.createPolygon(lro);
-            result.put(res, properties);
-        }
-
-        if (geometry instanceof de.micromata.opengis.kml.v_2_2_0.Point) {
-            de.micromata.opengis.kml.v_2_2_0.Coordinate c = ((de.micromata.opengis.kml.v_2_2_0.Point) geometry)
-                    .getCoordinates()
-                    .get(0);
-
-            Coordinate cc = new Coordinate(c.getLongitude(), c.getLatitude());
-
-            Point res = FACTORY.createPoint(cc);
-            result.put(res, properties);
-        }
-    }
 }
@@ -0,0 +1,296 @@
+package com.locomizer.geoconv;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run statistics of a conversion: wall time of the sequential stages, timers and counters that any number of
+ * threads may add to, log2 histograms, and the slowest polyfilled features. Timers accumulate across threads,
+ * so a parallel step may report more time than the stage it runs in. Dumped as JSON at the end of a run and
+ * optionally reported as periodic progress lines on stderr.
+ */
+public class Metrics {
+    public static final int SLOWEST = 10;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long started = System.nanoTime();
+    private final Map<String, AtomicLong> stages = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final PriorityQueue<Feature> slowest = new PriorityQueue<>(Comparator.comparingLong(f -> f.nanos));
+
+    private volatile String stage = null;
+    private volatile long stageStarted = 0L;
+
+    /**
+     * Ends the current stage, if any, and starts the given one.
+     */
+    public synchronized void stage(String name) {
+        long now = System.nanoTime();
+        if (stage != null) {
+            stages.computeIfAbsent(stage, k -> new AtomicLong()).addAndGet(now - stageStarted);
+        }
+
+        stage = name;
+        stageStarted = now;
+    }
+
+    public void finish() {
+        stage(null);
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time elapsed since a {@link #start()} to the named timer and returns it in nanoseconds.
+     */
+    public long stop(String timer, long start) {
+        long nanos = System.nanoTime() - start;
+        timers.computeIfAbsent(timer, k -> new Timer()).add(nanos);
+        return nanos;
+    }
+
+    public void count(String counter, long n) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(n);
+    }
+
+    public long get(String counter) {
+        LongAdder adder = counters.get(counter);
+        return (adder == null) ? 0L : adder.sum();
+    }
+
+    public void record(String histogram, long value) {
+        histograms.computeIfAbsent(histogram, k -> new Histogram()).add(value);
+    }
+
+    /**
+     * Keeps the feature if it is among the {@link #SLOWEST} seen so far.
+     */
+    public void feature(long nanos, long cells, int vertices, Map<String, Object> properties) {
+        synchronized (slowest) {
+            if ((slowest.size() < SLOWEST) || (slowest.peek().nanos < nanos)) {
+                slowest.add(new Feature(nanos, cells, vertices, properties));
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+            }
+        }
+    }
+
+    public static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Sum of the peak usage of heap memory pools since JVM start; pools peak at different times, so this is an
+     * upper bound of the actual peak.
+     */
+    public static long heapPeak() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public String progress() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("[%.1f s] %s:", (System.nanoTime() - started) / 1.E9D, (stage == null) ? "done" : stage));
+        counters.forEach((name, value) -> sb.append(' ').append(name).append('=').append(value.sum()));
+        sb.append(", heap ").append(heapUsed() >> 20).append(" of ").append(Runtime.getRuntime().maxMemory() >> 20).append(" MB");
+        return sb.toString();
+    }
+
+    /**
+     * Prints a progress line to stderr every given number of seconds until closed.
+     */
+    public Closeable report(long seconds) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(seconds * 1000L);
+                    System.err.println(progress());
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }, "Progress");
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread::interrupt;
+    }
+
+    public void write(OutputStream output) throws IOException {
+        try (JsonGenerator g = new ObjectMapper().getFactory().createGenerator(output)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .useDefaultPrettyPrinter()) {
+            g.writeStartObject();
+            g.writeNumberField("elapsedMillis", (System.nanoTime() - started) / NANOS_PER_MILLI);
+            g.writeNumberField("heapUsedBytes", heapUsed());
+            g.writeNumberField("heapPeakBytes", heapPeak());
+            g.writeNumberField("heapMaxBytes", Runtime.getRuntime().maxMemory());
+
+            g.writeObjectFieldStart("stages");
+            synchronized (stages) {
+                for (Map.Entry<String, AtomicLong> e : stages.entrySet()) {
+                    g.writeNumberField(e.getKey(), e.getValue().get() / NANOS_PER_MILLI);
+                }
+            }
+            g.writeEndObject();
+
+            g.writeObjectFieldStart("timers");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                g.writeObjectFieldStart(e.getKey());
+                g.writeNumberField("count", e.getValue().count.sum());
+                g.writeNumberField("millis", e.getValue().nanos.sum() / NANOS_PER_MILLI);
+                g.writeEndObject();
+            }
+            g.writeEndObject();
+
+            g.writeObjectFieldStart("counters");
+            for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                g.writeNumberField(e.getKey(), e.getValue().sum());
+            }
+            g.writeEndObject();
+
+            g.writeObjectFieldStart("histograms");
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+                g.writeFieldName(e.getKey());
+                e.getValue().write(g);
+            }
+            g.writeEndObject();
+
+            List<Feature> features;
+            synchronized (slowest) {
+                features = new ArrayList<>(slowest);
+            }
+            features.sort(Comparator.comparingLong((Feature f) -> f.nanos).reversed());
+
+            g.writeArrayFieldStart("slowest");
+            for (Feature f : features) {
+                g.writeStartObject();
+                g.writeNumberField("millis", f.nanos / NANOS_PER_MILLI);
+                g.writeNumberField("cells", f.cells);
+                g.writeNumberField("vertices", f.vertices);
+                g.writeObjectField("properties", f.properties);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+
+            g.writeEndObject();
+            g.writeRaw('\n');
+        }
+    }
+
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private void add(long n) {
+            count.increment();
+            nanos.add(n);
+        }
+    }
+
+    /**
+     * Histogram of non-negative values in power of two buckets: bucket k holds values below 2^k.
+     */
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+        private Histogram() {
+            for (int k = 0; k < buckets.length; k++) {
+                buckets[k] = new LongAdder();
+            }
+        }
+
+        private void add(long value) {
+            value = Math.max(0L, value);
+
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+            count.increment();
+            sum.add(value);
+            min.accumulate(value);
+            max.accumulate(value);
+        }
+
+        private long percentile(long[] counts, long total, double p) {
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0L;
+            for (int k = 0; k < counts.length; k++) {
+                seen += counts[k];
+                if (seen >= rank) {
+                    return Math.min(max.get(), (k == 0) ? 0L : (1L << k) - 1L);
+                }
+            }
+            return max.get();
+        }
+
+        private void write(JsonGenerator g) throws IOException {
+            long[] counts = new long[buckets.length];
+            long total = 0L;
+            for (int k = 0; k < buckets.length; k++) {
+                counts[k] = buckets[k].sum();
+                total += counts[k];
+            }
+
+            g.writeStartObject();
+            g.writeNumberField("count", count.sum());
+            if (total > 0L) {
+                g.writeNumberField("sum", sum.sum());
+                g.writeNumberField("min", min.get());
+                g.writeNumberField("max", max.get());
+                g.writeNumberField("mean", (double) sum.sum() / count.sum());
+                g.writeNumberField("p50", percentile(counts, total, 0.5D));
+                g.writeNumberField("p90", percentile(counts, total, 0.9D));
+                g.writeNumberField("p99", percentile(counts, total, 0.99D));
+
+                g.writeObjectFieldStart("buckets");
+                for (int k = 0; k < counts.length; k++) {
+                    if (counts[k] > 0L) {
+                        g.writeNumberField("<" + Long.toUnsignedString(1L << k), counts[k]);
+                    }
+                }
+                g.writeEndObject();
+            }
+            g.writeEndObject();
+        }
+    }
+
+    private static class Feature {
+        private final long nanos;
+        private final long cells;
+        private final int vertices;
+        private final Map<String, Object> properties;
+
+        private Feature(long nanos, long cells, int vertices, Map<String, Object> properties) {
+            this.nanos = nanos;
+            this.cells = cells;
+            this.vertices = vertices;
+            this.properties = properties;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.locomizer.geoconv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static com.locomizer.geoconv.Main.*;
+
+/**
+ * Rolls numeric attributes of an H3 coverage up to coarser resolutions. Every cell is added to its parent at each
+ * output resolution that is not finer than its own, so all levels are built in one pass over the coverage. Cells
+ * are split by base cell, which parents share with their children, and base cells are aggregated in parallel, each
+ * level in an open-addressing table of primitive arrays, and written in order of base cell, resolution and cell.
+ * <pre>
+ * _count        number of cells under the parent
+ * name_count    number of those cells with a numeric value of attribute name
+ * name_sum      sum of the values
+ * name_min      smallest value
+ * name_max      largest value
+ * name_mean     mean of the values
+ * </pre>
+ * Values that are missing or not numbers are left out, and the last three statistics are empty where no values are.
+ */
+public class Rollup {
+    public static final String COUNT = "_count";
+    public static final String[] STATISTICS = {"_count", "_sum", "_min", "_max", "_mean"};
+
+    private static final int BASE_CELLS = 122;
+    private static final int BASE_CELL_SHIFT = 45;
+
+    private final String in;
+    private final String out;
+    private final List<String> attributes;
+    private final List<String> columns;
+    private final int minRes;
+    private final int maxRes;
+    private final Metrics metrics;
+    private final File dir;
+
+    /**
+     * Output column as an attribute index and a statistic index, or -1 and -1 for _index, -1 and 0 for _res,
+     * -1 and 1 for _count, and -1 and -2 for a skipped column.
+     */
+    private final int[][] outputs;
+
+    /**
+     * @param input      coverage format as given on the command line, h3(attributes) or h3b(attributes)
+     * @param output     output format as given on the command line, such as 'h3(5:8,_index,_res,_count,pop_sum)'
+     * @param attributes numeric attributes of the coverage to roll up
+     * @param dir        directory of the output parts, or null for the default temporary directory
+     * @throws IllegalArgumentException if the formats or the output columns are not valid
+     */
+    public Rollup(String input, String output, List<String> attributes, Metrics metrics, File dir) {
+        this.in = input.toLowerCase();
+        this.out = output.toLowerCase();
+        if (!Conversion.isH3(in) || !Conversion.isH3(out)) {
+            throw new IllegalArgumentException("Roll-up needs h3 or h3b input and output");
+        }
+        Conversion.columns(input);
+
+        this.attributes = attributes;
+        this.metrics = metrics;
+        this.dir = dir;
+
+        columns = Conversion.columns(output);
+        int[] resolutions = Conversion.resolutions(output, columns.remove(0));
+        minRes = resolutions[0];
+        maxRes = resolutions[1];
+
+        outputs = new int[columns.size()][];
+        for (int c = 0; c < outputs.length; c++) {
+            outputs[c] = output(columns.get(c));
+        }
+    }
+
+    private int[] output(String column) {
+        if (column.equals(INDEX)) {
+            return new int[]{-1, -1};
+        }
+        if (column.equals(LEVEL)) {
+            return new int[]{-1, 0};
+        }
+        if (column.equals(COUNT)) {
+            return new int[]{-1, 1};
+        }
+        if (column.equals(UNDERSCORE)) {
+            return new int[]{-1, -2};
+        }
+
+        for (int a = 0; a < attributes.size(); a++) {
+            for (int s = 0; s < STATISTICS.length; s++) {
+                if (column.equals(attributes.get(a) + STATISTICS[s])) {
+                    return new int[]{a, s};
+                }
+            }
+        }
+        throw new IllegalArgumentException("Output column " + column + " is not a statistic of " + attributes);
+    }
+
+    public void run(File inFile, File outFile) throws IOException {
+        metrics.stage("read");
+        Partition[] partitions = new Partition[BASE_CELLS];
+        for (int base = 0; base < BASE_CELLS; base++) {
+            partitions[base] = new Partition(attributes.size());
+        }
+        load(inFile, partitions);
+
+        metrics.stage("rollup");
+        try {
+            if (out.startsWith(H_3B)) {
+                CellStore hashes = new CellStore();
+                AttributeTable rows = new AttributeTable();
+
+                IntStream.range(0, BASE_CELLS).parallel()
+                        .forEach(base -> write(partitions[base], (cell, values) -> {
+                            Map<String, Object> props = new HashMap<>();
+                            for (int c = 0; c < columns.size(); c++) {
+                                if ((outputs[c][0] >= 0) || (outputs[c][1] > 0)) {
+                                    props.put(columns.get(c), values[c]);
+                                }
+                            }
+                            hashes.put(cell, rows.intern(props));
+                        }));
+
+                metrics.stage("write");
+                BinaryCoverage.write(outFile, hashes, rows, columns, minRes, maxRes);
+                return;
+            }
+
+            File[] parts = new File[BASE_CELLS];
+            try {
+                IntStream.range(0, BASE_CELLS).parallel()
+                        .forEach(base -> parts[base] = part(partitions[base]));
+
+                metrics.stage("write");
+                try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outFile), 4096 * 1024)) {
+                    for (File part : parts) {
+                        if (part != null) {
+                            Files.copy(part.toPath(), output);
+                        }
+                    }
+                }
+            } finally {
+                for (File part : parts) {
+                    if (part != null) {
+                        part.delete();
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the parents of one base cell to a temporary CSV file.
+     *
+     * @return the file, or null if the base cell has no cells
+     */
+    private File part(Partition partition) {
+        if (partition.cells.size() == 0) {
+            return null;
+        }
+
+        try {
+            File file = File.createTempFile("geoconv", ".csv", dir);
+            try (CSVPrinter printer = new CSVPrinter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1024 * 1024),
+                    CSVFormat.EXCEL.withDelimiter(COMMA))) {
+                write(partition, (cell, values) -> {
+                    try {
+                        printer.printRecord((Object[]) values);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Aggregates all levels of one base cell and passes every parent with its output column values.
+     */
+    private void write(Partition partition, RowConsumer consumer) {
+        Level[] levels = new Level[maxRes - minRes + 1];
+        long parents = 1L;
+        for (int res = 0; res <= maxRes; res++) {
+            if (res >= minRes) {
+                levels[res - minRes] = new Level(attributes.size(), (int) Math.min(partition.cells.size(), parents));
+            }
+            parents *= 7L;
+        }
+
+        int width = attributes.size();
+        long coarser = 0L;
+        for (int i = 0; i < partition.cells.size(); i++) {
+            long cell = partition.cells.get(i);
+            int res = BinaryCoverage.resolution(cell);
+            if (res < maxRes) {
+                coarser++;
+            }
+
+            for (int level = minRes; level <= Math.min(res, maxRes); level++) {
+                levels[level - minRes].add(CellIndex.parent(cell, level), partition.values, i * width);
+            }
+        }
+        metrics.count("cells.coarser", coarser);
+
+        long written = 0L;
+        String[] values = new String[columns.size()];
+        for (int i = 0; i < levels.length; i++) {
+            Level level = levels[i];
+            for (long cell : level.sorted()) {
+                int slot = level.slot(cell);
+
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = value(cell, minRes + i, level, slot, outputs[c][0], outputs[c][1]);
+                }
+                consumer.accept(cell, values);
+                written++;
+            }
+        }
+        metrics.count("cells.written", written);
+    }
+
+    private static String value(long cell, int res, Level level, int slot, int attribute, int statistic) {
+        if (attribute < 0) {
+            switch (statistic) {
+                case -1:
+                    return Long.toHexString(cell);
+                case 0:
+                    return String.valueOf(res);
+                case 1:
+                    return String.valueOf(level.counts[slot]);
+                default:
+                    return null;
+            }
+        }
+
+        int i = slot * level.width + attribute;
+        int n = level.numbers[i];
+        switch (statistic) {
+            case 0:
+                return String.valueOf(n);
+            case 1:
+                return number(level.sums[i]);
+            case 2:
+                return (n == 0) ? null : number(level.mins[i]);
+            case 3:
+                return (n == 0) ? null : number(level.maxs[i]);
+            default:
+                return (n == 0) ? null : number(level.sums[i] / n);
+        }
+    }
+
+    private static String number(double value) {
+        if ((value == Math.rint(value)) && (Math.abs(value) < 1.E15D)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private void load(File file, Partition[] partitions) throws IOException {
+        long cells = 0L;
+
+        if (in.startsWith(H_3B)) {
+            try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+                double[][] rows = new double[reader.rowCount()][];
+                for (int r = 0; r < rows.length; r++) {
+                    Map<String, Object> props = reader.attributes(r);
+                    rows[r] = attributes.stream().mapToDouble(name -> parse(props.get(name))).toArray();
+                }
+
+                reader.forEachOrdered((cell, row) -> partitions[base(cell)].add(cell, rows[row]));
+                cells = reader.size();
+            }
+        } else {
+            List<String> cols = Conversion.columns(in);
+            int indexColumn = cols.indexOf(INDEX);
+            int[] indexes = attributes.stream().mapToInt(cols::indexOf).toArray();
+            for (int a = 0; a < indexes.length; a++) {
+                if (indexes[a] < 0) {
+                    throw new IllegalArgumentException("Attribute " + attributes.get(a) + " is missing in " + in);
+                }
+            }
+
+            double[] values = new double[indexes.length];
+            try (CSVParser parser = new CSVParser(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 4096 * 1024),
+                    CSVFormat.EXCEL.withDelimiter(COMMA))) {
+                for (CSVRecord rec : parser) {
+                    for (int a = 0; a < indexes.length; a++) {
+                        values[a] = parse(rec.get(indexes[a]));
+                    }
+
+                    long cell = Long.parseLong(rec.get(indexColumn), 16);
+                    partitions[base(cell)].add(cell, values);
+                    cells++;
+                }
+            }
+        }
+
+        metrics.count("cells.read", cells);
+    }
+
+    private static int base(long cell) {
+        return (int) (cell >>> BASE_CELL_SHIFT) & 0x7F;
+    }
+
+    private static double parse(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Cells of one base cell with their attribute values, NaN where not numeric.
+     */
+    private static class Partition {
+        private final LongList cells = new LongList();
+        private final int width;
+        private double[] values;
+
+        private Partition(int width) {
+            this.width = width;
+            this.values = new double[16 * Math.max(1, width)];
+        }
+
+        private void add(long cell, double[] cellValues) {
+            int n = cells.size();
+            if ((n + 1) * width > values.length) {
+                values = Arrays.copyOf(values, values.length << 1);
+            }
+
+            System.arraycopy(cellValues, 0, values, n * width, width);
+            cells.add(cell);
+        }
+    }
+
+    /**
+     * Statistics of the parents at one resolution, in open-addressing slots.
+     */
+    private static class Level {
+        private final int width;
+        private long[] keys;
+        private int[] counts;
+        private int[] numbers;
+        private double[] sums;
+        private double[] mins;
+        private double[] maxs;
+        private int mask;
+        private int size = 0;
+
+        /**
+         * @param parents upper bound of the parents, the smaller of the cell count and the number of cells at this
+         *                resolution under one base cell; at most 2^20 slots are allocated up front, then the table grows
+         */
+        private Level(int width, int parents) {
+            this.width = width;
+            allocate(Integer.highestOneBit((int) Math.max(16L, Math.min(1L << 20, 2L * parents)) - 1) << 1);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            counts = new int[capacity];
+            numbers = new int[capacity * width];
+            sums = new double[capacity * width];
+            mins = new double[capacity * width];
+            maxs = new double[capacity * width];
+            mask = capacity - 1;
+        }
+
+        private void add(long cell, double[] values, int offset) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+
+            int slot = (int) CellStore.mix(cell) & mask;
+            while ((keys[slot] != 0L) && (keys[slot] != cell)) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0L) {
+                keys[slot] = cell;
+                size++;
+            }
+
+            counts[slot]++;
+            for (int a = 0; a < width; a++) {
+                double v = values[offset + a];
+                if (!Double.isNaN(v)) {
+                    int i = slot * width + a;
+                    if (numbers[i]++ == 0) {
+                        mins[i] = v;
+                        maxs[i] = v;
+                    } else {
+                        mins[i] = Math.min(mins[i], v);
+                        maxs[i] = Math.max(maxs[i], v);
+                    }
+                    sums[i] += v;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounts = counts;
+            int[] oldNumbers = numbers;
+            double[] oldSums = sums, oldMins = mins, oldMaxs = maxs;
+
+            allocate(oldKeys.length << 1);
+            for (int s = 0; s < oldKeys.length; s++) {
+                if (oldKeys[s] != 0L) {
+                    int slot = (int) CellStore.mix(oldKeys[s]) & mask;
+                    while (keys[slot] != 0L) {
+                        slot = (slot + 1) & mask;
+                    }
+
+                    keys[slot] = oldKeys[s];
+                    counts[slot] = oldCounts[s];
+                    System.arraycopy(oldNumbers, s * width, numbers, slot * width, width);
+                    System.arraycopy(oldSums, s * width, sums, slot * width, width);
+                    System.arraycopy(oldMins, s * width, mins, slot * width, width);
+                    System.arraycopy(oldMaxs, s * width, maxs, slot * width, width);
+                }
+            }
+        }
+
+        private long[] sorted() {
+            long[] cells = new long[size];
+            int n = 0;
+            for (long key : keys) {
+                if (key != 0L) {
+                    cells[n++] = key;
+                }
+            }
+            Arrays.sort(cells);
+            return cells;
+        }
+
+        private int slot(long cell) {
+            int slot = (int) CellStore.mix(cell) & mask;
+            while (keys[slot] != cell) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowConsumer {
+        void accept(long cell, String[] values);
+    }
+}
@@ -0,0 +1,191 @@
+package com.locomizer.geoconv;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the parallel work of conversions on a dedicated fork-join pool with a fixed number of threads instead of
+ * the common pool, so that a run can be capped to part of a shared host. Parallel streams and fork-join tasks
+ * started inside {@link #call} run on this pool, and so does all work of a conversion. Tasks of very different
+ * cost, such as covering a country outline and a point, are started most costly first by {@link #run}, so that
+ * an expensive task does not start last and hold up its stage alone. Once cancelled, running work fails with a
+ * CancellationException at the next task, and no new work is started.
+ */
+public class Scheduler {
+    private final ForkJoinPool pool;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean cancelled = false;
+
+    public Scheduler(int threads) {
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+    }
+
+    public int threads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Parallelism of the pool the calling thread works for, or of the common pool if it is not a pool thread.
+     */
+    public static int parallelism() {
+        ForkJoinPool current = ForkJoinTask.getPool();
+        return ((current != null) ? current : ForkJoinPool.commonPool()).getParallelism();
+    }
+
+    /**
+     * Runs the task on the pool and waits for it, or runs it directly if called from the pool.
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        check();
+        if (ForkJoinTask.getPool() == pool) {
+            return task.call();
+        }
+
+        Object[] result = {null};
+        Throwable[] failure = {null};
+
+        active.incrementAndGet();
+        try {
+            pool.submit(() -> {
+                try {
+                    result[0] = task.call();
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }).get();
+        } finally {
+            synchronized (active) {
+                if (active.decrementAndGet() == 0) {
+                    active.notifyAll();
+                }
+            }
+        }
+
+        if (failure[0] instanceof Exception) {
+            throw (Exception) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (Error) failure[0];
+        }
+
+        @SuppressWarnings("unchecked")
+        T t = (T) result[0];
+        return t;
+    }
+
+    /**
+     * Starts the task on the pool without waiting for it, for callers outside the pool that keep a bounded number
+     * of tasks in flight. The task fails with a CancellationException if the scheduler is cancelled before it runs.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        check();
+        return pool.submit(() -> {
+            check();
+            return task.call();
+        });
+    }
+
+    /**
+     * Runs a task for every index of the costs on all threads of the pool, the most costly first, and waits for
+     * them. Each thread takes the next task once it is done with one, so cheap tasks fill in around expensive
+     * ones. The total cost and the cost done so far are counted as name.cost and name.cost.done for progress
+     * lines. Call from inside {@link #call}.
+     */
+    public void run(String name, long[] costs, IntConsumer task, Metrics metrics) {
+        int[] order = order(costs);
+        metrics.count(name + ".cost", Arrays.stream(costs).sum());
+
+        AtomicInteger next = new AtomicInteger();
+        IntStream.range(0, Math.min(threads(), order.length)).parallel()
+                .forEach(worker -> {
+                    for (int k = next.getAndIncrement(); k < order.length; k = next.getAndIncrement()) {
+                        check();
+                        task.accept(order[k]);
+                        metrics.count(name + ".cost.done", costs[order[k]]);
+                    }
+                });
+    }
+
+    /**
+     * Indexes by descending cost, ties in index order.
+     */
+    static int[] order(long[] costs) {
+        long[] keys = new long[costs.length];
+        for (int i = 0; i < keys.length; i++) {
+            long cost = Math.max(0L, Math.min(Integer.MAX_VALUE, costs[i]));
+            keys[i] = ((Integer.MAX_VALUE - cost) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[keys.length];
+        for (int k = 0; k < order.length; k++) {
+            order[k] = (int) keys[k];
+        }
+        return order;
+    }
+
+    /**
+     * Takes the head of a queue, letting the pool start a spare thread while a pool thread waits for it.
+     */
+    public static <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        Object[] item = {null};
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                if (item[0] == null) {
+                    item[0] = queue.take();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return (item[0] != null) || ((item[0] = queue.poll()) != null);
+            }
+        });
+
+        @SuppressWarnings("unchecked")
+        T t = (T) item[0];
+        return t;
+    }
+
+    /**
+     * @throws CancellationException if the scheduler has been cancelled
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("Conversion was cancelled");
+        }
+    }
+
+    public boolean cancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels all running and future work and waits up to the given time for running calls to finish, so that
+     * they can delete their temporary files.
+     */
+    public void cancel(long millis) {
+        cancelled = true;
+
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (active) {
+            try {
+                for (long wait = millis; (active.get() > 0) && (wait > 0L); wait = deadline - System.currentTimeMillis()) {
+                    active.wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
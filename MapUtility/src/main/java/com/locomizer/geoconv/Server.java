@@ -0,0 +1,195 @@
+package com.locomizer.geoconv;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.uber.h3core.H3Core;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP conversion service that keeps H3, parsers and JIT warm between requests.
+ * <pre>
+ * POST /convert?in=json&amp;out=h3(9,_index,name)[&amp;option=value...]   input in the body, output in the response
+ * GET  /stats                                                    request counters and latency histograms as JSON
+ * </pre>
+ * Formats and options have the command line syntax, with options given by their long name and flags by an empty
+ * value. Responses are buffered, so that a failed conversion is reported by its status code. Requests are served
+ * by a fixed pool of workers, and requests beyond it wait for a free worker. The parallel work of all requests
+ * shares one {@link Scheduler}, which is cancelled when the server stops.
+ */
+public class Server {
+    public static final String CONVERT = "/convert";
+    public static final String STATS = "/stats";
+    public static final String IN = "in";
+    public static final String OUT = "out";
+
+    private static final int CONVERSIONS = 1024;
+
+    private final H3Core h3core;
+    private final Scheduler scheduler;
+    private final Metrics metrics = new Metrics();
+    private final Map<String, Conversion> conversions = new ConcurrentHashMap<>();
+    private final HttpServer server;
+    private final ExecutorService workers;
+
+    public Server(H3Core h3core, int port, int concurrency, Scheduler scheduler) throws IOException {
+        this.h3core = h3core;
+        this.scheduler = scheduler;
+
+        workers = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(workers);
+        server.createContext(CONVERT, this::convert);
+        server.createContext(STATS, this::stats);
+    }
+
+    public void start() {
+        metrics.stage("serve");
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        scheduler.cancel(0L);
+        workers.shutdownNow();
+        metrics.finish();
+    }
+
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    private void convert(HttpExchange exchange) throws IOException {
+        long start = metrics.start();
+        try (InputStream body = exchange.getRequestBody()) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                reply(exchange, 405, "Use POST with the input in the request body");
+                return;
+            }
+
+            Conversion conversion;
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                conversion = conversion(exchange.getRequestURI().getRawQuery());
+                conversion.run(h3core, body, output, new Metrics());
+            } catch (IllegalArgumentException | ParseException | JsonProcessingException | XMLStreamException e) {
+                metrics.count("requests.rejected", 1L);
+                reply(exchange, 400, e.getMessage());
+                return;
+            } catch (Exception e) {
+                metrics.count("requests.failed", 1L);
+                reply(exchange, 500, String.valueOf(e));
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", contentType(conversion.output()));
+            exchange.sendResponseHeaders(200, output.size());
+            try (OutputStream response = exchange.getResponseBody()) {
+                output.writeTo(response);
+            }
+
+            metrics.count("requests.ok", 1L);
+        } finally {
+            metrics.record("request.micros", metrics.stop("request", start) / 1000L);
+            exchange.close();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        metrics.write(json);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, json.size());
+        try (OutputStream response = exchange.getResponseBody()) {
+            json.writeTo(response);
+        }
+    }
+
+    /**
+     * Parses the query into a conversion. Conversions are immutable, so they are cached by query.
+     */
+    private Conversion conversion(String query) throws ParseException, UnsupportedEncodingException {
+        if (query == null) {
+            throw new IllegalArgumentException("Parameters " + IN + " and " + OUT + " are required");
+        }
+
+        Conversion cached = conversions.get(query);
+        if (cached != null) {
+            return cached;
+        }
+
+        String in = null, out = null;
+        List<String> args = new ArrayList<>();
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            String name = URLDecoder.decode((eq < 0) ? param : param.substring(0, eq), StandardCharsets.UTF_8.name());
+            String value = (eq < 0) ? "" : URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8.name());
+
+            if (IN.equals(name)) {
+                in = value;
+            } else if (OUT.equals(name)) {
+                out = value;
+            } else {
+                args.add("--" + name);
+                if (!value.isEmpty()) {
+                    args.add(value);
+                }
+            }
+        }
+
+        if ((in == null) || (out == null)) {
+            throw new IllegalArgumentException("Parameters " + IN + " and " + OUT + " are required");
+        }
+
+        CommandLine cmd = new DefaultParser().parse(Main.options(), args.toArray(new String[0]));
+        Conversion conversion = new Conversion(in, out, cmd, scheduler);
+
+        if (conversions.size() < CONVERSIONS) {
+            conversions.put(query, conversion);
+        }
+        return conversion;
+    }
+
+    private static String contentType(String output) {
+        if (output.equals(Main.JSON)) {
+            return "application/geo+json";
+        }
+        if (output.equals(Main.KML)) {
+            return "application/vnd.google-earth.kml+xml";
+        }
+        if (output.equals(Main.FGB)) {
+            return "application/flatgeobuf";
+        }
+        return "text/csv";
+    }
+
+    private static void reply(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Tags a CSV of points with the attributes of the coverage cell each point falls in. The points file has a header
+ * row naming the latitude and longitude columns. It is read by a single thread in blocks of lines that are tagged
+ * on the threads of the {@link Scheduler} and written back in input order, each line followed by the appended
+ * attributes, which are left empty for points outside the coverage. Records must not span lines.
+ */
+public class Tagger {
+    public static final String POINTS = "points(";
+    public static final int BLOCK = 16384;
+
+    private static final char QUOTE = '"';
+
+    private final CellIndex index;
+    private final H3Core h3core;
+    private final String latitude;
+    private final String longitude;
+    private final List<String> columns = new ArrayList<>();
+    private final Scheduler scheduler;
+    private final Metrics metrics;
+
+    /**
+     * Appended values of each attribute row, already escaped; null where the value depends on the matched cell.
+     */
+    private final String[][] values;
+
+    /**
+     * @param coverage coverage format as given on the command line, whose attributes other than _ are appended
+     * @param points   points format as given on the command line, points(latitude,longitude) with column names
+     */
+    public Tagger(CellIndex index, H3Core h3core, String coverage, String points, Scheduler scheduler, Metrics metrics) {
+        this.index = index;
+        this.h3core = h3core;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+
+        for (String col : coverage.substring(coverage.indexOf('(') + 1, coverage.length() - 1).split(Main.COMMA_STR)) {
+            if (!col.trim().equals(Main.UNDERSCORE)) {
+                columns.add(col.trim());
+            }
+        }
+
+        String[] latLon = points.toLowerCase().startsWith(POINTS)
+                ? points.substring(POINTS.length(), points.length() - 1).split(Main.COMMA_STR)
+                : new String[0];
+        if (latLon.length != 2) {
+            throw new IllegalArgumentException("Points format must be " + POINTS + "latitude,longitude)");
+        }
+        latitude = latLon[0].trim();
+        longitude = latLon[1].trim();
+
+        values = new String[index.rowCount()][columns.size()];
+        for (int r = 0; r < values.length; r++) {
+            Map<String, Object> props = index.attributes(r);
+            for (int c = 0; c < columns.size(); c++) {
+                String col = columns.get(c);
+                if (!col.equals(Main.INDEX) && !(col.equals(Main.LEVEL) && !props.containsKey(Main.LEVEL))) {
+                    Object v = props.get(col);
+                    values[r][c] = (v == null) ? "" : escape(String.valueOf(v));
+                }
+            }
+        }
+    }
+
+    public void tag(InputStream input, OutputStream output) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 4096 * 1024);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 4096 * 1024)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return;
+            }
+
+            List<String> names = Arrays.asList(fields(header, Integer.MAX_VALUE));
+            int lat = names.indexOf(latitude);
+            int lon = names.indexOf(longitude);
+            if ((lat < 0) || (lon < 0)) {
+                throw new IllegalArgumentException("Points header has no columns " + latitude + " and " + longitude);
+            }
+
+            StringBuilder sb = new StringBuilder(header);
+            for (String col : columns) {
+                sb.append(Main.COMMA).append(escape(col));
+            }
+            writer.write(sb.append('\n').toString());
+
+            ArrayDeque<Future<StringBuilder>> pending = new ArrayDeque<>();
+            try {
+                List<String> block = new ArrayList<>(BLOCK);
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    block.add(line);
+
+                    if (block.size() == BLOCK) {
+                        List<String> lines = block;
+                        pending.add(scheduler.submit(() -> tag(lines, lat, lon)));
+                        block = new ArrayList<>(BLOCK);
+
+                        if (pending.size() >= 2 * scheduler.threads()) {
+                            writer.append(pending.poll().get());
+                        }
+                    }
+                }
+                if (!block.isEmpty()) {
+                    List<String> lines = block;
+                    pending.add(scheduler.submit(() -> tag(lines, lat, lon)));
+                }
+
+                while (!pending.isEmpty()) {
+                    writer.append(pending.poll().get());
+                }
+            } finally {
+                for (Future<StringBuilder> f : pending) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+    private StringBuilder tag(List<String> lines, int lat, int lon) {
+        int res = index.finest();
+        int last = Math.max(lat, lon);
+        long matched = 0L, invalid = 0L;
+
+        StringBuilder sb = new StringBuilder(lines.size() * 128);
+        for (String line : lines) {
+            sb.append(line);
+
+            int slot = -1;
+            try {
+                String[] fields = fields(line, last + 1);
+                if ((res >= 0) && (fields.length > last)) {
+                    slot = index.locate(h3core.geoToH3(Double.parseDouble(fields[lat]), Double.parseDouble(fields[lon]), res));
+                } else {
+                    invalid++;
+                }
+            } catch (NumberFormatException e) {
+                invalid++;
+            }
+
+            if (slot < 0) {
+                for (int c = 0; c < columns.size(); c++) {
+                    sb.append(Main.COMMA);
+                }
+            } else {
+                matched++;
+
+                long cell = index.cell(slot);
+                String[] row = values[index.row(slot)];
+                for (int c = 0; c < row.length; c++) {
+                    sb.append(Main.COMMA);
+                    if (row[c] != null) {
+                        sb.append(row[c]);
+                    } else if (columns.get(c).equals(Main.INDEX)) {
+                        sb.append(Long.toHexString(cell));
+                    } else {
+                        sb.append(BinaryCoverage.resolution(cell));
+                    }
+                }
+            }
+            sb.append('\n');
+        }
+
+        metrics.count("points", lines.size());
+        metrics.count("points.matched", matched);
+        metrics.count("points.invalid", invalid);
+        return sb;
+    }
+
+    /**
+     * Splits the first fields of a CSV line, removing quotes.
+     */
+    static String[] fields(String line, int limit) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; (i < line.length()) && (fields.size() < limit); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == QUOTE) {
+                    if ((i + 1 < line.length()) && (line.charAt(i + 1) == QUOTE)) {
+                        field.append(QUOTE);
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == QUOTE) {
+                quoted = true;
+            } else if (c == Main.COMMA) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (fields.size() < limit) {
+            fields.add(field.toString().trim());
+        }
+
+        return fields.toArray(new String[0]);
+    }
+
+    static String escape(String value) {
+        if ((value.indexOf(Main.COMMA) < 0) && (value.indexOf(QUOTE) < 0) && (value.indexOf('\n') < 0) && (value.indexOf('\r') < 0)) {
+            return value;
+        }
+        return QUOTE + value.replace("\"", "\"\"") + QUOTE;
+    }
+}
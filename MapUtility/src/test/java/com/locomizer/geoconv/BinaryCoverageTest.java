@@ -0,0 +1,106 @@
+package com.locomizer.geoconv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinaryCoverageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        AttributeTable attributes = new AttributeTable();
+        Map<String, Object> first = new HashMap<>();
+        first.put("name", "Łódź, \"centre\"");
+        first.put("count", 42);
+        first.put("share", 0.5D);
+        first.put("open", true);
+        first.put("note", null);
+        Map<String, Object> second = new HashMap<>();
+        second.put("name", "Kraków");
+        second.put("count", 42L);
+        second.put("open", false);
+
+        int a = attributes.intern(first);
+        int b = attributes.intern(second);
+
+        CellStore hashes = new CellStore();
+        Map<Long, Integer> expected = new TreeMap<>();
+        for (int i = 0; i < 5000; i++) {
+            long cell = 0x89283082803ffffL + ((long) i << 12);
+            int row = (i % 3 == 0) ? b : a;
+            hashes.put(cell, row);
+            expected.put(cell, row);
+        }
+
+        File file = folder.newFile("coverage.h3b");
+        BinaryCoverage.write(file, hashes, attributes,
+                Arrays.asList(Main.INDEX, "name", Main.UNDERSCORE, "count", "share", "open", "note", "name"), 7, 9);
+
+        try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+            assertEquals(7, reader.minRes());
+            assertEquals(9, reader.maxRes());
+            assertEquals(5000L, reader.size());
+            assertEquals(Arrays.asList("name", "count", "share", "open", "note"), reader.columns());
+            assertEquals(2, reader.rowCount());
+
+            List<Long> cells = new ArrayList<>();
+            reader.forEachOrdered((cell, row) -> {
+                cells.add(cell);
+                assertEquals((int) expected.get(cell), row);
+            });
+            assertEquals(new ArrayList<>(expected.keySet()), cells);
+
+            Map<Long, Integer> parallel = Collections.synchronizedMap(new HashMap<>());
+            reader.forEach(parallel::put);
+            assertEquals(expected, parallel);
+
+            long cell = 0x89283082803ffffL + (3000L << 12);
+            assertEquals(3000L, reader.find(cell));
+            assertEquals(-1L, reader.find(cell + 1L));
+            assertEquals(9, BinaryCoverage.resolution(cell));
+
+            Map<String, Object> row = reader.attributes(a);
+            assertEquals("Łódź, \"centre\"", row.get("name"));
+            assertEquals("42", row.get("count"));
+            assertEquals("0.5", row.get("share"));
+            assertEquals("true", row.get("open"));
+            assertTrue(row.containsKey("note"));
+            assertNull(row.get("note"));
+
+            row = reader.attributes(b);
+            assertEquals("Kraków", row.get("name"));
+            assertEquals("42", row.get("count"));
+            assertNull(row.get("share"));
+            assertEquals("false", row.get("open"));
+        }
+    }
+
+    @Test
+    public void empty() throws IOException {
+        File file = folder.newFile("empty.h3b");
+        BinaryCoverage.write(file, new CellStore(), new AttributeTable(), Collections.singletonList(Main.INDEX), 0, 15);
+
+        try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+            assertEquals(0L, reader.size());
+            assertEquals(0, reader.rowCount());
+            assertTrue(reader.columns().isEmpty());
+            assertEquals(-1L, reader.find(0x8928308280fffffL));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.h3b");
+        Files.write(file.toPath(), new byte[BinaryCoverage.HEADER_SIZE]);
+        new BinaryCoverage.Reader(file).close();
+    }
+}
@@ -0,0 +1,259 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.locationtech.jts.geom.*;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CellMergeTest {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    private static H3Core h3core;
+    private static long cell;
+    private static long other;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        h3core = H3Core.newInstance();
+        cell = h3core.geoToH3(52.52D, 13.40D, 7);
+        other = h3core.geoToH3(48.85D, 2.35D, 7);
+    }
+
+    @Test
+    public void firstTakesInputOrder() {
+        CellMerge merge = merge(CellMerge.FIRST, owners(3));
+        merge.buffer().add(cell, 2, row(2), false);
+        merge.buffer().add(cell, 0, row(0), false);
+        merge.buffer().add(cell, 1, row(1), false);
+        merge.buffer().add(other, 1, row(1), false);
+
+        CellStore hashes = new CellStore();
+        assertEquals(1L, merge.merge(hashes));
+        assertEquals(row(0), hashes.get(cell));
+        assertEquals(row(1), hashes.get(other));
+        assertTrue(merge.shared().isEmpty());
+    }
+
+    @Test
+    public void interiorBeatsRing() {
+        for (String policy : Arrays.asList(CellMerge.FIRST, CellMerge.OVERLAP, CellMerge.PRIORITY + "rank", CellMerge.ALL)) {
+            CellMerge merge = merge(policy, owners(3));
+            CellMerge.Buffer buffer = merge.buffer();
+            buffer.add(cell, 0, row(0), false);
+            buffer.add(cell, 2, row(2), true);
+            buffer.add(cell, 1, row(1), false);
+
+            CellStore hashes = new CellStore();
+            assertEquals(1L, merge.merge(hashes));
+            assertEquals(policy, row(2), hashes.get(cell));
+        }
+    }
+
+    @Test
+    public void priorityTakesLargestValue() {
+        FeatureStore owners = new FeatureStore();
+        owners.add(point(), Collections.singletonMap("rank", 1));
+        owners.add(point(), Collections.singletonMap("rank", " 5 "));
+        owners.add(point(), Collections.emptyMap());
+        owners.add(point(), Collections.singletonMap("rank", 5.D));
+
+        CellMerge merge = merge(CellMerge.PRIORITY + "rank", owners);
+        CellMerge.Buffer buffer = merge.buffer();
+        for (int owner : new int[]{3, 2, 0, 1}) {
+            buffer.add(cell, owner, row(owner), false);
+        }
+        buffer.add(other, 2, row(2), false);
+        buffer.add(other, 0, row(0), false);
+
+        CellStore hashes = new CellStore();
+        assertEquals(2L, merge.merge(hashes));
+        assertEquals(row(1), hashes.get(cell));
+        assertEquals(row(0), hashes.get(other));
+    }
+
+    @Test
+    public void overlapTakesLargestArea() {
+        Envelope env = Conversion.hexagon(h3core, cell).getEnvelopeInternal();
+        FeatureStore owners = new FeatureStore();
+        owners.add(box(env.getMinX(), env.getMinY(), env.getMinX() + env.getWidth() / 5.D, env.getMaxY()), Collections.singletonMap("id", 0));
+        owners.add(box(env.getMinX() - 1.D, env.getMinY() - 1.D, env.getMaxX() + 1.D, env.getMaxY() + 1.D), Collections.singletonMap("id", 1));
+
+        CellStore hashes = new CellStore();
+        CellMerge merge = merge(CellMerge.OVERLAP, owners);
+        merge.buffer().add(cell, 0, row(0), false);
+        merge.buffer().add(cell, 1, row(1), false);
+        merge.merge(hashes);
+        assertEquals(row(1), hashes.get(cell));
+
+        hashes = new CellStore();
+        merge = merge(CellMerge.FIRST, owners);
+        merge.buffer().add(cell, 0, row(0), false);
+        merge.buffer().add(cell, 1, row(1), false);
+        merge.merge(hashes);
+        assertEquals(row(0), hashes.get(cell));
+    }
+
+    @Test
+    public void overlapDecidesPartialClaims() {
+        Envelope env = Conversion.hexagon(h3core, cell).getEnvelopeInternal();
+        for (double split : new double[]{0.3D, 0.7D}) {
+            double x = env.getMinX() + env.getWidth() * split;
+            FeatureStore owners = new FeatureStore();
+            owners.add(box(env.getMinX() - 1.D, env.getMinY() - 1.D, x, env.getMaxY() + 1.D), Collections.singletonMap("id", 0));
+            owners.add(point(), Collections.singletonMap("id", 1));
+            owners.add(box(x, env.getMinY() - 1.D, env.getMaxX() + 1.D, env.getMaxY() + 1.D), Collections.singletonMap("id", 2));
+            int expected = (split < 0.5D) ? row(2) : row(0);
+
+            CellMerge merge = merge(CellMerge.OVERLAP, owners);
+            LongList cells = new LongList();
+            LongList claims = new LongList();
+            for (int owner : new int[]{1, 0, 2}) {
+                merge.buffer().add(cell, owner, row(owner), false);
+                merge.buffer().add(other, owner, row(owner), false);
+                cells.add(cell);
+                claims.add(((long) owner << 32) | row(owner));
+            }
+
+            CellStore hashes = new CellStore();
+            assertEquals(2L, merge.merge(hashes));
+            assertEquals(expected, hashes.get(cell));
+            assertEquals(row(0), hashes.get(other));
+
+            List<Integer> resolved = new ArrayList<>();
+            assertTrue(merge.resolve(cell, cells, claims, (hash, row) -> resolved.add(row)));
+            assertEquals(Collections.singletonList(expected), resolved);
+        }
+    }
+
+    @Test
+    public void allSharesOtherClaimsInInputOrder() {
+        CellMerge merge = merge(CellMerge.ALL, owners(4));
+        merge.buffer().add(cell, 3, row(3), false);
+        merge.buffer().add(cell, 1, row(1), false);
+        merge.buffer().add(cell, 2, row(2), true);
+        merge.buffer().add(cell, 0, row(0), false);
+        merge.buffer().add(other, 0, row(0), false);
+
+        CellStore hashes = new CellStore();
+        assertEquals(1L, merge.merge(hashes));
+        assertEquals(row(2), hashes.get(cell));
+        assertArrayEquals(new int[]{row(0), row(1), row(3)}, merge.shared().get(cell));
+        assertEquals(row(0), hashes.get(other));
+        assertFalse(merge.shared().containsKey(other));
+    }
+
+    @Test
+    public void resultDoesNotDependOnClaimOrder() {
+        for (String policy : Arrays.asList(CellMerge.FIRST, CellMerge.PRIORITY + "rank", CellMerge.ALL)) {
+            FeatureStore owners = owners(50);
+            Random random = new Random(7L);
+            List<long[]> claims = new ArrayList<>();
+            for (int owner = 0; owner < owners.size(); owner++) {
+                for (int k = 0; k < 20; k++) {
+                    claims.add(new long[]{cell + ((long) random.nextInt(200) << 12), owner, random.nextInt(4) == 0 ? 1 : 0});
+                }
+            }
+
+            Map<Long, Integer> expected = null;
+            Map<Long, List<Integer>> expectedShared = null;
+            for (int run = 0; run < 5; run++) {
+                Collections.shuffle(claims, random);
+                CellMerge merge = merge(policy, owners);
+                List<CellMerge.Buffer> buffers = new ArrayList<>();
+                for (int b = 0; b < 4; b++) {
+                    buffers.add(merge.buffer());
+                }
+                for (int i = 0; i < claims.size(); i++) {
+                    long[] c = claims.get(i);
+                    buffers.get(i % buffers.size()).add(c[0], (int) c[1], row((int) c[1]), c[2] == 1L);
+                }
+
+                CellStore hashes = new CellStore();
+                merge.merge(hashes);
+                Map<Long, Integer> result = new HashMap<>();
+                hashes.forEach(result::put);
+                Map<Long, List<Integer>> shared = new HashMap<>();
+                merge.shared().forEach((k, v) -> shared.put(k, asList(v)));
+
+                if (expected == null) {
+                    expected = result;
+                    expectedShared = shared;
+                } else {
+                    assertEquals(policy, expected, result);
+                    assertEquals(policy, expectedShared, shared);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void resolveMatchesMerge() {
+        CellMerge merge = merge(CellMerge.ALL, owners(4));
+        LongList cells = new LongList();
+        LongList claims = new LongList();
+        int[][] input = {{3, 0}, {1, 1}, {2, 0}, {0, 1}};
+        for (int[] claim : input) {
+            merge.buffer().add(cell, claim[0], row(claim[0]), claim[1] == 1);
+            cells.add((claim[1] == 1) ? (cell | CoverageCache.INTERIOR) : cell);
+            claims.add(((long) claim[0] << 32) | row(claim[0]));
+        }
+
+        CellStore hashes = new CellStore();
+        merge.merge(hashes);
+        List<Integer> merged = new ArrayList<>();
+        merged.add(hashes.get(cell));
+        merged.addAll(asList(merge.shared().get(cell)));
+
+        List<Integer> resolved = new ArrayList<>();
+        assertTrue(merge.resolve(cell, cells, claims, (hash, row) -> resolved.add(row)));
+        assertEquals(merged, resolved);
+        assertEquals(Arrays.asList(row(0), row(1), row(2), row(3)), resolved);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() {
+        CellMerge.validate("last");
+    }
+
+    private static CellMerge merge(String policy, FeatureStore owners) {
+        CellMerge.validate(policy);
+        return new CellMerge(policy, owners, h3core);
+    }
+
+    private static FeatureStore owners(int count) {
+        FeatureStore owners = new FeatureStore();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> props = new HashMap<>();
+            props.put("id", i);
+            props.put("rank", i % 3);
+            owners.add(point(), props);
+        }
+        return owners;
+    }
+
+    private static int row(int owner) {
+        return 100 + owner;
+    }
+
+    private static List<Integer> asList(int[] values) {
+        List<Integer> list = new ArrayList<>();
+        for (int v : values) {
+            list.add(v);
+        }
+        return list;
+    }
+
+    private static Point point() {
+        return FACTORY.createPoint(new Coordinate(13.40D, 52.52D));
+    }
+
+    private static Polygon box(double minX, double minY, double maxX, double maxY) {
+        return FACTORY.createPolygon(new Coordinate[]{new Coordinate(minX, minY), new Coordinate(maxX, minY),
+                new Coordinate(maxX, maxY), new Coordinate(minX, maxY), new Coordinate(minX, minY)});
+    }
+}
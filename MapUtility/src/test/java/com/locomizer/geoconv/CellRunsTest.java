@@ -0,0 +1,110 @@
+package com.locomizer.geoconv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CellRunsTest {
+    private static final long BASE = 0x8928308280fffffL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cursorRangesAcrossSpilledAndMemoryRuns() throws IOException {
+        Random random = new Random(5L);
+        TreeMap<Long, Integer> expected = new TreeMap<>();
+
+        try (CellRuns runs = new CellRuns(100, folder.getRoot())) {
+            for (int i = 0; i < 5000; i++) {
+                long cell = BASE + ((long) random.nextInt(2000) << 12);
+                int row = random.nextInt(1000);
+                runs.add(cell, row);
+                expected.merge(cell, row, Math::min);
+            }
+            runs.seal();
+
+            assertTrue(runs.spilled() > 1);
+            assertTrue(runs.size() >= expected.size());
+
+            assertEquals(expected, read(runs, Long.MIN_VALUE, Long.MAX_VALUE));
+
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(Long.MIN_VALUE);
+            for (int i = 0; i < 20; i++) {
+                bounds.add(BASE + ((long) random.nextInt(2100) << 12) - random.nextInt(2));
+            }
+            bounds.add(expected.firstKey());
+            bounds.add(expected.lastKey());
+            bounds.add(Long.MAX_VALUE);
+            Collections.sort(bounds);
+
+            TreeMap<Long, Integer> pieces = new TreeMap<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                long from = bounds.get(i);
+                long to = bounds.get(i + 1);
+                Map<Long, Integer> range = read(runs, from, to);
+                assertEquals(expected.subMap(from, true, to, false), range);
+                pieces.putAll(range);
+            }
+            assertEquals(expected, pieces);
+
+            assertTrue(read(runs, expected.lastKey() + 1L, Long.MAX_VALUE).isEmpty());
+            assertTrue(read(runs, expected.firstKey(), expected.firstKey()).isEmpty());
+            assertEquals(Collections.singletonMap(expected.firstKey(), expected.firstEntry().getValue()),
+                    read(runs, expected.firstKey(), expected.firstKey() + 1L));
+        }
+
+        assertEquals(0, Objects.requireNonNull(folder.getRoot().list()).length);
+    }
+
+    @Test
+    public void lowestRowWinsAcrossRuns() throws IOException {
+        try (CellRuns runs = new CellRuns(2, folder.getRoot())) {
+            runs.add(BASE, 7);
+            runs.add(BASE + (1L << 12), 1);
+            runs.add(BASE, 3);
+            runs.add(BASE + (2L << 12), 9);
+            runs.add(BASE, 5);
+            runs.seal();
+
+            assertEquals(2, runs.spilled());
+
+            Map<Long, Integer> expected = new TreeMap<>();
+            expected.put(BASE, 3);
+            expected.put(BASE + (1L << 12), 1);
+            expected.put(BASE + (2L << 12), 9);
+            assertEquals(expected, read(runs, Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void memoryOnly() throws IOException {
+        try (CellRuns runs = new CellRuns()) {
+            runs.add(BASE + (1L << 12), 2);
+            runs.add(BASE, 4);
+            runs.seal();
+
+            assertEquals(0, runs.spilled());
+            assertEquals(Arrays.asList(BASE, BASE + (1L << 12)), new ArrayList<>(read(runs, Long.MIN_VALUE, Long.MAX_VALUE).keySet()));
+        }
+    }
+
+    private static Map<Long, Integer> read(CellRuns runs, long from, long to) throws IOException {
+        Map<Long, Integer> cells = new LinkedHashMap<>();
+        try (CellRuns.Cursor cursor = runs.cursor(from, to)) {
+            long last = Long.MIN_VALUE;
+            while (cursor.next()) {
+                assertTrue(cursor.cell() > last || cells.isEmpty());
+                last = cursor.cell();
+                assertNull(cells.put(cursor.cell(), cursor.row()));
+            }
+        }
+        return cells;
+    }
+}
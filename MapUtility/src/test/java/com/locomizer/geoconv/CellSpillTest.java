@@ -0,0 +1,117 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CellSpillTest {
+    private static final long BASE = 0x8928308280fffffL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void radixSortIsStableAndIgnoresInteriorFlag() {
+        Random random = new Random(1L);
+        int n = 10_000;
+        long[] cells = new long[n];
+        long[] claims = new long[n];
+        for (int i = 0; i < n; i++) {
+            long cell = BASE + ((long) random.nextInt(500) << 12) + ((random.nextInt(8) == 0) ? (1L << 40) : 0L);
+            cells[i] = random.nextBoolean() ? (cell | CoverageCache.INTERIOR) : cell;
+            claims[i] = i;
+        }
+
+        Integer[] expected = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            expected[i] = i;
+        }
+        long[] original = cells.clone();
+        Arrays.sort(expected, Comparator.comparingLong(i -> original[i] & ~CoverageCache.INTERIOR));
+
+        CellSpill.sort(cells, claims, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals((long) expected[i], claims[i]);
+            assertEquals(original[expected[i]], cells[i]);
+        }
+    }
+
+    @Test
+    public void radixSortHandlesEqualAndEmptyInput() {
+        long[] cells = {BASE, BASE | CoverageCache.INTERIOR, BASE};
+        long[] claims = {3L, 2L, 1L};
+        CellSpill.sort(cells, claims, cells.length);
+        assertArrayEquals(new long[]{3L, 2L, 1L}, claims);
+
+        CellSpill.sort(new long[0], new long[0], 0);
+    }
+
+    @Test
+    public void spilledMergeMatchesInMemoryMerge() throws IOException {
+        H3Core h3core = H3Core.newInstance();
+        FeatureStore owners = new FeatureStore();
+        for (int i = 0; i < 40; i++) {
+            owners.point(0.D, 0.D, Collections.singletonMap("rank", i % 7));
+        }
+
+        for (String policy : Arrays.asList(CellMerge.FIRST, CellMerge.PRIORITY + "rank", CellMerge.ALL)) {
+            Random random = new Random(3L);
+            CellMerge memory = new CellMerge(policy, owners, h3core);
+            CellMerge spilled = new CellMerge(policy, owners, h3core);
+
+            try (CellSpill spill = new CellSpill(120L, 4, folder.getRoot())) {
+                for (int w = 0; w < 4; w++) {
+                    CellMerge.Claims inMemory = memory.buffer();
+                    CellMerge.Claims onDisk = spill.buffer();
+                    for (int k = 0; k < 500; k++) {
+                        long cell = BASE + ((long) random.nextInt(300) << 12);
+                        int owner = random.nextInt(owners.size());
+                        boolean interior = random.nextInt(5) == 0;
+                        inMemory.add(cell, owner, 1000 + owner, interior);
+                        onDisk.add(cell, owner, 1000 + owner, interior);
+                    }
+                }
+                assertTrue(spill.spilled() > 0);
+
+                CellStore hashes = new CellStore();
+                long conflicts = memory.merge(hashes);
+                Map<Long, List<Integer>> expected = new TreeMap<>();
+                hashes.forEach((cell, row) -> {
+                    List<Integer> rows = new ArrayList<>();
+                    rows.add(row);
+                    for (int other : memory.shared().getOrDefault(cell, new int[0])) {
+                        rows.add(other);
+                    }
+                    expected.put(cell, rows);
+                });
+
+                Map<Long, List<Integer>> merged = new LinkedHashMap<>();
+                long[] mergedConflicts = {0L};
+                spill.merge((cell, cells, claims) -> {
+                    assertEquals(cells.size(), claims.size());
+                    for (int i = 0; i < cells.size(); i++) {
+                        assertEquals(cell, cells.get(i) & ~CoverageCache.INTERIOR);
+                    }
+
+                    List<Integer> rows = new ArrayList<>();
+                    if (spilled.resolve(cell, cells, claims, (hash, row) -> rows.add(row))) {
+                        mergedConflicts[0]++;
+                    }
+                    assertNull(merged.put(cell, rows));
+                });
+
+                assertEquals(policy, new ArrayList<>(expected.keySet()), new ArrayList<>(merged.keySet()));
+                assertEquals(policy, expected, merged);
+                assertEquals(policy, conflicts, mergedConflicts[0]);
+            }
+
+            assertEquals(0, Objects.requireNonNull(folder.getRoot().list()).length);
+        }
+    }
+}
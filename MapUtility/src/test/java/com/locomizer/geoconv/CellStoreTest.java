@@ -0,0 +1,83 @@
+package com.locomizer.geoconv;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CellStoreTest {
+    @Test
+    public void putGetRemoveAcrossSegmentsAndGrowth() {
+        CellStore store = new CellStore();
+        long initialCapacity = store.capacity();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42L);
+
+        for (int i = 0; i < 200_000; i++) {
+            long cell = 0x08_0000_0000_0000L | (random.nextLong() & 0xFFFF_FFFF_FFFFL);
+            store.put(cell, i);
+            expected.put(cell, i);
+        }
+        assertEquals(expected.size(), store.size());
+        assertTrue(store.capacity() > initialCapacity);
+
+        int[] perSegment = new int[CellStore.SEGMENTS];
+        for (long cell : expected.keySet()) {
+            perSegment[CellStore.segment(cell)]++;
+        }
+        for (int count : perSegment) {
+            assertTrue(count > 0);
+        }
+
+        List<Long> cells = new ArrayList<>(expected.keySet());
+        Collections.shuffle(cells, random);
+        for (long cell : cells.subList(0, cells.size() / 2)) {
+            assertEquals((int) expected.remove(cell), store.remove(cell));
+            assertEquals(CellStore.ABSENT, store.remove(cell));
+        }
+        assertEquals(expected.size(), store.size());
+
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assertEquals((int) e.getValue(), store.get(e.getKey()));
+        }
+        for (long cell : cells.subList(0, cells.size() / 2)) {
+            assertEquals(CellStore.ABSENT, store.get(cell));
+        }
+
+        Map<Long, Integer> iterated = new HashMap<>();
+        store.forEach((cell, row) -> assertNull(iterated.put(cell, row)));
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void probeRunsSurviveRemoval() {
+        CellStore store = new CellStore();
+        List<Long> cells = new ArrayList<>();
+        for (long cell = 1L; cells.size() < 4000; cell++) {
+            if (CellStore.segment(cell) == 0) {
+                cells.add(cell);
+                store.put(cell, cells.size());
+            }
+        }
+
+        for (int i = 0; i < cells.size(); i += 3) {
+            assertEquals(i + 1, store.remove(cells.get(i)));
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            assertEquals((i % 3 == 0) ? CellStore.ABSENT : i + 1, store.get(cells.get(i)));
+        }
+    }
+
+    @Test
+    public void putIfAbsentKeepsFirstRow() {
+        CellStore store = new CellStore();
+        store.putIfAbsent(0x8928308280fffffL, 1);
+        store.putIfAbsent(0x8928308280fffffL, 2);
+        assertEquals(1, store.get(0x8928308280fffffL));
+
+        store.put(0x8928308280fffffL, 3);
+        assertEquals(3, store.get(0x8928308280fffffL));
+        assertEquals(1L, store.size());
+    }
+}
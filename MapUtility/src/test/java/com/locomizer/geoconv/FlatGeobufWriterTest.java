@@ -0,0 +1,239 @@
+package com.locomizer.geoconv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.*;
+import org.wololo.flatgeobuf.ColumnMeta;
+import org.wololo.flatgeobuf.HeaderMeta;
+import org.wololo.flatgeobuf.PackedRTree;
+import org.wololo.flatgeobuf.generated.ColumnType;
+import org.wololo.flatgeobuf.generated.Feature;
+import org.wololo.flatgeobuf.generated.GeometryType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FlatGeobufWriterTest {
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void headerAndIndex() throws IOException {
+        List<Geometry> geometries = new ArrayList<>();
+        List<Map<String, Object>> properties = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            geometries.add(FACTORY.createPoint(new Coordinate(i % 8, i / 8)));
+            Map<String, Object> props = new LinkedHashMap<>();
+            props.put("id", i);
+            props.put("name", "p" + i);
+            properties.add(props);
+        }
+
+        ByteBuffer bb = write(geometries, properties);
+        HeaderMeta header = HeaderMeta.read(bb);
+
+        assertEquals(40L, header.featuresCount);
+        assertEquals(FlatGeobufWriter.NODE_SIZE, header.indexNodeSize);
+        assertEquals(GeometryType.Point, header.geometryType);
+        assertEquals(4326, header.srid);
+        assertEquals(new Envelope(0.D, 7.D, 0.D, 4.D), header.envelope);
+        assertEquals(2, header.columns.size());
+        assertEquals("id", header.columns.get(0).name);
+        assertEquals(ColumnType.Long, header.columns.get(0).type);
+        assertEquals("name", header.columns.get(1).name);
+        assertEquals(ColumnType.String, header.columns.get(1).type);
+
+        assertEquals(40, PackedRTree.search(bb, header.offset, 40, header.indexNodeSize, new Envelope(-1.D, 8.D, -1.D, 5.D)).size());
+
+        long featuresAt = header.offset + PackedRTree.calcSize(40, header.indexNodeSize);
+        Set<Object> ids = new HashSet<>();
+        for (PackedRTree.SearchHit hit : PackedRTree.search(bb, header.offset, 40, header.indexNodeSize, new Envelope(1.5D, 3.5D, 0.5D, 2.5D))) {
+            Feature feature = feature(bb, featuresAt + hit.offset);
+            Map<String, Object> values = values(feature, header.columns);
+            assertEquals("p" + values.get("id"), values.get("name"));
+            ids.add(values.get("id"));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(10L, 11L, 18L, 19L)), ids);
+    }
+
+    @Test
+    public void featureEncoding() throws IOException {
+        Polygon holed = FACTORY.createPolygon(
+                FACTORY.createLinearRing(new Coordinate[]{new Coordinate(0, 0), new Coordinate(10, 0), new Coordinate(10, 10), new Coordinate(0, 10), new Coordinate(0, 0)}),
+                new LinearRing[]{FACTORY.createLinearRing(new Coordinate[]{new Coordinate(2, 2), new Coordinate(4, 2), new Coordinate(4, 4), new Coordinate(2, 2)})});
+        Polygon square = FACTORY.createPolygon(new Coordinate[]{new Coordinate(20, 20), new Coordinate(21, 20), new Coordinate(21, 21), new Coordinate(20, 20)});
+        MultiPolygon multi = FACTORY.createMultiPolygon(new Polygon[]{square, holed});
+
+        Map<String, Object> props = new LinkedHashMap<>();
+        props.put("flag", true);
+        props.put("count", 7L);
+        props.put("share", 0.25D);
+        props.put("name", "Żółw");
+        props.put("nested", Collections.singletonMap("a", 1));
+        props.put("missing", null);
+
+        ByteBuffer bb = write(Arrays.asList(holed, multi), Arrays.asList(props, props));
+        HeaderMeta header = HeaderMeta.read(bb);
+
+        assertEquals(GeometryType.Unknown, header.geometryType);
+        assertEquals(5, header.columns.size());
+        assertEquals(ColumnType.Bool, header.columns.get(0).type);
+        assertEquals(ColumnType.Long, header.columns.get(1).type);
+        assertEquals(ColumnType.Double, header.columns.get(2).type);
+        assertEquals(ColumnType.String, header.columns.get(3).type);
+        assertEquals(ColumnType.Json, header.columns.get(4).type);
+
+        List<Feature> features = features(bb, header);
+        assertEquals(2, features.size());
+        for (Feature feature : features) {
+            Map<String, Object> values = values(feature, header.columns);
+            assertEquals(true, values.get("flag"));
+            assertEquals(7L, values.get("count"));
+            assertEquals(0.25D, values.get("share"));
+            assertEquals("Żółw", values.get("name"));
+            assertEquals("{\"a\":1}", values.get("nested"));
+            assertFalse(values.containsKey("missing"));
+
+            org.wololo.flatgeobuf.generated.Geometry geometry = feature.geometry();
+            if (geometry.type() == GeometryType.MultiPolygon) {
+                assertEquals(2, geometry.partsLength());
+                assertEquals(GeometryType.Polygon, geometry.parts(0).type());
+                assertEquals(8, geometry.parts(0).xyLength());
+                assertEquals(0, geometry.parts(0).endsLength());
+                assertPolygon(holed, geometry.parts(1));
+            } else {
+                assertEquals(GeometryType.Polygon, geometry.type());
+                assertPolygon(holed, geometry);
+            }
+        }
+    }
+
+    @Test
+    public void mixedColumns() throws IOException {
+        List<Geometry> geometries = new ArrayList<>();
+        List<Map<String, Object>> properties = new ArrayList<>();
+        Object[][] rows = {{1, 1, true}, {2.5D, "two", false}, {3L, 3L, true}};
+        for (int i = 0; i < rows.length; i++) {
+            geometries.add(FACTORY.createPoint(new Coordinate(i, i)));
+            Map<String, Object> props = new LinkedHashMap<>();
+            props.put("number", rows[i][0]);
+            props.put("mixed", rows[i][1]);
+            props.put("flag", rows[i][2]);
+            properties.add(props);
+        }
+
+        ByteBuffer bb = write(geometries, properties);
+        HeaderMeta header = HeaderMeta.read(bb);
+        assertEquals(ColumnType.Double, header.columns.get(0).type);
+        assertEquals(ColumnType.String, header.columns.get(1).type);
+        assertEquals(ColumnType.Bool, header.columns.get(2).type);
+
+        Map<Object, Object> mixed = new HashMap<>();
+        for (Feature feature : features(bb, header)) {
+            Map<String, Object> values = values(feature, header.columns);
+            mixed.put(values.get("number"), values.get("mixed"));
+        }
+
+        Map<Object, Object> expected = new HashMap<>();
+        expected.put(1.D, "1");
+        expected.put(2.5D, "two");
+        expected.put(3.D, "3");
+        assertEquals(expected, mixed);
+    }
+
+    @Test
+    public void empty() throws IOException {
+        ByteBuffer bb = write(Collections.emptyList(), Collections.emptyList());
+        HeaderMeta header = HeaderMeta.read(bb);
+
+        assertEquals(0L, header.featuresCount);
+        assertEquals(0, header.indexNodeSize);
+        assertEquals(bb.limit(), header.offset);
+    }
+
+    @Test(expected = IOException.class)
+    public void temporaryFilesGoToDirectory() throws IOException {
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(new ByteArrayOutputStream(), -1, new File(folder.getRoot(), "missing"))) {
+            writer.write(FACTORY.createPoint(new Coordinate(1.D, 2.D)), Collections.emptyMap());
+        }
+    }
+
+    private static void assertPolygon(Polygon expected, org.wololo.flatgeobuf.generated.Geometry geometry) {
+        assertEquals(2, geometry.endsLength());
+        assertEquals(5L, geometry.ends(0));
+        assertEquals(9L, geometry.ends(1));
+
+        Coordinate[] coordinates = expected.getCoordinates();
+        assertEquals(2 * coordinates.length, geometry.xyLength());
+        for (int i = 0; i < coordinates.length; i++) {
+            assertEquals(coordinates[i].x, geometry.xy(2 * i), 0.D);
+            assertEquals(coordinates[i].y, geometry.xy(2 * i + 1), 0.D);
+        }
+    }
+
+    private ByteBuffer write(List<? extends Geometry> geometries, List<Map<String, Object>> properties) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (FlatGeobufWriter writer = new FlatGeobufWriter(output, -1, folder.getRoot())) {
+            for (int i = 0; i < geometries.size(); i++) {
+                writer.write(geometries.get(i), properties.get(i));
+            }
+        }
+        assertEquals(0, Objects.requireNonNull(folder.getRoot().list()).length);
+        return ByteBuffer.wrap(output.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static List<Feature> features(ByteBuffer bb, HeaderMeta header) {
+        List<Feature> features = new ArrayList<>();
+        long at = header.offset + PackedRTree.calcSize((int) header.featuresCount, header.indexNodeSize);
+        while (at < bb.limit()) {
+            features.add(feature(bb, at));
+            at += 4 + bb.getInt((int) at);
+        }
+        return features;
+    }
+
+    private static Feature feature(ByteBuffer bb, long at) {
+        ByteBuffer buffer = bb.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position((int) at + 4);
+        return Feature.getRootAsFeature(buffer.slice());
+    }
+
+    private static Map<String, Object> values(Feature feature, List<ColumnMeta> columns) {
+        Map<String, Object> values = new HashMap<>();
+        ByteBuffer props = feature.propertiesAsByteBuffer();
+        if (props == null) {
+            return values;
+        }
+
+        props = props.slice().order(ByteOrder.LITTLE_ENDIAN);
+        while (props.hasRemaining()) {
+            ColumnMeta column = columns.get(props.getShort());
+            switch (column.type) {
+                case ColumnType.Bool:
+                    values.put(column.name, props.get() != 0);
+                    break;
+                case ColumnType.Long:
+                    values.put(column.name, props.getLong());
+                    break;
+                case ColumnType.Double:
+                    values.put(column.name, props.getDouble());
+                    break;
+                default:
+                    byte[] bytes = new byte[props.getInt()];
+                    props.get(bytes);
+                    values.put(column.name, new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+}
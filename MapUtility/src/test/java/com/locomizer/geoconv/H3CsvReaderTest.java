@@ -0,0 +1,98 @@
+package com.locomizer.geoconv;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class H3CsvReaderTest {
+    private static final List<String> COLUMNS = Arrays.asList(Main.INDEX, "name", Main.UNDERSCORE, "note");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cutsInsideQuotedValues() throws IOException {
+        String csv = "8928308280fffff,plain,x,\"one, two\"\n" +
+                "8928308281fffff,\"line\nbreak\",\"y\",\"say \"\"hi\"\"\n\nand \"\"bye\"\"\"\n" +
+                "\n" +
+                "8928308283fffff,\"\",z,\"\"\"\"\n" +
+                "8928308287fffff,\"a\"\"\nb\",,last\n";
+
+        Map<Long, Map<String, Object>> expected = expected(csv);
+        assertEquals(4, expected.size());
+        assertEquals("line\nbreak", expected.get(0x8928308281fffffL).get("name"));
+
+        for (int chunk = 1; chunk <= csv.length() + 1; chunk++) {
+            assertEquals("chunk " + chunk, expected, read(csv, chunk));
+        }
+    }
+
+    @Test
+    public void crlfLineEndings() throws IOException {
+        String csv = "8928308280fffff,a,x,\"quoted\r\nbreak\"\r\n" +
+                "8928308281fffff,c,y,d\r\n" +
+                "\r\n" +
+                "8928308283fffff,\"e\",z,f\r\n";
+
+        Map<Long, Map<String, Object>> expected = expected(csv);
+        assertEquals(3, expected.size());
+        assertEquals("d", expected.get(0x8928308281fffffL).get("note"));
+        assertEquals("quoted\r\nbreak", expected.get(0x8928308280fffffL).get("note"));
+
+        for (int chunk = 1; chunk <= csv.length() + 1; chunk++) {
+            assertEquals("chunk " + chunk, expected, read(csv, chunk));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsShortRecord() throws IOException {
+        read("8928308280fffff,a,b\n", 4);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnclosedQuote() throws IOException {
+        read("8928308280fffff,a,b,\"c\n", 64);
+    }
+
+    private Map<Long, Map<String, Object>> read(String csv, int chunk) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+
+        Map<Long, Map<String, Object>> records = Collections.synchronizedMap(new HashMap<>());
+        int chunks = new H3CsvReader(file, COLUMNS, chunk).read((hash, props) -> assertNull(records.put(hash, props)));
+        assertTrue(chunks >= 1);
+        return records;
+    }
+
+    private static Map<Long, Map<String, Object>> expected(String csv) throws IOException {
+        Map<Long, Map<String, Object>> records = new HashMap<>();
+        try (CSVParser parser = new CSVParser(new StringReader(csv), CSVFormat.EXCEL.withDelimiter(Main.COMMA))) {
+            for (CSVRecord rec : parser) {
+                if ((rec.size() == 1) && rec.get(0).isEmpty()) {
+                    continue;
+                }
+
+                Map<String, Object> props = new HashMap<>();
+                for (int i = 0; i < COLUMNS.size(); i++) {
+                    if (!COLUMNS.get(i).equals(Main.UNDERSCORE)) {
+                        props.put(COLUMNS.get(i), rec.get(i));
+                    }
+                }
+                records.put(Long.parseLong(rec.get(0), 16), props);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,121 @@
+package com.locomizer.geoconv;
+
+import com.uber.h3core.H3Core;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.ParseException;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IncrementalTest {
+    private static final String H3 = "h3(9,_index,name)";
+    private static final String H3B = "h3b(9,_index,name)";
+
+    private static H3Core h3core;
+    private static Scheduler scheduler;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        h3core = H3Core.newInstance();
+        scheduler = new Scheduler(2);
+    }
+
+    @Test
+    public void patchEqualsFullRun() throws Exception {
+        List<String> previous = Arrays.asList(
+                feature("a", 13.400D, 52.520D, 0.010D),
+                feature("b", 13.406D, 52.524D, 0.010D),
+                feature("c", 13.430D, 52.500D, 0.008D),
+                feature("d", 13.450D, 52.540D, 0.006D),
+                feature("e", 13.412D, 52.516D, 0.004D));
+        List<String> current = Arrays.asList(
+                feature("a", 13.400D, 52.520D, 0.010D),
+                feature("b", 13.408D, 52.525D, 0.012D),
+                feature("d", 13.450D, 52.540D, 0.006D),
+                feature("f", 13.432D, 52.502D, 0.006D),
+                feature("e", 13.412D, 52.516D, 0.004D));
+
+        for (String conflict : Arrays.asList(CellMerge.FIRST, CellMerge.OVERLAP, CellMerge.ALL)) {
+            for (String output : Arrays.asList(H3, H3B)) {
+                if (output.equals(H3B) && conflict.equals(CellMerge.ALL)) {
+                    continue;
+                }
+                String name = conflict + " " + output;
+
+                File previousIn = json(previous);
+                File previousOut = folder.newFile();
+                conversion(output, conflict).run(h3core, previousIn, previousOut, new Metrics());
+
+                File currentIn = json(current);
+                File full = folder.newFile();
+                conversion(output, conflict).run(h3core, currentIn, full, new Metrics());
+
+                File patched = folder.newFile();
+                File delta = folder.newFile();
+                new Incremental(conversion(output, conflict), h3core, new Metrics()).run(previousIn, previousOut, currentIn, patched, delta);
+
+                Map<Long, List<String>> expected = cells(output, full);
+                if (conflict.equals(CellMerge.ALL)) {
+                    assertTrue(name, expected.values().stream().anyMatch(lines -> lines.size() > 1));
+                }
+                assertEquals(name, expected, cells(output, patched));
+                assertNotEquals(name, cells(output, previousOut), cells(output, patched));
+                assertTrue(name, Files.readAllLines(delta.toPath()).size() > 1);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAllPolicyWithBinaryOutput() throws ParseException {
+        conversion(H3B, CellMerge.ALL);
+    }
+
+    private static Conversion conversion(String output, String conflict) throws ParseException {
+        CommandLine cmd = new DefaultParser().parse(Main.options(), new String[]{"--" + Main.OPT_CONFLICT, conflict});
+        return new Conversion(Main.JSON, output, cmd, scheduler);
+    }
+
+    /**
+     * Lines of a CSV output grouped by cell in their order, or the attributes of each cell of a binary one.
+     */
+    private static Map<Long, List<String>> cells(String output, File file) throws IOException {
+        Map<Long, List<String>> cells = new TreeMap<>();
+        if (output.equals(H3B)) {
+            try (BinaryCoverage.Reader reader = new BinaryCoverage.Reader(file)) {
+                reader.forEach((cell, row) -> cells.put(cell, Collections.singletonList(new TreeMap<>(reader.attributes(row)).toString())));
+            }
+        } else {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                cells.computeIfAbsent(Long.parseLong(line.substring(0, line.indexOf(',')), 16), c -> new ArrayList<>()).add(line);
+            }
+        }
+        assertFalse(cells.isEmpty());
+        return cells;
+    }
+
+    private File json(List<String> features) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), ("{\"type\":\"FeatureCollection\",\"features\":[" + String.join(",", features) + "]}")
+                .getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String feature(String name, double x, double y, double size) {
+        return "{\"type\":\"Feature\",\"properties\":{\"name\":\"" + name + "\"},\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[["
+                + "[" + x + "," + y + "],[" + (x + size) + "," + y + "],[" + (x + size) + "," + (y + size) + "],["
+                + x + "," + (y + size) + "],[" + x + "," + y + "]]]}}";
+    }
+}
@@ -0,0 +1,81 @@
+package com.locomizer.geoconv;
+
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KMLStreamReaderTest {
+    private static final String KML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\">\n" +
+            "<Document><name>doc</name><Folder>\n" +
+            "  <Placemark id=\"p1\">\n" +
+            "    <name>Mixed</name>\n" +
+            "    <ExtendedData><Data name=\"kind\"><displayName>Kind</displayName><value>park</value></Data></ExtendedData>\n" +
+            "    <MultiGeometry>\n" +
+            "      <LineString><tessellate>1</tessellate><coordinates>0,0 1,1</coordinates></LineString>\n" +
+            "      <Polygon>\n" +
+            "        <extrude>0</extrude>\n" +
+            "        <innerBoundaryIs><LinearRing><coordinates>2,2 4,2 4,4 2,2</coordinates></LinearRing></innerBoundaryIs>\n" +
+            "        <outerBoundaryIs><LinearRing><coordinates>0,0 10,0 10,10 0,10 0,0</coordinates></LinearRing></outerBoundaryIs>\n" +
+            "      </Polygon>\n" +
+            "      <gx:Track><when>2020-01-01T00:00:00Z</when><gx:coord>1 2 3</gx:coord></gx:Track>\n" +
+            "      <Model><Location><longitude>1</longitude><latitude>2</latitude></Location></Model>\n" +
+            "      <MultiGeometry>\n" +
+            "        <Point><coordinates>5,5</coordinates></Point>\n" +
+            "        <LinearRing><coordinates>0,0 1,0 1,1 0,0</coordinates></LinearRing>\n" +
+            "      </MultiGeometry>\n" +
+            "    </MultiGeometry>\n" +
+            "  </Placemark>\n" +
+            "  <Placemark>\n" +
+            "    <description><![CDATA[<b>only a line</b>]]></description>\n" +
+            "    <LineString><coordinates>0,0 1,1</coordinates></LineString>\n" +
+            "  </Placemark>\n" +
+            "</Folder>\n" +
+            "<Placemark><Point><coordinates>\n 7,8,0 \n</coordinates></Point></Placemark>\n" +
+            "</Document></kml>\n";
+
+    @Test
+    public void mixedMultiGeometry() throws XMLStreamException, IOException {
+        List<KMLStreamReader.Placemark> placemarks = new ArrayList<>();
+        List<Integer> batches = new ArrayList<>();
+        try (KMLStreamReader reader = new KMLStreamReader(new ByteArrayInputStream(KML.getBytes(StandardCharsets.UTF_8)))) {
+            reader.read(2, batch -> {
+                batches.add(batch.size());
+                placemarks.addAll(batch);
+            });
+        }
+
+        assertEquals(3, placemarks.size());
+        assertEquals(2, (int) batches.get(0));
+        assertEquals(1, (int) batches.get(1));
+
+        KMLStreamReader.Placemark mixed = placemarks.get(0);
+        assertEquals("p1", mixed.properties.get(Main.ID));
+        assertEquals("Mixed", mixed.properties.get(Main.NAME));
+        assertEquals("park", mixed.properties.get("kind"));
+
+        assertEquals(3, mixed.shapes.size());
+        assertEquals(KMLStreamReader.POLYGON, mixed.shapes.get(0).type);
+        assertEquals(2, mixed.shapes.get(0).rings.size());
+        assertEquals("0,0 10,0 10,10 0,10 0,0", mixed.shapes.get(0).rings.get(0));
+        assertEquals("2,2 4,2 4,4 2,2", mixed.shapes.get(0).rings.get(1));
+        assertEquals(KMLStreamReader.POINT, mixed.shapes.get(1).type);
+        assertEquals("5,5", mixed.shapes.get(1).rings.get(0));
+        assertEquals(KMLStreamReader.LINEAR_RING, mixed.shapes.get(2).type);
+
+        KMLStreamReader.Placemark line = placemarks.get(1);
+        assertEquals("<b>only a line</b>", line.properties.get(Main.DESCRIPTION));
+        assertTrue(line.shapes.isEmpty());
+
+        KMLStreamReader.Placemark point = placemarks.get(2);
+        assertEquals(1, point.shapes.size());
+        assertEquals("7,8,0", point.shapes.get(0).rings.get(0));
+    }
+}